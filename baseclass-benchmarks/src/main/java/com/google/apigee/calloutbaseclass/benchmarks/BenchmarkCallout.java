@@ -0,0 +1,26 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.apigee.calloutbaseclass.benchmarks;
+
+import com.google.apigee.calloutbaseclass.CalloutBase;
+
+import java.util.Map;
+
+/** Callout exposing the base class as is, so benchmarks measure only base class code. */
+final class BenchmarkCallout extends CalloutBase {
+
+  BenchmarkCallout(Map<String, String> properties) {
+    super(properties);
+  }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.apigee.calloutbaseclass.benchmarks;
+
+import com.google.apigee.calloutbaseclass.testkit.InMemoryMessageContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/** Benchmarks storing an exception in flow variables for shallow and deep stacks. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ExceptionBenchmark {
+
+  @Param({"5", "100"})
+  public int depth;
+
+  @Param({"full", "bounded", "cached", "none"})
+  public String rendering;
+
+  private BenchmarkCallout callout;
+  private InMemoryMessageContext messageContext;
+  private Exception exception;
+
+  @Setup
+  public void setup() {
+    Map<String, String> properties = new HashMap<>();
+    switch (rendering) {
+      case "bounded":
+        properties.put("callout-exception-stacktrace-max-frames", "10");
+        properties.put("callout-exception-stacktrace-exclude", "org.openjdk.jmh.,sun.,jdk.");
+        break;
+      case "cached":
+        properties.put("callout-exception-stacktrace-cache-size", "16");
+        break;
+      case "none":
+        properties.put("callout-exception-stacktrace", "false");
+        break;
+      default:
+        break;
+    }
+    callout = new BenchmarkCallout(properties);
+    messageContext = new InMemoryMessageContext();
+    exception = throwAtDepth(depth);
+  }
+
+  private static Exception throwAtDepth(int remaining) {
+    if (remaining > 0) {
+      return throwAtDepth(remaining - 1);
+    }
+    try {
+      throw new IllegalStateException("backend: connection refused");
+    } catch (IllegalStateException e) {
+      return e;
+    }
+  }
+
+  @Benchmark
+  public Object setExceptionVariables() {
+    callout.setExceptionVariables(exception, messageContext);
+    return messageContext.getVariable("callout_error");
+  }
+}
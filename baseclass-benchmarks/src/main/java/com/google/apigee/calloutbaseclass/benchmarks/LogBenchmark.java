@@ -0,0 +1,83 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.apigee.calloutbaseclass.benchmarks;
+
+import com.google.apigee.calloutbaseclass.RequestScope;
+import com.google.apigee.calloutbaseclass.testkit.InMemoryMessageContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks a request that logs a number of statements, showing how the cost grows with the log.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LogBenchmark {
+
+  @Param({"1", "10", "100"})
+  public int statements;
+
+  @Param({"false", "true"})
+  public boolean scoped;
+
+  @Param({"false", "true"})
+  public boolean callerLocation;
+
+  private BenchmarkCallout callout;
+  private InMemoryMessageContext messageContext;
+
+  @Setup
+  public void setup() {
+    Map<String, String> properties = new HashMap<>();
+    properties.put("callout-log-caller-location", String.valueOf(callerLocation));
+    callout = new BenchmarkCallout(properties);
+    messageContext = new InMemoryMessageContext();
+  }
+
+  @Benchmark
+  public Object logRequest() {
+    messageContext.clear();
+    if (scoped) {
+      try (RequestScope scope = callout.openScope(messageContext)) {
+        logStatements();
+      }
+    } else {
+      logStatements();
+    }
+    return messageContext.getVariable("callout_log");
+  }
+
+  private void logStatements() {
+    for (int i = 0; i < statements; i++) {
+      callout.log("processing step of the request", messageContext);
+    }
+  }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.apigee.calloutbaseclass.benchmarks;
+
+import com.google.apigee.calloutbaseclass.testkit.InMemoryMessageContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/** Benchmarks resolving flow variable references and retrieving properties. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PropertyBenchmark {
+
+  private static final String PROPERTY_NAME = "value";
+  private static final Map<String, String> SPECS = new HashMap<>();
+
+  static {
+    SPECS.put("none", "a constant property value without references");
+    SPECS.put("one", "{request.queryparam.a}");
+    SPECS.put("oneWithDefault", "{request.queryparam.missing:fallback}");
+    SPECS.put(
+        "many",
+        "Bearer {request.queryparam.a}.{request.queryparam.b}.{request.queryparam.c}"
+            + "/{request.header.d}?e={request.header.e}");
+    SPECS.put(
+        "manyWithDefaults",
+        "Bearer {missing.a:x}.{missing.b:y}.{missing.c:z}/{missing.d:w}?e={missing.e:v}");
+  }
+
+  @Param({"none", "one", "oneWithDefault", "many", "manyWithDefaults"})
+  public String references;
+
+  private String spec;
+  private BenchmarkCallout callout;
+  private InMemoryMessageContext messageContext;
+
+  @Setup
+  public void setup() {
+    spec = SPECS.get(references);
+    callout = new BenchmarkCallout(Collections.singletonMap(PROPERTY_NAME, spec));
+    messageContext = new InMemoryMessageContext();
+    messageContext.setVariable("request.queryparam.a", "alpha");
+    messageContext.setVariable("request.queryparam.b", "bravo");
+    messageContext.setVariable("request.queryparam.c", "charlie");
+    messageContext.setVariable("request.header.d", "delta");
+    messageContext.setVariable("request.header.e", "echo");
+  }
+
+  @Benchmark
+  public String resolveVariableReferences() {
+    return callout.resolveVariableReferences(spec, messageContext);
+  }
+
+  @Benchmark
+  public Optional<String> getOptionalProperty() {
+    return callout.getOptionalProperty(PROPERTY_NAME, messageContext);
+  }
+
+  @Benchmark
+  public String getRequiredProperty() {
+    return callout.getRequiredProperty(PROPERTY_NAME, messageContext);
+  }
+}
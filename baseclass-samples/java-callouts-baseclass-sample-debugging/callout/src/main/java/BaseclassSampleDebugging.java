@@ -16,9 +16,8 @@ package com.apigeesample;
 
 import com.apigee.flow.execution.ExecutionContext;
 import com.apigee.flow.execution.ExecutionResult;
-import com.apigee.flow.execution.spi.Execution;
 import com.apigee.flow.message.MessageContext;
-import com.google.apigee.calloutbaseclass.CalloutBase;
+import com.google.apigee.calloutbaseclass.TemplateCalloutBase;
 
 import java.util.Map;
 
@@ -26,7 +25,7 @@ import java.util.Map;
  * Sample Java Callout utilizing the setExceptionVariable and log methods of Java Callout Base
  * Class.
  */
-public class BaseclassSampleDebugging extends CalloutBase implements Execution {
+public class BaseclassSampleDebugging extends TemplateCalloutBase {
 
   public BaseclassSampleDebugging(Map<String, String> properties) {
     super(properties);
@@ -34,19 +33,17 @@ public class BaseclassSampleDebugging extends CalloutBase implements Execution {
 
   /**
    * The main function executed by the Java Callout. In this case, the function only logs a message
-   * and throws an exception which are both stored in flow variables.
+   * and throws an exception which are both stored in flow variables by the base class, which then
+   * aborts the execution.
    *
    * @param messageContext Object allowing access entities inside the flow
    * @param executionContext Object allowing access to proxy execution context
-   * @return Aborted execution result
+   * @return Never returns normally
    */
-  public ExecutionResult execute(MessageContext messageContext, ExecutionContext executionContext) {
-    try {
-      log("Log statement before exception thrown", messageContext);
-      throw new RuntimeException("test exception");
-    } catch (Exception e) {
-      setExceptionVariables(e, messageContext);
-      return ExecutionResult.ABORT;
-    }
+  @Override
+  protected ExecutionResult executeCallout(
+      MessageContext messageContext, ExecutionContext executionContext) {
+    log("Log statement before exception thrown", messageContext);
+    throw new RuntimeException("test exception");
   }
 }
@@ -16,10 +16,13 @@ package com.apigeesample;
 
 import com.apigee.flow.execution.ExecutionContext;
 import com.apigee.flow.execution.ExecutionResult;
-import com.apigee.flow.execution.spi.Execution;
 import com.apigee.flow.message.MessageContext;
 import com.google.apigee.calloutbaseclass.CalloutBase;
+import com.google.apigee.calloutbaseclass.PropertySchema;
+import com.google.apigee.calloutbaseclass.TemplateCalloutBase;
 
+import java.io.IOException;
+import java.io.Writer;
 import java.util.Map;
 
 /**
@@ -27,28 +30,32 @@ import java.util.Map;
  * and {@link CalloutBase#getRequiredProperty(String, MessageContext)} methods of Java Callout Base
  * Class.
  */
-public class BaseclassSampleHello extends CalloutBase implements Execution {
+public class BaseclassSampleHello extends TemplateCalloutBase {
+
+  // A policy without a message fails when it is deployed rather than on the first request.
+  private static final PropertySchema SCHEMA =
+      PropertySchema.newBuilder().required("message").optional("name").build();
 
   public BaseclassSampleHello(Map<String, String> properties) {
-    super(properties);
+    super(properties, SCHEMA);
   }
 
   /**
    * The main function executed by the Java Callout. In this case, the function uses the properties
-   * map to construct a message and returns that string.
+   * map to construct a message and returns that string. Exceptions are stored in flow variables by
+   * the base class.
    *
    * @param messageContext Object allowing access to entities inside the flow
    * @param executionContext Object allowing access to proxy execution context
    * @return A successful execution result after message is constructed
    */
-  public ExecutionResult execute(MessageContext messageContext, ExecutionContext executionContext) {
-    try {
-      messageContext.getMessage().setContent(constructMessage(messageContext));
-      return ExecutionResult.SUCCESS;
-    } catch (Exception e) {
-      setExceptionVariables(e, messageContext);
-      return ExecutionResult.ABORT;
+  @Override
+  protected ExecutionResult executeCallout(
+      MessageContext messageContext, ExecutionContext executionContext) throws IOException {
+    try (Writer writer = openContentWriter(messageContext.getMessage())) {
+      writer.write(constructMessage(messageContext));
     }
+    return ExecutionResult.SUCCESS;
   }
 
   /**
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.apigee.calloutbaseclass.testkit;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Reads the number of bytes allocated by the current thread, where the JVM supports it (HotSpot
+ * and OpenJ9 do through com.sun.management.ThreadMXBean).
+ */
+final class AllocationMeter {
+
+  private static final com.sun.management.ThreadMXBean THREADS = lookup();
+
+  private AllocationMeter() {}
+
+  private static com.sun.management.ThreadMXBean lookup() {
+    try {
+      java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+      if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+        return null;
+      }
+      com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+      if (!threads.isThreadAllocatedMemorySupported()) {
+        return null;
+      }
+      threads.setThreadAllocatedMemoryEnabled(true);
+      return threads;
+    } catch (LinkageError | UnsupportedOperationException | SecurityException e) {
+      return null;
+    }
+  }
+
+  /**
+   * @return Total bytes allocated by the current thread so far, or -1 if the JVM cannot tell, e.g.
+   *     on a virtual thread
+   */
+  static long currentThreadAllocatedBytes() {
+    return THREADS == null ? -1 : THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+}
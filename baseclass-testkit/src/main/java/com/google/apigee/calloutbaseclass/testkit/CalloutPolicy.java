@@ -0,0 +1,199 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.apigee.calloutbaseclass.testkit;
+
+import com.apigee.flow.execution.spi.Execution;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xml.sax.SAXException;
+
+/**
+ * JavaCallout policy read from an API proxy bundle, e.g.
+ * "apiproxy/policies/java-callouts-baseclass-sample-hello.xml". Holds the policy name, callout
+ * class name and properties, and creates callout instances the way Apigee does: by calling the
+ * constructor of the class that takes the properties map.
+ */
+public final class CalloutPolicy {
+
+  private final String name;
+  private final String className;
+  private final Map<String, String> properties;
+
+  /**
+   * @param name Name of the policy
+   * @param className Fully qualified name of the callout class
+   * @param properties Properties passed to the callout constructor
+   */
+  public CalloutPolicy(String name, String className, Map<String, String> properties) {
+    this.name = name;
+    this.className = className;
+    this.properties = Collections.unmodifiableMap(new LinkedHashMap<>(properties));
+  }
+
+  /**
+   * Reads a JavaCallout policy file.
+   *
+   * @param file Policy file
+   * @return Policy read from the file
+   * @throws IOException if the file cannot be read or is not well-formed XML
+   * @throws IllegalArgumentException if the file is not a JavaCallout policy with a ClassName
+   */
+  public static CalloutPolicy load(Path file) throws IOException {
+    Element root;
+    try (InputStream in = Files.newInputStream(file)) {
+      root = newDocumentBuilder().parse(in).getDocumentElement();
+    } catch (SAXException e) {
+      throw new IOException("Policy " + file + " is not well-formed", e);
+    }
+    if (!root.getTagName().equals("JavaCallout")) {
+      throw new IllegalArgumentException("Policy " + file + " is not a JavaCallout");
+    }
+    String className = null;
+    Map<String, String> properties = new LinkedHashMap<>();
+    for (Node n = root.getFirstChild(); n != null; n = n.getNextSibling()) {
+      if (!(n instanceof Element)) {
+        continue;
+      }
+      Element child = (Element) n;
+      if (child.getTagName().equals("ClassName")) {
+        className = child.getTextContent().trim();
+      } else if (child.getTagName().equals("Properties")) {
+        for (Node p = child.getFirstChild(); p != null; p = p.getNextSibling()) {
+          if (p instanceof Element && ((Element) p).getTagName().equals("Property")) {
+            properties.put(((Element) p).getAttribute("name"), p.getTextContent());
+          }
+        }
+      }
+    }
+    if (className == null || className.isEmpty()) {
+      throw new IllegalArgumentException("Policy " + file + " has no ClassName");
+    }
+    return new CalloutPolicy(root.getAttribute("name"), className, properties);
+  }
+
+  /**
+   * Reads the JavaCallout policies of an API proxy bundle, skipping other policy types.
+   *
+   * @param apiproxy The "apiproxy" directory of the bundle
+   * @return Policies in file name order
+   * @throws IOException if a policy file cannot be read or is not well-formed XML
+   */
+  public static List<CalloutPolicy> loadAll(Path apiproxy) throws IOException {
+    List<Path> files = new ArrayList<>();
+    try (DirectoryStream<Path> stream =
+        Files.newDirectoryStream(apiproxy.resolve("policies"), "*.xml")) {
+      stream.forEach(files::add);
+    }
+    Collections.sort(files);
+    List<CalloutPolicy> policies = new ArrayList<>();
+    for (Path file : files) {
+      try {
+        policies.add(load(file));
+      } catch (IllegalArgumentException e) {
+        // Not a JavaCallout.
+      }
+    }
+    return policies;
+  }
+
+  private static DocumentBuilder newDocumentBuilder() throws IOException {
+    DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+    try {
+      factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+      factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+      factory.setExpandEntityReferences(false);
+      return factory.newDocumentBuilder();
+    } catch (ParserConfigurationException e) {
+      throw new IOException("Cannot create a secure XML parser", e);
+    }
+  }
+
+  /** @return Name of the policy */
+  public String getName() {
+    return name;
+  }
+
+  /** @return Fully qualified name of the callout class */
+  public String getClassName() {
+    return className;
+  }
+
+  /** @return Properties passed to the callout constructor */
+  public Map<String, String> getProperties() {
+    return properties;
+  }
+
+  /**
+   * Creates a copy of the policy with a property added or replaced, e.g. to enable metrics.
+   *
+   * @param name Name of the property
+   * @param value Value of the property
+   * @return New policy
+   */
+  public CalloutPolicy withProperty(String name, String value) {
+    Map<String, String> updated = new LinkedHashMap<>(properties);
+    updated.put(name, value);
+    return new CalloutPolicy(this.name, className, updated);
+  }
+
+  /**
+   * Creates an instance of the callout class with the policy properties.
+   *
+   * @param classLoader Class loader to load the callout class with
+   * @return New callout
+   * @throws ReflectiveOperationException if the class cannot be loaded or has no public constructor
+   *     taking a Map, or the constructor throws a checked exception
+   * @throws IllegalArgumentException if the class is not an Execution
+   */
+  public Execution newInstance(ClassLoader classLoader) throws ReflectiveOperationException {
+    Class<?> type = Class.forName(className, true, classLoader);
+    if (!Execution.class.isAssignableFrom(type)) {
+      throw new IllegalArgumentException(className + " does not implement Execution");
+    }
+    try {
+      // Apigee passes a mutable map, which some callouts modify.
+      Object callout = type.getConstructor(Map.class).newInstance(new LinkedHashMap<>(properties));
+      return (Execution) callout;
+    } catch (InvocationTargetException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      if (e.getCause() instanceof Error) {
+        throw (Error) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  @Override
+  public String toString() {
+    return name + " (" + className + ")";
+  }
+}
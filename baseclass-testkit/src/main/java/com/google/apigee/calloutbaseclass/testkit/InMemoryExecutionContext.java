@@ -0,0 +1,150 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.apigee.calloutbaseclass.testkit;
+
+import com.apigee.flow.Fault;
+import com.apigee.flow.execution.Callback;
+import com.apigee.flow.execution.ExecutionContext;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Marker;
+
+/**
+ * Execution Context standing in for the Apigee runtime in tests and load tests. Submitted tasks run
+ * on an executor, the common fork-join pool by default, and scheduled tasks are handed to it once
+ * their delay has passed. Calls to {@link #resume()} are counted so that a test can wait for a
+ * callout that paused the flow.
+ *
+ * <p>All methods are thread-safe.
+ */
+public final class InMemoryExecutionContext implements ExecutionContext {
+
+  private final boolean requestFlow;
+  private final boolean errorFlow;
+  private final Executor executor;
+  private final List<Fault> faults = new ArrayList<>();
+  private final CountDownLatch resumed = new CountDownLatch(1);
+
+  /** Creates a context in a request flow that runs tasks on the common fork-join pool. */
+  public InMemoryExecutionContext() {
+    this(true, false, ForkJoinPool.commonPool());
+  }
+
+  /**
+   * @param requestFlow Whether the context is in a request flow
+   * @param errorFlow Whether the context is in an error flow
+   * @param executor Executor running submitted tasks
+   */
+  public InMemoryExecutionContext(boolean requestFlow, boolean errorFlow, Executor executor) {
+    this.requestFlow = requestFlow;
+    this.errorFlow = errorFlow;
+    this.executor = executor;
+  }
+
+  /** @return null, there is no logging marker outside of Apigee */
+  @Override
+  public Marker getMarker() {
+    return null;
+  }
+
+  @Override
+  public boolean isRequestFlow() {
+    return requestFlow;
+  }
+
+  @Override
+  public boolean isErrorFlow() {
+    return errorFlow;
+  }
+
+  @Override
+  public void submitTask(Runnable task) {
+    executor.execute(task);
+  }
+
+  @Override
+  public void scheduleTask(Runnable task, long delay, TimeUnit unit) {
+    Scheduler.INSTANCE.schedule(() -> executor.execute(task), delay, unit);
+  }
+
+  @Override
+  public void submitTask(Runnable task, Callback callback, Object context) {
+    executor.execute(() -> callback.callback(task, context));
+  }
+
+  @Override
+  public void resume() {
+    resumed.countDown();
+  }
+
+  @Override
+  public void resume(Fault fault) {
+    addFault(fault);
+    resumed.countDown();
+  }
+
+  /**
+   * Waits for the flow to be resumed.
+   *
+   * @param timeout Maximum time to wait
+   * @param unit Unit of timeout
+   * @return true if the flow was resumed, false if the timeout elapsed first
+   * @throws InterruptedException if the current thread is interrupted while waiting
+   */
+  public boolean awaitResume(long timeout, TimeUnit unit) throws InterruptedException {
+    return resumed.await(timeout, unit);
+  }
+
+  @Override
+  public Collection<Fault> getFaults() {
+    synchronized (faults) {
+      return Collections.unmodifiableList(new ArrayList<>(faults));
+    }
+  }
+
+  @Override
+  public Fault getFault() {
+    synchronized (faults) {
+      return faults.isEmpty() ? null : faults.get(faults.size() - 1);
+    }
+  }
+
+  @Override
+  public void addFault(Fault fault) {
+    synchronized (faults) {
+      faults.add(fault);
+    }
+  }
+
+  /** Daemon thread delaying scheduled tasks, started on first use. */
+  private static final class Scheduler {
+    static final ScheduledExecutorService INSTANCE =
+        new ScheduledThreadPoolExecutor(
+            1,
+            r -> {
+              Thread thread = new Thread(r, "testkit-scheduler");
+              thread.setDaemon(true);
+              return thread;
+            });
+  }
+}
@@ -0,0 +1,287 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.apigee.calloutbaseclass.testkit;
+
+import com.apigee.flow.message.Message;
+import com.apigee.flow.message.TransportMessage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Message held in memory, standing in for an Apigee request or response in tests. Header names are
+ * case-insensitive and query parameter names case-sensitive, as in Apigee. Content is held as
+ * bytes; {@link #getContent()} decodes it as UTF-8.
+ *
+ * <p>All methods are thread-safe, so a message can be shared by concurrent requests.
+ */
+public final class InMemoryMessage implements Message {
+
+  private static final byte[] EMPTY = new byte[0];
+
+  private final ConcurrentMap<String, List<String>> headers =
+      new ConcurrentSkipListMap<>(String.CASE_INSENSITIVE_ORDER);
+  private final ConcurrentMap<String, List<String>> queryParams = new ConcurrentSkipListMap<>();
+  private final ConcurrentMap<String, Object> variables = new ConcurrentHashMap<>();
+  private volatile byte[] content = EMPTY;
+
+  /** @return Content as bytes, without copying; callers must not modify the array */
+  public byte[] getContentBytes() {
+    return content;
+  }
+
+  /**
+   * Replaces the content.
+   *
+   * @param content New content, not copied
+   */
+  public void setContent(byte[] content) {
+    this.content = content;
+  }
+
+  @Override
+  public String getContent() {
+    return new String(content, StandardCharsets.UTF_8);
+  }
+
+  @Override
+  public InputStream getContentAsStream() {
+    return new ByteArrayInputStream(content);
+  }
+
+  @Override
+  public void setContent(InputStream stream) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    try (InputStream in = stream) {
+      int n;
+      while ((n = in.read(buffer)) >= 0) {
+        out.write(buffer, 0, n);
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    this.content = out.toByteArray();
+  }
+
+  @Override
+  public void setContent(String content) {
+    this.content = content == null ? EMPTY : content.getBytes(StandardCharsets.UTF_8);
+  }
+
+  @Override
+  public Set<String> getHeaderNames() {
+    return Collections.unmodifiableSet(headers.keySet());
+  }
+
+  @Override
+  public String getHeader(String name) {
+    return getHeader(name, 0);
+  }
+
+  @Override
+  public String getHeader(String name, int index) {
+    return get(headers, name, index);
+  }
+
+  @Override
+  public List<String> getHeaders(String name) {
+    return getAll(headers, name);
+  }
+
+  @Override
+  public String getHeadersAsString(String name) {
+    List<String> values = headers.get(name);
+    return values == null ? null : String.join(",", values);
+  }
+
+  @Override
+  public Object getHeadersAsObject(String name) {
+    return getAll(headers, name);
+  }
+
+  @Override
+  public boolean setHeader(String name, Object value) {
+    return set(headers, name, value);
+  }
+
+  @Override
+  public boolean setHeader(String name, int index, Object value) {
+    return set(headers, name, index, value);
+  }
+
+  @Override
+  public boolean removeHeader(String name) {
+    return headers.remove(name) != null;
+  }
+
+  @Override
+  public boolean removeHeader(String name, int index) {
+    return remove(headers, name, index);
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public <T> T getVariable(String name) {
+    return (T) variables.get(name);
+  }
+
+  @Override
+  public boolean setVariable(String name, Object value) {
+    if (value == null) {
+      variables.remove(name);
+    } else {
+      variables.put(name, value);
+    }
+    return true;
+  }
+
+  @Override
+  public boolean removeVariable(String name) {
+    return variables.remove(name) != null;
+  }
+
+  @Override
+  public Set<String> getQueryParamNames() {
+    return Collections.unmodifiableSet(queryParams.keySet());
+  }
+
+  @Override
+  public int getQueryParamsCount() {
+    return queryParams.size();
+  }
+
+  @Override
+  public String getQueryParam(String name) {
+    return getQueryParam(name, 0);
+  }
+
+  @Override
+  public int getQueryParamValuesCount(String name) {
+    List<String> values = queryParams.get(name);
+    return values == null ? 0 : values.size();
+  }
+
+  @Override
+  public String getQueryParam(String name, int index) {
+    return get(queryParams, name, index);
+  }
+
+  @Override
+  public List<String> getQueryParams(String name) {
+    return getAll(queryParams, name);
+  }
+
+  @Override
+  public String getQueryParamsAsString(String name) {
+    List<String> values = queryParams.get(name);
+    return values == null ? null : String.join(",", values);
+  }
+
+  @Override
+  public boolean setQueryParam(String name, Object value) {
+    return set(queryParams, name, value);
+  }
+
+  @Override
+  public boolean setQueryParam(String name, int index, Object value) {
+    return set(queryParams, name, index, value);
+  }
+
+  @Override
+  public boolean removeQueryParam(String name) {
+    return queryParams.remove(name) != null;
+  }
+
+  @Override
+  public boolean removeQueryParam(String name, int index) {
+    return remove(queryParams, name, index);
+  }
+
+  /** @return null, there is no transport below an in-memory message */
+  @Override
+  public TransportMessage getTransportMessage() {
+    return null;
+  }
+
+  // Value lists are replaced rather than modified, so readers never see a list being changed.
+
+  private static String get(Map<String, List<String>> map, String name, int index) {
+    List<String> values = map.get(name);
+    return values == null || index < 0 || index >= values.size() ? null : values.get(index);
+  }
+
+  private static List<String> getAll(Map<String, List<String>> map, String name) {
+    List<String> values = map.get(name);
+    return values == null ? null : Collections.unmodifiableList(values);
+  }
+
+  private static boolean set(ConcurrentMap<String, List<String>> map, String name, Object value) {
+    if (value == null) {
+      return map.remove(name) != null;
+    }
+    map.put(name, Collections.singletonList(String.valueOf(value)));
+    return true;
+  }
+
+  private static boolean set(
+      ConcurrentMap<String, List<String>> map, String name, int index, Object value) {
+    boolean[] set = new boolean[1];
+    map.compute(
+        name,
+        (key, values) -> {
+          int size = values == null ? 0 : values.size();
+          if (index < 0 || index > size) {
+            return values;
+          }
+          List<String> updated = values == null ? new ArrayList<>() : new ArrayList<>(values);
+          if (index == size) {
+            updated.add(String.valueOf(value));
+          } else {
+            updated.set(index, String.valueOf(value));
+          }
+          set[0] = true;
+          return updated;
+        });
+    return set[0];
+  }
+
+  private static boolean remove(ConcurrentMap<String, List<String>> map, String name, int index) {
+    boolean[] removed = new boolean[1];
+    map.computeIfPresent(
+        name,
+        (key, values) -> {
+          if (index < 0 || index >= values.size()) {
+            return values;
+          }
+          List<String> updated = new ArrayList<>(values);
+          updated.remove(index);
+          removed[0] = true;
+          return updated.isEmpty() ? null : updated;
+        });
+    return removed[0];
+  }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.apigee.calloutbaseclass.testkit;
+
+import com.apigee.flow.FlowInfo;
+import com.apigee.flow.message.Connection;
+import com.apigee.flow.message.FlowContext;
+import com.apigee.flow.message.Message;
+import com.apigee.flow.message.MessageContext;
+import com.apigee.flow.message.TransportMessage;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Message Context held in memory, standing in for the Apigee runtime when running callouts in tests
+ * and load tests. Flow variables are kept in a concurrent map; setting a variable to null removes
+ * it. Variables that are not set fall back to the content, headers and query parameters of the
+ * messages, e.g. "request.content", "request.header.accept" or "message.queryparam.name", where
+ * "message" is the request in a request flow and the response in a response flow.
+ *
+ * <p>All methods are thread-safe. Connections and message creation are not supported.
+ */
+public final class InMemoryMessageContext implements MessageContext {
+
+  private final ConcurrentMap<String, Object> variables = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, FlowInfo> flowInfos = new ConcurrentHashMap<>();
+  private final FlowContext flowContext;
+  private volatile Message request = new InMemoryMessage();
+  private volatile Message response = new InMemoryMessage();
+  private volatile Message error;
+
+  /** Creates a context in the proxy request flow. */
+  public InMemoryMessageContext() {
+    this(FlowContext.PROXY_REQUEST);
+  }
+
+  /** @param flowContext Flow the context is in, which selects the current message */
+  public InMemoryMessageContext(FlowContext flowContext) {
+    this.flowContext = flowContext;
+  }
+
+  /** @return Flow the context is in */
+  public FlowContext getFlowContext() {
+    return flowContext;
+  }
+
+  /** @return true if the context is in a request flow */
+  public boolean isRequestFlow() {
+    return isRequest(flowContext);
+  }
+
+  /** Removes all flow variables, e.g. between simulated requests on one context. */
+  public void clear() {
+    variables.clear();
+  }
+
+  /** @return Snapshot of the flow variables that were set */
+  public Map<String, Object> getVariables() {
+    return Collections.unmodifiableMap(new HashMap<>(variables));
+  }
+
+  private static boolean isRequest(FlowContext flowContext) {
+    return flowContext == FlowContext.PROXY_REQUEST || flowContext == FlowContext.TARGET_REQUEST;
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public <T> T getVariable(String name) {
+    Object value = variables.get(name);
+    return (T) (value != null ? value : getMessageVariable(name));
+  }
+
+  @Override
+  public boolean setVariable(String name, Object value) {
+    if (value == null) {
+      variables.remove(name);
+    } else {
+      variables.put(name, value);
+    }
+    return true;
+  }
+
+  @Override
+  public boolean removeVariable(String name) {
+    return variables.remove(name) != null;
+  }
+
+  @Override
+  @SuppressWarnings({"rawtypes", "unchecked"})
+  public <T extends Comparable> T get(String name) {
+    return (T) getVariable(name);
+  }
+
+  /** Reads "content", "header.*" and "queryparam.*" of request, response or message. */
+  private Object getMessageVariable(String name) {
+    int dot = name.indexOf('.');
+    if (dot < 0) {
+      return null;
+    }
+    Message message;
+    switch (name.substring(0, dot)) {
+      case "request":
+        message = request;
+        break;
+      case "response":
+        message = response;
+        break;
+      case "message":
+        message = getMessage();
+        break;
+      default:
+        return null;
+    }
+    if (message == null) {
+      return null;
+    }
+    String field = name.substring(dot + 1);
+    if (field.equals("content")) {
+      return message.getContent();
+    }
+    if (field.startsWith("header.")) {
+      return message.getHeadersAsString(field.substring("header.".length()));
+    }
+    if (field.startsWith("queryparam.")) {
+      return message.getQueryParamsAsString(field.substring("queryparam.".length()));
+    }
+    return null;
+  }
+
+  @Override
+  public Message getMessage(FlowContext flowContext) {
+    return isRequest(flowContext) ? request : response;
+  }
+
+  @Override
+  public void setMessage(FlowContext flowContext, Message message) {
+    if (isRequest(flowContext)) {
+      request = message;
+    } else {
+      response = message;
+    }
+  }
+
+  @Override
+  public Message getRequestMessage() {
+    return request;
+  }
+
+  @Override
+  public void setRequestMessage(Message message) {
+    request = message;
+  }
+
+  @Override
+  public Message getResponseMessage() {
+    return response;
+  }
+
+  @Override
+  public void setResponseMessage(Message message) {
+    response = message;
+  }
+
+  @Override
+  public Message getErrorMessage() {
+    return error;
+  }
+
+  @Override
+  public void setErrorMessage(Message message) {
+    error = message;
+  }
+
+  @Override
+  public Connection getClientConnection() {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public Connection getTargetConnection() {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public Message getMessage() {
+    return getMessage(flowContext);
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public <T extends FlowInfo> T getFlowInfo(String name) {
+    return (T) flowInfos.get(name);
+  }
+
+  @Override
+  public boolean addFlowInfo(FlowInfo flowInfo) {
+    return flowInfos.putIfAbsent(flowInfo.getIdentifier(), flowInfo) == null;
+  }
+
+  @Override
+  public void removeFlowInfo(String name) {
+    flowInfos.remove(name);
+  }
+
+  @Override
+  public Message createMessage(TransportMessage transportMessage) {
+    throw new UnsupportedOperationException();
+  }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.apigee.calloutbaseclass.testkit;
+
+import java.time.Duration;
+import java.util.Locale;
+
+/**
+ * Results of a {@link LoadTest} run: request and error counts, throughput, latency percentiles and
+ * the bytes allocated per request while the callout executed. {@link #toString()} renders a short
+ * human readable summary.
+ */
+public final class LoadReport {
+
+  private final long requests;
+  private final long errors;
+  private final long elapsedNanos;
+  private final int threads;
+  private final boolean virtualThreads;
+  private final LatencyRecorder latencies;
+  private final long allocatedBytes;
+
+  LoadReport(
+      long requests,
+      long errors,
+      long elapsedNanos,
+      int threads,
+      boolean virtualThreads,
+      LatencyRecorder latencies,
+      long allocatedBytes) {
+    this.requests = requests;
+    this.errors = errors;
+    this.elapsedNanos = elapsedNanos;
+    this.threads = threads;
+    this.virtualThreads = virtualThreads;
+    this.latencies = latencies;
+    this.allocatedBytes = allocatedBytes;
+  }
+
+  /** @return Number of requests executed */
+  public long getRequestCount() {
+    return requests;
+  }
+
+  /** @return Number of requests that aborted, threw an exception or were never resumed */
+  public long getErrorCount() {
+    return errors;
+  }
+
+  /** @return Wall-clock time of the run, excluding warm-up */
+  public Duration getElapsed() {
+    return Duration.ofNanos(elapsedNanos);
+  }
+
+  /** @return Number of threads that executed requests */
+  public int getThreadCount() {
+    return threads;
+  }
+
+  /** @return true if requests were executed on virtual threads */
+  public boolean isVirtualThreads() {
+    return virtualThreads;
+  }
+
+  /** @return Requests per second */
+  public double getThroughput() {
+    return elapsedNanos == 0 ? 0 : requests * 1e9 / elapsedNanos;
+  }
+
+  /**
+   * Estimates a latency percentile, within 6.25%.
+   *
+   * @param percentile Percentile between 0 and 100, e.g. 99.9
+   * @return Latency at the percentile
+   */
+  public Duration getLatencyPercentile(double percentile) {
+    if (percentile < 0 || percentile > 100) {
+      throw new IllegalArgumentException("percentile must be between 0 and 100: " + percentile);
+    }
+    return Duration.ofNanos(latencies.getPercentile(percentile));
+  }
+
+  /** @return Mean latency */
+  public Duration getMeanLatency() {
+    return Duration.ofNanos(latencies.getMeanNanos());
+  }
+
+  /** @return Highest latency */
+  public Duration getMaxLatency() {
+    return Duration.ofNanos(latencies.getMaxNanos());
+  }
+
+  /**
+   * @return Mean number of bytes allocated on the request thread while the callout executed, or -1
+   *     if the JVM cannot measure allocation on the threads used, e.g. virtual threads
+   */
+  public long getAllocatedBytesPerRequest() {
+    return allocatedBytes < 0 || requests == 0 ? -1 : allocatedBytes / requests;
+  }
+
+  @Override
+  public String toString() {
+    long perRequest = getAllocatedBytesPerRequest();
+    return String.format(
+        Locale.ROOT,
+        "requests    %d (%d errors) in %.3fs on %d %s threads%n"
+            + "throughput  %.1f requests/s%n"
+            + "latency     mean %s  p50 %s  p90 %s  p99 %s  p99.9 %s  max %s%n"
+            + "allocation  %s",
+        requests,
+        errors,
+        elapsedNanos / 1e9,
+        threads,
+        virtualThreads ? "virtual" : "platform",
+        getThroughput(),
+        millis(latencies.getMeanNanos()),
+        millis(latencies.getPercentile(50)),
+        millis(latencies.getPercentile(90)),
+        millis(latencies.getPercentile(99)),
+        millis(latencies.getPercentile(99.9)),
+        millis(latencies.getMaxNanos()),
+        perRequest < 0 ? "not measurable" : perRequest + " bytes/request");
+  }
+
+  private static String millis(long nanos) {
+    return String.format(Locale.ROOT, "%.3fms", nanos / 1e6);
+  }
+}
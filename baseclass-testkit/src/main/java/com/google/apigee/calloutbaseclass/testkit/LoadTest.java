@@ -0,0 +1,359 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.apigee.calloutbaseclass.testkit;
+
+import com.apigee.flow.execution.Action;
+import com.apigee.flow.execution.ExecutionResult;
+import com.apigee.flow.execution.spi.Execution;
+import com.apigee.flow.message.FlowContext;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Runs a callout in-process under concurrent load, e.g. to catch throughput, latency or allocation
+ * regressions before deploying it. Every request gets a fresh {@link InMemoryMessageContext},
+ * populated by an initializer, and a fresh {@link InMemoryExecutionContext}. A number of workers
+ * execute requests back to back until a request count or duration is reached:
+ *
+ * <pre>
+ * LoadReport report =
+ *     LoadTest.newBuilder(callout)
+ *         .threads(8)
+ *         .duration(Duration.ofSeconds(30))
+ *         .warmupRequests(10000)
+ *         .initializer(mc -&gt; mc.getRequestMessage().setQueryParam("name", "Ann"))
+ *         .build()
+ *         .run();
+ * </pre>
+ *
+ * <p>A request counts as an error if the callout aborts, throws or pauses the flow without resuming
+ * it. The latency of a paused request lasts until the flow is resumed.
+ */
+public final class LoadTest {
+
+  private static final long DEFAULT_DURATION_NANOS = TimeUnit.SECONDS.toNanos(10);
+  // How long a paused request waits for the callout to resume the flow before it is an error.
+  private static final long RESUME_TIMEOUT_SECONDS = 60;
+  private static final AtomicInteger WORKER_THREAD_NUMBER = new AtomicInteger();
+
+  private final Execution callout;
+  private final int threads;
+  private final boolean virtualThreads;
+  // Long.MAX_VALUE if unbounded.
+  private final long durationNanos;
+  private final long requests;
+  private final long warmupRequests;
+  private final FlowContext flowContext;
+  private final Consumer<? super InMemoryMessageContext> initializer;
+
+  private LoadTest(Builder builder) {
+    this.callout = builder.callout;
+    this.threads = builder.threads;
+    this.virtualThreads = builder.virtualThreads;
+    this.requests = builder.requests;
+    this.durationNanos =
+        builder.durationNanos == 0
+            ? builder.requests == Long.MAX_VALUE ? DEFAULT_DURATION_NANOS : Long.MAX_VALUE
+            : builder.durationNanos;
+    this.warmupRequests = builder.warmupRequests;
+    this.flowContext = builder.flowContext;
+    this.initializer = builder.initializer;
+  }
+
+  /**
+   * Creates a builder for a load test.
+   *
+   * @param callout Callout to execute, shared by all workers as in Apigee
+   * @return New builder
+   */
+  public static Builder newBuilder(Execution callout) {
+    return new Builder(callout);
+  }
+
+  /**
+   * Runs the warm-up requests, if any, then the measured requests.
+   *
+   * @return Report of the measured requests
+   * @throws InterruptedException if the current thread is interrupted while waiting for workers
+   */
+  public LoadReport run() throws InterruptedException {
+    ExecutorService executor = virtualThreads ? newVirtualThreadExecutor() : null;
+    boolean virtual = executor != null;
+    if (executor == null) {
+      executor = Executors.newFixedThreadPool(threads, LoadTest::newWorkerThread);
+    }
+    try {
+      if (warmupRequests > 0) {
+        runPhase(executor, warmupRequests, Long.MAX_VALUE);
+      }
+      long start = System.nanoTime();
+      Worker total = runPhase(executor, requests, durationNanos);
+      long elapsed = System.nanoTime() - start;
+      return new LoadReport(
+          total.latencies.getCount(),
+          total.errors,
+          elapsed,
+          threads,
+          virtual,
+          total.latencies,
+          total.allocatedBytes);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private Worker runPhase(ExecutorService executor, long requests, long durationNanos)
+      throws InterruptedException {
+    AtomicLong issued = new AtomicLong();
+    long start = System.nanoTime();
+    List<Future<Worker>> futures = new ArrayList<>(threads);
+    for (int i = 0; i < threads; i++) {
+      futures.add(
+          executor.submit(
+              () -> {
+                Worker worker = new Worker();
+                worker.run(issued, requests, start, durationNanos);
+                return worker;
+              }));
+    }
+    Worker total = new Worker();
+    for (Future<Worker> future : futures) {
+      try {
+        total.add(future.get());
+      } catch (ExecutionException e) {
+        // The initializer threw; callout exceptions are counted as errors.
+        for (Future<Worker> f : futures) {
+          f.cancel(true);
+        }
+        if (e.getCause() instanceof RuntimeException) {
+          throw (RuntimeException) e.getCause();
+        }
+        throw new IllegalStateException("Load test worker failed", e.getCause());
+      }
+    }
+    return total;
+  }
+
+  /** @return Executor starting a virtual thread per task, or null before Java 21 */
+  private static ExecutorService newVirtualThreadExecutor() {
+    try {
+      return (ExecutorService)
+          Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (ReflectiveOperationException e) {
+      return null;
+    }
+  }
+
+  private static Thread newWorkerThread(Runnable r) {
+    Thread thread = new Thread(r, "loadtest-worker-" + WORKER_THREAD_NUMBER.incrementAndGet());
+    thread.setDaemon(true);
+    return thread;
+  }
+
+  /** Executes requests on one thread and keeps its own statistics, so workers never contend. */
+  private final class Worker {
+    final LatencyRecorder latencies = new LatencyRecorder();
+    long errors;
+    // -1 once allocation could not be measured.
+    long allocatedBytes;
+
+    void run(AtomicLong issued, long requests, long start, long durationNanos) {
+      // Bytes allocated by reading the allocation counter itself, subtracted from each request.
+      long overhead = AllocationMeter.currentThreadAllocatedBytes();
+      overhead = AllocationMeter.currentThreadAllocatedBytes() - overhead;
+      while ((requests == Long.MAX_VALUE || issued.getAndIncrement() < requests)
+          && System.nanoTime() - start < durationNanos
+          && !Thread.currentThread().isInterrupted()) {
+        InMemoryMessageContext mc = new InMemoryMessageContext(flowContext);
+        initializer.accept(mc);
+        InMemoryExecutionContext ec =
+            new InMemoryExecutionContext(mc.isRequestFlow(), false, ForkJoinPool.commonPool());
+        long allocatedBefore = AllocationMeter.currentThreadAllocatedBytes();
+        long t0 = System.nanoTime();
+        boolean success = execute(mc, ec);
+        long t1 = System.nanoTime();
+        long allocatedAfter = AllocationMeter.currentThreadAllocatedBytes();
+        latencies.record(t1 - t0);
+        if (!success) {
+          errors++;
+        }
+        if (allocatedBefore < 0 || allocatedBytes < 0) {
+          allocatedBytes = -1;
+        } else {
+          allocatedBytes += Math.max(0, allocatedAfter - allocatedBefore - overhead);
+        }
+      }
+    }
+
+    private boolean execute(InMemoryMessageContext mc, InMemoryExecutionContext ec) {
+      ExecutionResult result;
+      try {
+        result = callout.execute(mc, ec);
+      } catch (RuntimeException e) {
+        return false;
+      }
+      if (result == null || result.getAction() == Action.ABORT) {
+        return false;
+      }
+      if (result.getAction() == Action.PAUSE) {
+        try {
+          return ec.awaitResume(RESUME_TIMEOUT_SECONDS, TimeUnit.SECONDS) && ec.getFault() == null;
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return false;
+        }
+      }
+      return true;
+    }
+
+    void add(Worker other) {
+      latencies.add(other.latencies);
+      errors += other.errors;
+      if (allocatedBytes < 0 || other.allocatedBytes < 0) {
+        allocatedBytes = -1;
+      } else {
+        allocatedBytes += other.allocatedBytes;
+      }
+    }
+  }
+
+  /** Builder for {@link LoadTest}. */
+  public static final class Builder {
+    private final Execution callout;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private boolean virtualThreads;
+    private long durationNanos;
+    private long requests = Long.MAX_VALUE;
+    private long warmupRequests;
+    private FlowContext flowContext = FlowContext.PROXY_REQUEST;
+    private Consumer<? super InMemoryMessageContext> initializer = mc -> {};
+
+    private Builder(Execution callout) {
+      if (callout == null) {
+        throw new IllegalArgumentException("callout must not be null");
+      }
+      this.callout = callout;
+    }
+
+    /**
+     * Sets the number of workers executing requests concurrently, by default the number of
+     * processors.
+     *
+     * @param threads Number of workers
+     * @return This builder
+     */
+    public Builder threads(int threads) {
+      if (threads <= 0) {
+        throw new IllegalArgumentException("threads must be positive: " + threads);
+      }
+      this.threads = threads;
+      return this;
+    }
+
+    /**
+     * Runs each worker on a virtual thread on Java 21 and above. Older runtimes fall back to
+     * platform threads, which the report shows. Allocation cannot be measured on virtual threads.
+     *
+     * @param virtualThreads Whether to use virtual threads
+     * @return This builder
+     */
+    public Builder virtualThreads(boolean virtualThreads) {
+      this.virtualThreads = virtualThreads;
+      return this;
+    }
+
+    /**
+     * Bounds the run by time. Without a duration or request count a run lasts 10 seconds.
+     *
+     * @param duration Duration of the measured run
+     * @return This builder
+     */
+    public Builder duration(Duration duration) {
+      if (duration.isNegative() || duration.isZero()) {
+        throw new IllegalArgumentException("duration must be positive: " + duration);
+      }
+      this.durationNanos = duration.toNanos();
+      return this;
+    }
+
+    /**
+     * Bounds the run by request count. If a duration is set too, the run ends at whichever bound is
+     * reached first.
+     *
+     * @param requests Number of measured requests
+     * @return This builder
+     */
+    public Builder requests(long requests) {
+      if (requests <= 0) {
+        throw new IllegalArgumentException("requests must be positive: " + requests);
+      }
+      this.requests = requests;
+      return this;
+    }
+
+    /**
+     * Executes requests before the measured run, e.g. to let the JIT compile the callout.
+     *
+     * @param warmupRequests Number of unmeasured requests, 0 by default
+     * @return This builder
+     */
+    public Builder warmupRequests(long warmupRequests) {
+      if (warmupRequests < 0) {
+        throw new IllegalArgumentException(
+            "warmupRequests must not be negative: " + warmupRequests);
+      }
+      this.warmupRequests = warmupRequests;
+      return this;
+    }
+
+    /**
+     * Sets the flow the requests run in, the proxy request flow by default.
+     *
+     * @param flowContext Flow of the message contexts
+     * @return This builder
+     */
+    public Builder flowContext(FlowContext flowContext) {
+      this.flowContext = flowContext;
+      return this;
+    }
+
+    /**
+     * Sets how each request's message context is populated before the callout executes, e.g. with
+     * flow variables, headers or content. Called concurrently by the workers.
+     *
+     * @param initializer Populates a fresh message context
+     * @return This builder
+     */
+    public Builder initializer(Consumer<? super InMemoryMessageContext> initializer) {
+      this.initializer = initializer;
+      return this;
+    }
+
+    /** @return New load test */
+    public LoadTest build() {
+      return new LoadTest(this);
+    }
+  }
+}
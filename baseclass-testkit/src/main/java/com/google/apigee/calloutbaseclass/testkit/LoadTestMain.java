@@ -0,0 +1,258 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.apigee.calloutbaseclass.testkit;
+
+import com.apigee.flow.execution.spi.Execution;
+import com.apigee.flow.message.FlowContext;
+import com.apigee.flow.message.Message;
+
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Command line entry point running a callout from its policy file under load and printing the
+ * report, e.g.:
+ *
+ * <pre>
+ * java -jar target/testkit.jar --jar callout/target/my-callout.jar \
+ *     --threads 8 --duration 30s --queryparam name=Ann apiproxy/policies/my-callout.xml
+ * </pre>
+ *
+ * <p>The argument is a JavaCallout policy file, or an apiproxy directory holding exactly one
+ * JavaCallout policy unless --policy selects one by name. Run without arguments for all options.
+ */
+public final class LoadTestMain {
+
+  private static final String USAGE =
+      "Usage: LoadTestMain [options] <policy file or apiproxy directory>\n"
+          + "  --jar <file>             callout jar to load, repeatable\n"
+          + "  --policy <name>          JavaCallout policy to run from an apiproxy directory\n"
+          + "  --threads <n>            concurrent workers, default: number of processors\n"
+          + "  --virtual-threads        run workers on virtual threads where available\n"
+          + "  --duration <d>           measured run time, e.g. 30s, 500ms or 2m, default: 10s\n"
+          + "  --requests <n>           measured request count\n"
+          + "  --warmup <n>             unmeasured requests run first, default: 0\n"
+          + "  --property <name=value>  add or replace a policy property, repeatable\n"
+          + "  --variable <name=value>  flow variable set on every request, repeatable\n"
+          + "  --header <name=value>    request header, repeatable\n"
+          + "  --queryparam <name=val>  request query parameter, repeatable\n"
+          + "  --content <text|@file>   request content\n"
+          + "  --response-flow          run in the proxy response flow; headers and content\n"
+          + "                           then go to the response\n";
+
+  private LoadTestMain() {}
+
+  public static void main(String[] args) throws Exception {
+    try {
+      System.out.println(run(args));
+    } catch (IllegalArgumentException e) {
+      System.err.println(e.getMessage());
+      System.err.print(USAGE);
+      System.exit(2);
+    }
+  }
+
+  static LoadReport run(String[] args) throws Exception {
+    List<URL> jars = new ArrayList<>();
+    String policyName = null;
+    Path target = null;
+    List<String[]> properties = new ArrayList<>();
+    Map<String, String> variables = new LinkedHashMap<>();
+    List<String[]> headers = new ArrayList<>();
+    List<String[]> queryParams = new ArrayList<>();
+    byte[] content = null;
+    boolean responseFlow = false;
+    // Options are applied once the callout exists, since the builder needs it.
+    List<Consumer<LoadTest.Builder>> settings = new ArrayList<>();
+
+    for (int i = 0; i < args.length; i++) {
+      String arg = args[i];
+      if (!arg.startsWith("--")) {
+        if (target != null) {
+          throw new IllegalArgumentException("Only one policy file or directory is allowed");
+        }
+        target = Paths.get(arg);
+        continue;
+      }
+      if (arg.equals("--virtual-threads")) {
+        settings.add(b -> b.virtualThreads(true));
+        continue;
+      }
+      if (arg.equals("--response-flow")) {
+        responseFlow = true;
+        continue;
+      }
+      if (i + 1 == args.length) {
+        throw new IllegalArgumentException("Missing value of " + arg);
+      }
+      String value = args[++i];
+      switch (arg) {
+        case "--jar":
+          jars.add(Paths.get(value).toUri().toURL());
+          break;
+        case "--policy":
+          policyName = value;
+          break;
+        case "--threads":
+          int threads = parseInt(arg, value);
+          settings.add(b -> b.threads(threads));
+          break;
+        case "--duration":
+          Duration duration = parseDuration(value);
+          settings.add(b -> b.duration(duration));
+          break;
+        case "--requests":
+          long requests = parseLong(arg, value);
+          settings.add(b -> b.requests(requests));
+          break;
+        case "--warmup":
+          long warmup = parseLong(arg, value);
+          settings.add(b -> b.warmupRequests(warmup));
+          break;
+        case "--property":
+          properties.add(splitPair(arg, value));
+          break;
+        case "--variable":
+          String[] variable = splitPair(arg, value);
+          variables.put(variable[0], variable[1]);
+          break;
+        case "--header":
+          headers.add(splitPair(arg, value));
+          break;
+        case "--queryparam":
+          queryParams.add(splitPair(arg, value));
+          break;
+        case "--content":
+          content =
+              value.startsWith("@")
+                  ? Files.readAllBytes(Paths.get(value.substring(1)))
+                  : value.getBytes(StandardCharsets.UTF_8);
+          break;
+        default:
+          throw new IllegalArgumentException("Unknown option " + arg);
+      }
+    }
+    if (target == null) {
+      throw new IllegalArgumentException("Missing policy file or apiproxy directory");
+    }
+
+    CalloutPolicy policy = findPolicy(target, policyName);
+    for (String[] property : properties) {
+      policy = policy.withProperty(property[0], property[1]);
+    }
+    ClassLoader classLoader =
+        new URLClassLoader(jars.toArray(new URL[0]), LoadTestMain.class.getClassLoader());
+    Execution callout = policy.newInstance(classLoader);
+
+    byte[] messageContent = content;
+    LoadTest.Builder builder =
+        LoadTest.newBuilder(callout)
+            .flowContext(responseFlow ? FlowContext.PROXY_RESPONSE : FlowContext.PROXY_REQUEST)
+            .initializer(
+                mc -> {
+                  variables.forEach(mc::setVariable);
+                  InMemoryMessage message = (InMemoryMessage) mc.getMessage();
+                  for (String[] header : headers) {
+                    List<String> values = message.getHeaders(header[0]);
+                    message.setHeader(header[0], values == null ? 0 : values.size(), header[1]);
+                  }
+                  Message request = mc.getRequestMessage();
+                  for (String[] param : queryParams) {
+                    request.setQueryParam(
+                        param[0], request.getQueryParamValuesCount(param[0]), param[1]);
+                  }
+                  if (messageContent != null) {
+                    message.setContent(messageContent);
+                  }
+                });
+    for (Consumer<LoadTest.Builder> setting : settings) {
+      setting.accept(builder);
+    }
+    System.err.println("Running " + policy);
+    return builder.build().run();
+  }
+
+  private static CalloutPolicy findPolicy(Path target, String policyName) throws IOException {
+    if (!Files.isDirectory(target)) {
+      return CalloutPolicy.load(target);
+    }
+    List<CalloutPolicy> policies = CalloutPolicy.loadAll(target);
+    if (policyName != null) {
+      for (CalloutPolicy policy : policies) {
+        if (policy.getName().equals(policyName)) {
+          return policy;
+        }
+      }
+      throw new IllegalArgumentException("No JavaCallout policy named " + policyName);
+    }
+    if (policies.size() != 1) {
+      throw new IllegalArgumentException(
+          target + " holds " + policies.size() + " JavaCallout policies, select one with --policy");
+    }
+    return policies.get(0);
+  }
+
+  private static String[] splitPair(String option, String value) {
+    int equals = value.indexOf('=');
+    if (equals <= 0) {
+      throw new IllegalArgumentException(option + " must be name=value: " + value);
+    }
+    return new String[] {value.substring(0, equals), value.substring(equals + 1)};
+  }
+
+  private static int parseInt(String option, String value) {
+    try {
+      return Integer.parseInt(value);
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException(option + " must be a number: " + value);
+    }
+  }
+
+  private static long parseLong(String option, String value) {
+    try {
+      return Long.parseLong(value);
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException(option + " must be a number: " + value);
+    }
+  }
+
+  /** Parses "500ms", "30s", "2m" or a plain number of seconds. */
+  static Duration parseDuration(String value) {
+    try {
+      if (value.endsWith("ms")) {
+        return Duration.ofMillis(Long.parseLong(value.substring(0, value.length() - 2)));
+      }
+      if (value.endsWith("s")) {
+        return Duration.ofSeconds(Long.parseLong(value.substring(0, value.length() - 1)));
+      }
+      if (value.endsWith("m")) {
+        return Duration.ofMinutes(Long.parseLong(value.substring(0, value.length() - 1)));
+      }
+      return Duration.ofSeconds(Long.parseLong(value));
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("--duration must be like 500ms, 30s or 2m: " + value);
+    }
+  }
+}
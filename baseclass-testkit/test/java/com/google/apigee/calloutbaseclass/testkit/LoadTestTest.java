@@ -0,0 +1,179 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apigee.calloutbaseclass.testkit;
+
+import com.apigee.flow.execution.ExecutionContext;
+import com.apigee.flow.execution.ExecutionResult;
+import com.apigee.flow.execution.spi.Execution;
+import com.apigee.flow.message.FlowContext;
+import com.apigee.flow.message.MessageContext;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+public final class LoadTestTest {
+
+  /** Counts requests and aborts those with an "abort" flow variable. */
+  public static final class CountingCallout implements Execution {
+    final Map<String, String> properties;
+    final AtomicLong calls = new AtomicLong();
+
+    public CountingCallout(Map<String, String> properties) {
+      this.properties = properties;
+    }
+
+    @Override
+    public ExecutionResult execute(MessageContext mc, ExecutionContext ec) {
+      calls.incrementAndGet();
+      mc.setVariable("greeting", "Hi " + mc.getVariable("request.queryparam.name"));
+      return mc.getVariable("abort") == null ? ExecutionResult.SUCCESS : ExecutionResult.ABORT;
+    }
+  }
+
+  @Test
+  public void testRunsRequestCount() throws InterruptedException {
+    CountingCallout callout = new CountingCallout(null);
+    LoadReport report =
+        LoadTest.newBuilder(callout).threads(4).requests(1000).warmupRequests(100).build().run();
+
+    Assert.assertEquals(1100, callout.calls.get());
+    Assert.assertEquals(1000, report.getRequestCount());
+    Assert.assertEquals(0, report.getErrorCount());
+    Assert.assertEquals(4, report.getThreadCount());
+    Assert.assertTrue(report.getThroughput() > 0);
+    Assert.assertTrue(
+        report.getLatencyPercentile(50).compareTo(report.getLatencyPercentile(99)) <= 0);
+    Assert.assertTrue(report.getLatencyPercentile(99).compareTo(report.getMaxLatency()) <= 0);
+  }
+
+  @Test
+  public void testCountsAbortsAsErrors() throws InterruptedException {
+    LoadReport report =
+        LoadTest.newBuilder(new CountingCallout(null))
+            .threads(2)
+            .requests(10)
+            .initializer(mc -> mc.setVariable("abort", "true"))
+            .build()
+            .run();
+
+    Assert.assertEquals(10, report.getErrorCount());
+  }
+
+  @Test
+  public void testVirtualThreadsFallBackBeforeJava21() throws InterruptedException {
+    LoadReport report =
+        LoadTest.newBuilder(new CountingCallout(null))
+            .threads(2)
+            .virtualThreads(true)
+            .requests(10)
+            .build()
+            .run();
+
+    Assert.assertEquals(10, report.getRequestCount());
+    boolean available;
+    try {
+      Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      available = true;
+    } catch (NoSuchMethodException e) {
+      available = false;
+    }
+    Assert.assertEquals(available, report.isVirtualThreads());
+  }
+
+  @Test
+  public void testStopsAfterDuration() throws InterruptedException {
+    LoadReport report =
+        LoadTest.newBuilder(new CountingCallout(null))
+            .threads(1)
+            .duration(Duration.ofMillis(100))
+            .build()
+            .run();
+
+    Assert.assertTrue(report.getRequestCount() > 0);
+    Assert.assertTrue(report.getElapsed().toMillis() >= 100);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testRejectsZeroThreads() {
+    LoadTest.newBuilder(new CountingCallout(null)).threads(0);
+  }
+
+  @Test
+  public void testMessageVariablesFallBackToMessages() {
+    InMemoryMessageContext mc = new InMemoryMessageContext(FlowContext.PROXY_RESPONSE);
+    mc.getRequestMessage().setQueryParam("name", "Ann");
+    mc.getRequestMessage().setHeader("Accept", "text/plain");
+    mc.getResponseMessage().setContent("done");
+
+    Assert.assertEquals("Ann", mc.getVariable("request.queryparam.name"));
+    Assert.assertEquals("text/plain", mc.getVariable("request.header.accept"));
+    Assert.assertEquals("done", mc.getVariable("message.content"));
+    mc.setVariable("message.content", "override");
+    Assert.assertEquals("override", mc.getVariable("message.content"));
+    mc.setVariable("message.content", null);
+    Assert.assertEquals("done", mc.getVariable("message.content"));
+  }
+
+  @Test
+  public void testLoadsPolicyAndCreatesCallout() throws Exception {
+    Path apiproxy = Files.createTempDirectory("apiproxy");
+    Path policies = Files.createDirectory(apiproxy.resolve("policies"));
+    String policy =
+        "<JavaCallout name='counting'>\n"
+            + "  <ClassName>" + CountingCallout.class.getName() + "</ClassName>\n"
+            + "  <Properties>\n"
+            + "    <Property name='name'>{request.queryparam.name}</Property>\n"
+            + "  </Properties>\n"
+            + "</JavaCallout>\n";
+    Files.write(policies.resolve("counting.xml"), policy.getBytes(StandardCharsets.UTF_8));
+    Files.write(
+        policies.resolve("assign.xml"),
+        "<AssignMessage name='assign'/>".getBytes(StandardCharsets.UTF_8));
+
+    CalloutPolicy loaded = CalloutPolicy.loadAll(apiproxy).get(0);
+    Assert.assertEquals("counting", loaded.getName());
+    Assert.assertEquals("{request.queryparam.name}", loaded.getProperties().get("name"));
+
+    CountingCallout callout =
+        (CountingCallout)
+            loaded.withProperty("extra", "1").newInstance(getClass().getClassLoader());
+    Assert.assertEquals("1", callout.properties.get("extra"));
+  }
+
+  @Test
+  public void testMainRunsPolicyFile() throws Exception {
+    Path file = Files.createTempFile("policy", ".xml");
+    String policy =
+        "<JavaCallout name='counting'><ClassName>"
+            + CountingCallout.class.getName()
+            + "</ClassName></JavaCallout>";
+    Files.write(file, policy.getBytes(StandardCharsets.UTF_8));
+
+    LoadReport report =
+        LoadTestMain.run(
+            new String[] {
+              "--threads", "2", "--requests", "50", "--queryparam", "name=Ann", file.toString()
+            });
+    Assert.assertEquals(50, report.getRequestCount());
+    Assert.assertEquals(0, report.getErrorCount());
+  }
+}
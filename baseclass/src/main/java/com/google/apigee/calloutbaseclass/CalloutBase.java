@@ -13,36 +13,181 @@
  */
 package com.google.apigee.calloutbaseclass;
 
+import com.apigee.flow.execution.ExecutionContext;
+import com.apigee.flow.execution.ExecutionResult;
+import com.apigee.flow.execution.spi.Execution;
+import com.apigee.flow.message.Message;
 import com.apigee.flow.message.MessageContext;
 
-import java.io.PrintWriter;
-import java.io.StringWriter;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
 
-/** Base Class for Apigee Java Callouts containing commonly used methods across callouts. */
+/**
+ * Base Class for Apigee Java Callouts containing commonly used methods across callouts.
+ *
+ * <p>Callouts extending it implement execute themselves. Callouts extending {@link
+ * TemplateCalloutBase} implement executeCallout instead, which runs with an optional deadline,
+ * rate limit and circuit breaker.
+ */
 public abstract class CalloutBase {
 
   private static final String ERROR_FLOW_VARIABLE = "callout_error";
   private static final String EXCEPTION_FLOW_VARIABLE = "callout_exception";
   private static final String EXCEPTION_STACKTRACE_FLOW_VARIABLE = "callout_exception_stacktrace";
   private static final String LOG_FLOW_VARIABLE = "callout_log";
+  // Buffer behind a structured callout_log, so that later statements of the request are added to
+  // its records instead of to the rendered log.
+  private static final String LOG_BUFFER_FLOW_VARIABLE = "callout_log.buffer";
+  private static final String ELAPSED_FLOW_VARIABLE = "callout_elapsed_ns";
 
-  // Matches two words separated by a colon or semicolon and a space, intended for common error
-  // strings.
-  // (e.g. matches "example: error" or "example; error")
-  private static final String COMMON_ERROR_PATTERN_STRING = "^(.+?)[:;] (.+)$";
-  private static final Pattern commonErrorPattern = Pattern.compile(COMMON_ERROR_PATTERN_STRING);
-  // Matches any string between two curly braces, intended for flow variable references
-  // (e.g. matches "{request.test}", but also matches "{asdf}")
-  private static final String VARIABLE_REFERENCE_PATTERN_STRING =
-      "(.*?)\\{([^\\{\\} :][^\\{\\} ]*?)\\}(.*?)";
-  private static final Pattern variableReferencePattern =
-      Pattern.compile(VARIABLE_REFERENCE_PATTERN_STRING);
+  // Caps on the callout log flow variable; the oldest lines are dropped beyond them.
+  private static final String LOG_MAX_LINES_PROPERTY = "callout-log-max-lines";
+  private static final String LOG_MAX_CHARS_PROPERTY = "callout-log-max-chars";
+  private static final int DEFAULT_LOG_MAX_LINES = 1000;
+  private static final int DEFAULT_LOG_MAX_CHARS = 64 * 1024;
+  // Statements below the level are discarded before they are formatted. Caller location is opt-in
+  // since capturing it walks the stack.
+  private static final String LOG_LEVEL_PROPERTY = "callout-log-level";
+  private static final String LOG_CALLER_LOCATION_PROPERTY = "callout-log-caller-location";
+  // Encoding of the log flow variable: text lines, or records encoded when the variable is written.
+  private static final String LOG_FORMAT_PROPERTY = "callout-log-format";
+  // Rendering of the exception stacktrace flow variable. By default it is the full stack trace.
+  private static final String EXCEPTION_STACKTRACE_PROPERTY = "callout-exception-stacktrace";
+  private static final String EXCEPTION_STACKTRACE_MAX_FRAMES_PROPERTY =
+      "callout-exception-stacktrace-max-frames";
+  private static final String EXCEPTION_STACKTRACE_EXCLUDE_PROPERTY =
+      "callout-exception-stacktrace-exclude";
+  private static final String EXCEPTION_STACKTRACE_CACHE_SIZE_PROPERTY =
+      "callout-exception-stacktrace-cache-size";
+  // Latency and outcome metrics of executeInstrumented, shared by all instances of the class.
+  private static final String METRICS_PROPERTY = "callout-metrics";
+  private static final String METRICS_FLOW_VARIABLE_PROPERTY = "callout-metrics-flow-variable";
+  // Time budget of executeCallout and the circuit breaker around it. The breaker is disabled unless
+  // a failure rate is set.
+  private static final String TIMEOUT_PROPERTY = "callout-timeout";
+  private static final String CIRCUIT_BREAKER_FAILURE_RATE_PROPERTY =
+      "callout-circuit-breaker-failure-rate";
+  private static final String CIRCUIT_BREAKER_MINIMUM_CALLS_PROPERTY =
+      "callout-circuit-breaker-minimum-calls";
+  private static final String CIRCUIT_BREAKER_WINDOW_PROPERTY = "callout-circuit-breaker-window";
+  private static final String CIRCUIT_BREAKER_OPEN_DURATION_PROPERTY =
+      "callout-circuit-breaker-open-duration";
+  private static final int DEFAULT_CIRCUIT_BREAKER_MINIMUM_CALLS = 20;
+  private static final Duration DEFAULT_CIRCUIT_BREAKER_WINDOW = Duration.ofSeconds(10);
+  private static final Duration DEFAULT_CIRCUIT_BREAKER_OPEN_DURATION = Duration.ofSeconds(30);
+  private static final String DEADLINE_EXCEEDED_ERROR = "Deadline exceeded";
+  // Node-local rate limit checked by TemplateCalloutBase, disabled unless a number of permits is
+  // set. The key property may reference flow variables, e.g. "{client_id}", and is resolved per
+  // request.
+  private static final String RATE_LIMIT_PERMITS_PROPERTY = "callout-rate-limit-permits";
+  private static final String RATE_LIMIT_PERIOD_PROPERTY = "callout-rate-limit-period";
+  private static final String RATE_LIMIT_KEY_PROPERTY = "callout-rate-limit-key";
+  private static final String RATE_LIMIT_MAX_KEYS_PROPERTY = "callout-rate-limit-max-keys";
+  private static final Duration DEFAULT_RATE_LIMIT_PERIOD = Duration.ofSeconds(1);
+  private static final int DEFAULT_RATE_LIMIT_MAX_KEYS = 10000;
+  private static final String RATE_LIMIT_REMAINING_FLOW_VARIABLE = "callout_rate_limit_remaining";
+  private static final String RATE_LIMIT_RETRY_AFTER_FLOW_VARIABLE =
+      "callout_rate_limit_retry_after";
+  // Guard and charset of the message content helpers. Without a charset property, the charset of
+  // the Content-Type header is used, falling back to UTF-8.
+  private static final String CONTENT_MAX_BYTES_PROPERTY = "callout-content-max-bytes";
+  private static final String CONTENT_CHARSET_PROPERTY = "callout-content-charset";
+  private static final int CONTENT_CHUNK_SIZE = 8 * 1024;
+  // Level of the compression helpers, and the content size up to which they leave content
+  // uncompressed.
+  private static final String COMPRESSION_LEVEL_PROPERTY = "callout-compression-level";
+  private static final String COMPRESSION_MIN_BYTES_PROPERTY = "callout-compression-min-bytes";
+  private static final int DEFAULT_COMPRESSION_LEVEL = 6;
+  // Each "callout-json-path.<name>" property declares a JSON path named <name>.
+  private static final String JSON_PATH_PROPERTY_PREFIX = "callout-json-path.";
+  // Variables read into the variable buffer when a request scope opens.
+  private static final String PREFETCH_VARIABLES_PROPERTY = "callout-prefetch-variables";
+  private static final String REQUEST_SCOPE_PROPERTY = "callout-request-scope";
+  // Each "callout-xml-path.<name>" property declares an XML path named <name>.
+  private static final String XML_PATH_PROPERTY_PREFIX = "callout-xml-path.";
+  // Number of synthetic requests run on a background thread after construction, to load and
+  // compile the request paths before the first requests need them.
+  private static final String WARMUP_ITERATIONS_PROPERTY = "callout-warmup-iterations";
+  // Bound on the fan-out branches of the callout running at the same time, across requests.
+  private static final String FANOUT_MAX_CONCURRENCY_PROPERTY = "callout-fanout-max-concurrency";
+  // Bound on the specs passed to resolveVariableReferences whose compiled templates are kept.
+  private static final int RESOLVED_TEMPLATE_CACHE_SIZE = 256;
 
-  private final Map<String, String> properties;
+  // Property values are fixed for the lifetime of the callout, so each one is trimmed and compiled
+  // once here rather than on every request.
+  private final Map<String, PropertyTemplate> properties;
+  // Templates of the specs passed to resolveVariableReferences, which callouts usually call with a
+  // few fixed specs on every request.
+  private final CalloutCache<String, PropertyTemplate> resolvedTemplates =
+      CalloutCache.<String, PropertyTemplate>newBuilder()
+          .maximumSize(RESOLVED_TEMPLATE_CACHE_SIZE)
+          .build();
+  // Scope opened by the request currently executing on each thread, if any. Not static, so that
+  // callouts sharing a thread never see each other's scopes.
+  private final ThreadLocal<RequestScope> activeScope = new ThreadLocal<>();
+  private final int logMaxLines;
+  private final int logMaxChars;
+  private final LogLevel logLevel;
+  private final boolean logCallerLocation;
+  private final LogFormat logFormat;
+  // Null if the stacktrace flow variable is disabled.
+  private final StackTraceRenderer stackTraceRenderer;
+  // Null if metrics are disabled.
+  private final CalloutMetrics metrics;
+  private final boolean metricsFlowVariable;
+  // 0 if executeCallout has no deadline.
+  private final long timeoutNanos;
+  // Null if the circuit breaker is disabled.
+  private final CircuitBreaker circuitBreaker;
+  // Null if rate limiting is disabled.
+  private final RateLimiter rateLimiter;
+  private final long contentMaxBytes;
+  // Null to use the charset of the Content-Type header.
+  private final Charset contentCharset;
+  private final int compressionLevel;
+  private final int compressionMinBytes;
+  private final JsonFields jsonFields;
+  private final XmlFields xmlFields;
+  private final String[] prefetchVariables;
+  // Whether TemplateCalloutBase runs executeCallout in a scope memoizing properties and buffering
+  // writes.
+  private final boolean requestScope;
+  private final Semaphore fanOutPermits;
+  // Null if the subclass declared no schema.
+  private final PropertySchema schema;
+  private final long startupNanos;
+  private final int warmUpIterations;
+  // Null if the warm-up is disabled.
+  private final Thread warmUpThread;
+  // 0 until the warm-up has finished.
+  private volatile long warmUpNanos;
+  // Variables referenced by properties; writing one drops the properties resolved by the scope.
+  private final Set<String> referencedVariables = new HashSet<>();
+  // True if a property reads variables whose names are only known when it is resolved, in which
+  // case writing any variable drops the resolved properties.
+  private final boolean dynamicReferences;
 
   /**
    * Constructor taking in String key and value properties map
@@ -50,7 +195,326 @@ public abstract class CalloutBase {
    * @param properties String key and value map
    */
   public CalloutBase(Map<String, String> properties) {
-    this.properties = properties;
+    this(properties, null);
+  }
+
+  /**
+   * Constructor validating the properties against the schema declared by the subclass, so that
+   * missing required properties and malformed literal values fail when the callout is deployed
+   * rather than on a request. If the "callout-warmup-iterations" property is set, that many
+   * synthetic requests then run against an in-memory Message Context on a daemon thread, off the
+   * request path.
+   *
+   * @param properties String key and value map
+   * @param schema Properties the callout expects, or null to skip validation
+   * @throws IllegalArgumentException listing every property that violates the schema
+   */
+  public CalloutBase(Map<String, String> properties, PropertySchema schema) {
+    long start = System.nanoTime();
+    this.properties = new HashMap<>();
+    boolean dynamic = false;
+    for (Map.Entry<String, String> property : properties.entrySet()) {
+      String value = property.getValue() == null ? "" : property.getValue().trim();
+      PropertyTemplate template = PropertyTemplate.compile(value);
+      this.properties.put(property.getKey(), template);
+      Collections.addAll(referencedVariables, template.getVariableNames());
+      dynamic |= template.hasDynamicReferences();
+    }
+    this.dynamicReferences = dynamic;
+    this.schema = schema;
+    if (schema != null) {
+      schema.validate(this.properties);
+    }
+    this.logMaxLines = getPositiveIntSetting(LOG_MAX_LINES_PROPERTY, DEFAULT_LOG_MAX_LINES);
+    this.logMaxChars = getPositiveIntSetting(LOG_MAX_CHARS_PROPERTY, DEFAULT_LOG_MAX_CHARS);
+    this.logLevel = getLogLevelSetting(LOG_LEVEL_PROPERTY, LogLevel.INFO);
+    this.logCallerLocation = getBooleanSetting(LOG_CALLER_LOCATION_PROPERTY, false);
+    PropertyTemplate format = getSetting(LOG_FORMAT_PROPERTY);
+    this.logFormat =
+        format == null ? LogFormat.TEXT : format.getEnum(LOG_FORMAT_PROPERTY, LogFormat.class);
+    this.stackTraceRenderer =
+        getBooleanSetting(EXCEPTION_STACKTRACE_PROPERTY, true)
+            ? new StackTraceRenderer(
+                getPositiveIntSetting(EXCEPTION_STACKTRACE_MAX_FRAMES_PROPERTY, 0),
+                getListSetting(EXCEPTION_STACKTRACE_EXCLUDE_PROPERTY),
+                getPositiveIntSetting(EXCEPTION_STACKTRACE_CACHE_SIZE_PROPERTY, 0))
+            : null;
+    this.metrics =
+        getBooleanSetting(METRICS_PROPERTY, false) ? CalloutMetrics.forClass(getClass()) : null;
+    this.metricsFlowVariable = getBooleanSetting(METRICS_FLOW_VARIABLE_PROPERTY, false);
+    this.timeoutNanos = getDurationSetting(TIMEOUT_PROPERTY, Duration.ZERO).toNanos();
+    int failureRate = getPositiveIntSetting(CIRCUIT_BREAKER_FAILURE_RATE_PROPERTY, 0);
+    if (failureRate > 100) {
+      throw new IllegalArgumentException(
+          String.format(
+              "%s must be a percentage: %d", CIRCUIT_BREAKER_FAILURE_RATE_PROPERTY, failureRate));
+    }
+    this.circuitBreaker =
+        failureRate > 0
+            ? new CircuitBreaker(
+                failureRate,
+                getPositiveIntSetting(
+                    CIRCUIT_BREAKER_MINIMUM_CALLS_PROPERTY, DEFAULT_CIRCUIT_BREAKER_MINIMUM_CALLS),
+                getDurationSetting(CIRCUIT_BREAKER_WINDOW_PROPERTY, DEFAULT_CIRCUIT_BREAKER_WINDOW)
+                    .toNanos(),
+                getDurationSetting(
+                        CIRCUIT_BREAKER_OPEN_DURATION_PROPERTY,
+                        DEFAULT_CIRCUIT_BREAKER_OPEN_DURATION)
+                    .toNanos(),
+                System::nanoTime)
+            : null;
+    int permits = getPositiveIntSetting(RATE_LIMIT_PERMITS_PROPERTY, 0);
+    this.rateLimiter =
+        permits > 0
+            ? RateLimiter.newBuilder()
+                .permits(permits)
+                .period(getDurationSetting(RATE_LIMIT_PERIOD_PROPERTY, DEFAULT_RATE_LIMIT_PERIOD))
+                .maximumKeys(
+                    getPositiveIntSetting(
+                        RATE_LIMIT_MAX_KEYS_PROPERTY, DEFAULT_RATE_LIMIT_MAX_KEYS))
+                .build()
+            : null;
+    int maxBytes = getPositiveIntSetting(CONTENT_MAX_BYTES_PROPERTY, 0);
+    this.contentMaxBytes = maxBytes > 0 ? maxBytes : Long.MAX_VALUE;
+    PropertyTemplate charset = getSetting(CONTENT_CHARSET_PROPERTY);
+    this.contentCharset = charset == null ? null : Charset.forName(charset.getSpec());
+    PropertyTemplate level = getSetting(COMPRESSION_LEVEL_PROPERTY);
+    this.compressionLevel =
+        level == null ? DEFAULT_COMPRESSION_LEVEL : level.getInt(COMPRESSION_LEVEL_PROPERTY);
+    if (compressionLevel < 0 || compressionLevel > 9) {
+      throw new IllegalArgumentException(
+          String.format(
+              "%s must be between 0 and 9: %d", COMPRESSION_LEVEL_PROPERTY, compressionLevel));
+    }
+    this.compressionMinBytes = getPositiveIntSetting(COMPRESSION_MIN_BYTES_PROPERTY, 0);
+    this.jsonFields = JsonFields.compile(getPrefixedSettings(JSON_PATH_PROPERTY_PREFIX));
+    this.xmlFields = XmlFields.compile(getPrefixedSettings(XML_PATH_PROPERTY_PREFIX));
+    this.prefetchVariables = getListSetting(PREFETCH_VARIABLES_PROPERTY);
+    this.requestScope = getBooleanSetting(REQUEST_SCOPE_PROPERTY, false);
+    this.fanOutPermits =
+        new Semaphore(
+            getPositiveIntSetting(
+                FANOUT_MAX_CONCURRENCY_PROPERTY, FanOutThreads.defaultMaxConcurrency()));
+    this.warmUpIterations = getPositiveIntSetting(WARMUP_ITERATIONS_PROPERTY, 0);
+    this.startupNanos = System.nanoTime() - start;
+    if (metrics != null) {
+      metrics.recordStartup(startupNanos);
+    }
+    // Last, so that the warm-up thread sees every field of the base class assigned.
+    this.warmUpThread = warmUpIterations > 0 ? startWarmUp() : null;
+  }
+
+  /** @return Started daemon thread running the warm-up */
+  private Thread startWarmUp() {
+    Thread thread = new Thread(this::runWarmUp, "callout-warmup-" + getClass().getSimpleName());
+    thread.setDaemon(true);
+    thread.start();
+    return thread;
+  }
+
+  private void runWarmUp() {
+    long start = System.nanoTime();
+    try {
+      warmUp();
+    } catch (RuntimeException e) {
+      // The warm-up only prepares code paths; failing leaves the callout cold, not broken.
+      return;
+    }
+    warmUpNanos = System.nanoTime() - start;
+    if (metrics != null) {
+      metrics.recordWarmUp(warmUpNanos);
+    }
+  }
+
+  /**
+   * Waits for the warm-up to finish, for tests.
+   *
+   * @param timeoutMillis Time to wait at most
+   * @return true if the warm-up is disabled or has finished
+   */
+  boolean awaitWarmUp(long timeoutMillis) throws InterruptedException {
+    if (warmUpThread != null) {
+      warmUpThread.join(timeoutMillis);
+    }
+    return warmUpThread == null || !warmUpThread.isAlive();
+  }
+
+  /**
+   * Runs synthetic requests against an in-memory Message Context, so that the classes and JIT
+   * compiled code of property resolution, logging and exception handling are ready before the
+   * requests. Every other iteration sets the referenced flow variables, so that both lookups and
+   * defaults run. It starts while the subclass may still be under construction, so it only runs
+   * private code paths of the base class: code of the subclass, and methods it may override, are
+   * never called.
+   */
+  private void warmUp() {
+    WarmUpMessageContext messageContext = new WarmUpMessageContext();
+    Exception exception = new IllegalStateException("warm-up");
+    for (int i = 0; i < warmUpIterations; i++) {
+      messageContext.clear();
+      if (i % 2 == 1) {
+        for (String name : referencedVariables) {
+          messageContext.setVariable(name, "warm-up");
+        }
+      }
+      for (String name : properties.keySet()) {
+        resolveProperty(name, messageContext, null);
+      }
+      RequestScope scope = openScope(messageContext, true);
+      try {
+        for (String name : properties.keySet()) {
+          warmUpProperty(name, scope);
+        }
+        if (logLevel.compareTo(LogLevel.INFO) <= 0) {
+          String message = formatLogTemplate("warm-up {}", new Object[] {i});
+          appendLog(LogLevel.INFO, message, null, messageContext);
+        }
+        storeExceptionVariables(exception, messageContext);
+      } finally {
+        scope.close();
+      }
+    }
+  }
+
+  private void warmUpProperty(String propertyName, RequestScope scope) {
+    PropertySchema.Type type = schema == null ? null : schema.getTypes().get(propertyName);
+    Optional<String> value = scope.getOptionalProperty(propertyName);
+    if (!value.isPresent()) {
+      return;
+    }
+    try {
+      if (type == PropertySchema.Type.INT) {
+        PropertyParser.parseInt(propertyName, value.get());
+      } else if (type == PropertySchema.Type.LONG) {
+        PropertyParser.parseLong(propertyName, value.get());
+      } else if (type == PropertySchema.Type.BOOLEAN) {
+        PropertyParser.parseBoolean(propertyName, value.get());
+      } else if (type == PropertySchema.Type.DURATION) {
+        PropertyParser.parseDuration(propertyName, value.get());
+      } else if (type == PropertySchema.Type.LIST) {
+        PropertyParser.parseList(value.get());
+      }
+    } catch (IllegalArgumentException e) {
+      // Synthetic values need not be of the type of the property.
+    }
+  }
+
+  /**
+   * Retrieves the template of a base class setting. Settings are read once at construction, so
+   * they cannot reference flow variables.
+   *
+   * @param propertyName Name of the setting property
+   * @return Template of the setting, or null if the property is not set
+   * @throws IllegalArgumentException if the property references flow variables
+   */
+  private PropertyTemplate getSetting(String propertyName) {
+    PropertyTemplate template = properties.get(propertyName);
+    if (template == null || !template.isConstant()) {
+      if (template != null) {
+        throw new IllegalArgumentException(
+            String.format(
+                "%s cannot reference flow variables: %s", propertyName, template.getSpec()));
+      }
+      return null;
+    }
+    return template.isLiteral() ? template : null;
+  }
+
+  /**
+   * Reads a base class setting from a property that must be a literal positive integer.
+   *
+   * @param propertyName Name of the setting property
+   * @param defaultValue Value used if the property is not set
+   * @return Value of the setting
+   * @throws IllegalArgumentException if the property is not a positive integer
+   */
+  private int getPositiveIntSetting(String propertyName, int defaultValue) {
+    PropertyTemplate setting = getSetting(propertyName);
+    if (setting == null) {
+      return defaultValue;
+    }
+    int value = setting.getInt(propertyName);
+    if (value <= 0) {
+      throw new IllegalArgumentException(
+          String.format("%s must be a positive integer: %d", propertyName, value));
+    }
+    return value;
+  }
+
+  /**
+   * Reads a base class setting from a property that must be a literal "true" or "false".
+   *
+   * @param propertyName Name of the setting property
+   * @param defaultValue Value used if the property is not set
+   * @return Value of the setting
+   * @throws IllegalArgumentException if the property is not a boolean
+   */
+  private boolean getBooleanSetting(String propertyName, boolean defaultValue) {
+    PropertyTemplate setting = getSetting(propertyName);
+    return setting == null ? defaultValue : setting.getBoolean(propertyName);
+  }
+
+  /**
+   * Reads a base class setting from a property that must be a literal duration.
+   *
+   * @param propertyName Name of the setting property
+   * @param defaultValue Value used if the property is not set
+   * @return Value of the setting
+   * @throws IllegalArgumentException if the property is not a non-negative duration
+   */
+  private Duration getDurationSetting(String propertyName, Duration defaultValue) {
+    PropertyTemplate setting = getSetting(propertyName);
+    if (setting == null) {
+      return defaultValue;
+    }
+    Duration value = setting.getDuration(propertyName);
+    if (value.isNegative()) {
+      throw new IllegalArgumentException(
+          String.format("%s must not be negative: %s", propertyName, setting.getSpec()));
+    }
+    return value;
+  }
+
+  /**
+   * Reads the base class settings whose property names start with a prefix.
+   *
+   * @param prefix Prefix of the setting properties
+   * @return Value of each set setting, by property name without the prefix
+   * @throws IllegalArgumentException if a property references flow variables
+   */
+  private Map<String, String> getPrefixedSettings(String prefix) {
+    Map<String, String> settings = new HashMap<>();
+    for (String propertyName : properties.keySet()) {
+      PropertyTemplate setting = propertyName.startsWith(prefix) ? getSetting(propertyName) : null;
+      if (setting != null) {
+        settings.put(propertyName.substring(prefix.length()), setting.getSpec());
+      }
+    }
+    return settings;
+  }
+
+  /**
+   * Reads a base class setting from a property holding a literal comma separated list.
+   *
+   * @param propertyName Name of the setting property
+   * @return Non-empty trimmed list items, or an empty array if the property is not set
+   */
+  private String[] getListSetting(String propertyName) {
+    PropertyTemplate setting = getSetting(propertyName);
+    return setting == null ? new String[0] : setting.getList().toArray(new String[0]);
+  }
+
+  /**
+   * Reads a base class setting from a property that must be a literal log level name.
+   *
+   * @param propertyName Name of the setting property
+   * @param defaultValue Value used if the property is not set
+   * @return Value of the setting
+   * @throws IllegalArgumentException if the property is not a log level
+   */
+  private LogLevel getLogLevelSetting(String propertyName, LogLevel defaultValue) {
+    PropertyTemplate setting = getSetting(propertyName);
+    return setting == null ? defaultValue : setting.getEnum(propertyName, LogLevel.class);
   }
 
   /**
@@ -62,11 +526,36 @@ public abstract class CalloutBase {
    * @return Optional of property value in properties map or empty
    */
   public Optional<String> getOptionalProperty(String propertyName, MessageContext messageContext) {
-    if (!this.properties.containsKey(propertyName)) {
+    RequestScope scope = getBufferingScope(messageContext);
+    if (scope != null) {
+      return scope.getOptionalProperty(propertyName);
+    }
+    return resolveProperty(propertyName, messageContext, null);
+  }
+
+  /**
+   * Resolves a property without consulting the resolved properties of the active request scope.
+   *
+   * @param propertyName Name of property to retrieve value
+   * @param messageContext Message Context
+   * @param variables Variable buffer of the request, or null to read the Message Context directly
+   * @return Optional of property value in properties map or empty
+   */
+  Optional<String> resolveProperty(
+      String propertyName, MessageContext messageContext, VariableBuffer variables) {
+    PropertyTemplate template = this.properties.get(propertyName);
+    if (template == null) {
       return Optional.empty();
     }
-    String value =
-        resolveVariableReferences(this.properties.get(propertyName).trim(), messageContext);
+    String value;
+    // Warm-up requests are left out of the metrics.
+    if (metrics == null || messageContext instanceof WarmUpMessageContext) {
+      value = template.resolve(messageContext, variables);
+    } else {
+      long start = System.nanoTime();
+      value = template.resolve(messageContext, variables);
+      metrics.recordPropertyResolution(System.nanoTime() - start);
+    }
     if ("".equals(value)) {
       return Optional.empty();
     }
@@ -87,108 +576,1118 @@ public abstract class CalloutBase {
         .orElseThrow(IllegalArgumentException::new);
   }
 
+  /**
+   * Retrieves a required int property. Values without flow variable references are parsed once,
+   * when the callout is constructed.
+   *
+   * @param propertyName Name of property to retrieve value
+   * @param messageContext Message Context
+   * @return Value of property in properties map
+   * @throws IllegalArgumentException if the property does not exist, resolves to an empty string
+   *     or is not an int.
+   */
+  public int getIntProperty(String propertyName, MessageContext messageContext) {
+    PropertyTemplate literal = getLiteralTemplate(propertyName);
+    if (literal != null) {
+      return literal.getInt(propertyName);
+    }
+    return PropertyParser.parseInt(propertyName, getRequiredProperty(propertyName, messageContext));
+  }
+
+  /**
+   * Retrieves an optional int property.
+   *
+   * @param propertyName Name of property to retrieve value
+   * @param defaultValue Value returned if the property does not exist or resolves to an empty
+   *     string
+   * @param messageContext Message Context
+   * @return Value of property in properties map or defaultValue
+   * @throws IllegalArgumentException if the property is not an int.
+   */
+  public int getIntProperty(String propertyName, int defaultValue, MessageContext messageContext) {
+    PropertyTemplate literal = getLiteralTemplate(propertyName);
+    if (literal != null) {
+      return literal.getInt(propertyName);
+    }
+    Optional<String> value = getOptionalProperty(propertyName, messageContext);
+    return value.isPresent() ? PropertyParser.parseInt(propertyName, value.get()) : defaultValue;
+  }
+
+  /**
+   * Retrieves a required long property. Values without flow variable references are parsed once,
+   * when the callout is constructed.
+   *
+   * @param propertyName Name of property to retrieve value
+   * @param messageContext Message Context
+   * @return Value of property in properties map
+   * @throws IllegalArgumentException if the property does not exist, resolves to an empty string
+   *     or is not a long.
+   */
+  public long getLongProperty(String propertyName, MessageContext messageContext) {
+    PropertyTemplate literal = getLiteralTemplate(propertyName);
+    if (literal != null) {
+      return literal.getLong(propertyName);
+    }
+    return PropertyParser.parseLong(
+        propertyName, getRequiredProperty(propertyName, messageContext));
+  }
+
+  /**
+   * Retrieves an optional long property.
+   *
+   * @param propertyName Name of property to retrieve value
+   * @param defaultValue Value returned if the property does not exist or resolves to an empty
+   *     string
+   * @param messageContext Message Context
+   * @return Value of property in properties map or defaultValue
+   * @throws IllegalArgumentException if the property is not a long.
+   */
+  public long getLongProperty(
+      String propertyName, long defaultValue, MessageContext messageContext) {
+    PropertyTemplate literal = getLiteralTemplate(propertyName);
+    if (literal != null) {
+      return literal.getLong(propertyName);
+    }
+    Optional<String> value = getOptionalProperty(propertyName, messageContext);
+    return value.isPresent() ? PropertyParser.parseLong(propertyName, value.get()) : defaultValue;
+  }
+
+  /**
+   * Retrieves a required boolean property, "true" or "false" ignoring case. Values without flow
+   * variable references are parsed once, when the callout is constructed.
+   *
+   * @param propertyName Name of property to retrieve value
+   * @param messageContext Message Context
+   * @return Value of property in properties map
+   * @throws IllegalArgumentException if the property does not exist, resolves to an empty string
+   *     or is not a boolean.
+   */
+  public boolean getBooleanProperty(String propertyName, MessageContext messageContext) {
+    PropertyTemplate literal = getLiteralTemplate(propertyName);
+    if (literal != null) {
+      return literal.getBoolean(propertyName);
+    }
+    return PropertyParser.parseBoolean(
+        propertyName, getRequiredProperty(propertyName, messageContext));
+  }
+
+  /**
+   * Retrieves an optional boolean property, "true" or "false" ignoring case.
+   *
+   * @param propertyName Name of property to retrieve value
+   * @param defaultValue Value returned if the property does not exist or resolves to an empty
+   *     string
+   * @param messageContext Message Context
+   * @return Value of property in properties map or defaultValue
+   * @throws IllegalArgumentException if the property is not a boolean.
+   */
+  public boolean getBooleanProperty(
+      String propertyName, boolean defaultValue, MessageContext messageContext) {
+    PropertyTemplate literal = getLiteralTemplate(propertyName);
+    if (literal != null) {
+      return literal.getBoolean(propertyName);
+    }
+    Optional<String> value = getOptionalProperty(propertyName, messageContext);
+    return value.isPresent()
+        ? PropertyParser.parseBoolean(propertyName, value.get())
+        : defaultValue;
+  }
+
+  /**
+   * Retrieves a required duration property, either in ISO-8601 form (e.g. "PT1.5S") or as a number
+   * followed by one of the units ms, s, m, h or d (e.g. "500ms"). A number without unit is in
+   * milliseconds. Values without flow variable references are parsed once, when the callout is
+   * constructed.
+   *
+   * @param propertyName Name of property to retrieve value
+   * @param messageContext Message Context
+   * @return Value of property in properties map
+   * @throws IllegalArgumentException if the property does not exist, resolves to an empty string
+   *     or is not a duration.
+   */
+  public Duration getDurationProperty(String propertyName, MessageContext messageContext) {
+    PropertyTemplate literal = getLiteralTemplate(propertyName);
+    if (literal != null) {
+      return literal.getDuration(propertyName);
+    }
+    return PropertyParser.parseDuration(
+        propertyName, getRequiredProperty(propertyName, messageContext));
+  }
+
+  /**
+   * Retrieves an optional duration property in the forms accepted by {@link
+   * #getDurationProperty(String, MessageContext)}.
+   *
+   * @param propertyName Name of property to retrieve value
+   * @param defaultValue Value returned if the property does not exist or resolves to an empty
+   *     string
+   * @param messageContext Message Context
+   * @return Value of property in properties map or defaultValue
+   * @throws IllegalArgumentException if the property is not a duration.
+   */
+  public Duration getDurationProperty(
+      String propertyName, Duration defaultValue, MessageContext messageContext) {
+    PropertyTemplate literal = getLiteralTemplate(propertyName);
+    if (literal != null) {
+      return literal.getDuration(propertyName);
+    }
+    Optional<String> value = getOptionalProperty(propertyName, messageContext);
+    return value.isPresent()
+        ? PropertyParser.parseDuration(propertyName, value.get())
+        : defaultValue;
+  }
+
+  /**
+   * Retrieves a comma separated list property. Items are trimmed and empty items are left out.
+   * Values without flow variable references are split once, when the callout is constructed.
+   *
+   * @param propertyName Name of property to retrieve value
+   * @param messageContext Message Context
+   * @return Unmodifiable list of items, empty if the property does not exist
+   */
+  public List<String> getListProperty(String propertyName, MessageContext messageContext) {
+    PropertyTemplate literal = getLiteralTemplate(propertyName);
+    if (literal != null) {
+      return literal.getList();
+    }
+    Optional<String> value = getOptionalProperty(propertyName, messageContext);
+    return value.isPresent() ? PropertyParser.parseList(value.get()) : Collections.emptyList();
+  }
+
+  /**
+   * Retrieves a required enum property, the name of a constant of the enum ignoring case.
+   *
+   * @param propertyName Name of property to retrieve value
+   * @param type Enum class
+   * @param messageContext Message Context
+   * @return Value of property in properties map
+   * @throws IllegalArgumentException if the property does not exist, resolves to an empty string
+   *     or is not a constant of the enum.
+   */
+  public <E extends Enum<E>> E getEnumProperty(
+      String propertyName, Class<E> type, MessageContext messageContext) {
+    PropertyTemplate literal = getLiteralTemplate(propertyName);
+    if (literal != null) {
+      return literal.getEnum(propertyName, type);
+    }
+    return PropertyParser.parseEnum(
+        propertyName, type, getRequiredProperty(propertyName, messageContext));
+  }
+
+  /**
+   * Retrieves an optional enum property, the name of a constant of the enum ignoring case.
+   *
+   * @param propertyName Name of property to retrieve value
+   * @param type Enum class
+   * @param defaultValue Value returned if the property does not exist or resolves to an empty
+   *     string
+   * @param messageContext Message Context
+   * @return Value of property in properties map or defaultValue
+   * @throws IllegalArgumentException if the property is not a constant of the enum.
+   */
+  public <E extends Enum<E>> E getEnumProperty(
+      String propertyName, Class<E> type, E defaultValue, MessageContext messageContext) {
+    PropertyTemplate literal = getLiteralTemplate(propertyName);
+    if (literal != null) {
+      return literal.getEnum(propertyName, type);
+    }
+    Optional<String> value = getOptionalProperty(propertyName, messageContext);
+    return value.isPresent()
+        ? PropertyParser.parseEnum(propertyName, type, value.get())
+        : defaultValue;
+  }
+
+  /**
+   * Retrieves the template of a property if its value has no flow variable references, so that its
+   * typed value can be read from the template instead of being parsed again.
+   *
+   * @param propertyName Name of property
+   * @return Template of the property, or null if it does not exist, is empty or has references
+   */
+  private PropertyTemplate getLiteralTemplate(String propertyName) {
+    PropertyTemplate template = properties.get(propertyName);
+    return template != null && template.isLiteral() ? template : null;
+  }
+
+  /**
+   * Runs the body of execute, recording its latency and outcome in the metrics of the callout class
+   * if the "callout-metrics" property is true. If "callout-metrics-flow-variable" is also true, the
+   * latency is set in the callout_elapsed_ns flow variable.
+   *
+   * @param messageContext Message Context of the current request
+   * @param executionContext Execution Context of the current request
+   * @param body Body of execute
+   * @return Result of body
+   */
+  protected ExecutionResult executeInstrumented(
+      MessageContext messageContext, ExecutionContext executionContext, Execution body) {
+    if (metrics == null) {
+      return body.execute(messageContext, executionContext);
+    }
+    long start = System.nanoTime();
+    ExecutionResult result;
+    try {
+      result = body.execute(messageContext, executionContext);
+    } catch (RuntimeException | Error e) {
+      recordMetrics(start, null, messageContext);
+      throw e;
+    }
+    recordMetrics(start, result, messageContext);
+    return result;
+  }
+
+  /**
+   * Records an execution in the metrics, if enabled.
+   *
+   * @param start System.nanoTime() when the execution started
+   * @param result Result of the execution, or null if it threw an exception
+   * @param messageContext Message Context of the current request
+   */
+  void recordMetrics(long start, ExecutionResult result, MessageContext messageContext) {
+    if (metrics == null) {
+      return;
+    }
+    long elapsed = System.nanoTime() - start;
+    if (result == null) {
+      metrics.recordException(elapsed);
+    } else {
+      metrics.recordExecution(result, elapsed);
+    }
+    if (metricsFlowVariable) {
+      setVariable(ELAPSED_FLOW_VARIABLE, Long.toString(elapsed), messageContext);
+    }
+  }
+
+  /** @return Time budget of each request in nanoseconds, or 0 if requests have no deadline */
+  long getTimeoutNanos() {
+    return timeoutNanos;
+  }
+
+  /** @return Circuit breaker around each request, or null if it is disabled */
+  CircuitBreaker getCircuitBreaker() {
+    return circuitBreaker;
+  }
+
+  /** @return Whether requests run in a scope memoizing properties and buffering writes */
+  boolean usesRequestScope() {
+    return requestScope;
+  }
+
+  /**
+   * Sets the error flow variable.
+   *
+   * @param error Error message
+   * @param messageContext Message Context
+   */
+  void setErrorVariable(String error, MessageContext messageContext) {
+    setVariable(ERROR_FLOW_VARIABLE, error, messageContext);
+  }
+
+  /**
+   * Takes a permit of the "callout-rate-limit-permits" rate limit for the key resolved from the
+   * "callout-rate-limit-key" property, all requests sharing one key if it is not set. Sets the
+   * permits left in the callout_rate_limit_remaining flow variable and the whole seconds until a
+   * permit is available, 0 if one was taken, in callout_rate_limit_retry_after. A request whose key
+   * does not fit "callout-rate-limit-max-keys" is allowed and counted in the metrics. Called by
+   * {@link TemplateCalloutBase#execute}; other callouts can call it themselves.
+   *
+   * @param messageContext Message Context of the current request
+   * @return true if the request may proceed, also if rate limiting is disabled
+   */
+  public boolean tryAcquireRateLimit(MessageContext messageContext) {
+    if (rateLimiter == null) {
+      return true;
+    }
+    String key = getOptionalProperty(RATE_LIMIT_KEY_PROPERTY, messageContext).orElse("");
+    RateLimiter.Result result = rateLimiter.tryAcquire(key);
+    if (!result.isTracked() && metrics != null) {
+      metrics.recordUntrackedRateLimitKey();
+    }
+    long retryAfterSeconds = (result.getRetryAfterNanos() + 999_999_999L) / 1_000_000_000L;
+    setVariable(
+        RATE_LIMIT_REMAINING_FLOW_VARIABLE, Long.toString(result.getRemaining()), messageContext);
+    setVariable(
+        RATE_LIMIT_RETRY_AFTER_FLOW_VARIABLE, Long.toString(retryAfterSeconds), messageContext);
+    return result.isAllowed();
+  }
+
+  /**
+   * Retrieves the time left until the deadline of the current request.
+   *
+   * @param messageContext Message Context of the current request
+   * @return Nanoseconds left, negative once the deadline has passed, or Long.MAX_VALUE if the
+   *     request has no deadline
+   */
+  public long getRemainingNanos(MessageContext messageContext) {
+    RequestScope scope = getActiveScope(messageContext);
+    return scope == null ? Long.MAX_VALUE : scope.getRemainingNanos();
+  }
+
+  /**
+   * Fails fast if the deadline of the current request has passed.
+   *
+   * @param messageContext Message Context of the current request
+   * @throws TimeoutException if the deadline has passed
+   */
+  public void checkDeadline(MessageContext messageContext) throws TimeoutException {
+    long remaining = getRemainingNanos(messageContext);
+    if (remaining < 0) {
+      throw new TimeoutException(
+          DEADLINE_EXCEEDED_ERROR + " by " + TimeUnit.NANOSECONDS.toMillis(-remaining) + "ms");
+    }
+  }
+
+  /**
+   * Opens a fan-out to run independent sub-tasks of the current request in parallel. Joining it
+   * waits at most until the deadline of the request, if it has one.
+   *
+   * @param messageContext Message Context of the current request
+   * @return New fan-out, to be closed by the same thread
+   */
+  public FanOut openFanOut(MessageContext messageContext) {
+    return new FanOut(fanOutPermits, getRemainingNanos(messageContext));
+  }
+
+  /** @return Time the constructor took, including schema validation */
+  public Duration getStartupTime() {
+    return Duration.ofNanos(startupNanos);
+  }
+
+  /**
+   * @return Time the "callout-warmup-iterations" synthetic requests took, or zero if the warm-up
+   *     is disabled or has not finished
+   */
+  public Duration getWarmUpTime() {
+    return Duration.ofNanos(warmUpNanos);
+  }
+
+  /** @return Metrics of the callout class, or null if the "callout-metrics" property is not true */
+  public CalloutMetrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * Opens a request scope bound to the Message Context. Until the scope is closed, property lookups
+   * for this Message Context on the current thread resolve each property at most once. The scope
+   * must be closed by the same thread, typically with try-with-resources around the body of
+   * execute.
+   *
+   * @param messageContext Message Context of the current request
+   * @return The opened scope
+   */
+  public RequestScope openScope(MessageContext messageContext) {
+    return openScope(messageContext, true);
+  }
+
+  /**
+   * Opens a request scope bound to the Message Context.
+   *
+   * @param messageContext Message Context of the current request
+   * @param buffered Whether the scope memoizes properties and buffers log statements and variable
+   *     writes, or only carries the deadline of the request
+   * @return The opened scope
+   */
+  RequestScope openScope(MessageContext messageContext, boolean buffered) {
+    RequestScope scope = new RequestScope(this, messageContext, activeScope.get(), buffered);
+    activeScope.set(scope);
+    if (buffered && prefetchVariables.length > 0) {
+      scope.getVariableBuffer().prefetch(prefetchVariables, messageContext);
+    }
+    return scope;
+  }
+
+  /**
+   * Retrieves the scope opened on the current thread for the Message Context.
+   *
+   * @param messageContext Message Context
+   * @return The open scope bound to messageContext, or null if there is none
+   */
+  RequestScope getActiveScope(MessageContext messageContext) {
+    RequestScope scope = activeScope.get();
+    return scope != null && scope.isBoundTo(messageContext) ? scope : null;
+  }
+
+  /**
+   * Retrieves the scope opened on the current thread for the Message Context, if it memoizes
+   * properties and buffers log statements and variable writes.
+   *
+   * @param messageContext Message Context
+   * @return The open buffered scope bound to messageContext, or null if there is none
+   */
+  private RequestScope getBufferingScope(MessageContext messageContext) {
+    RequestScope scope = getActiveScope(messageContext);
+    return scope != null && scope.isBuffered() ? scope : null;
+  }
+
+  /**
+   * Unbinds a closed scope from the current thread, restoring the closest enclosing open scope.
+   *
+   * @param scope Scope being closed
+   */
+  void closeScope(RequestScope scope) {
+    if (activeScope.get() != scope) {
+      // Closed out of order; it is skipped when the scopes opened after it are closed.
+      return;
+    }
+    RequestScope previous = scope.getPrevious();
+    while (previous != null && previous.isClosed()) {
+      previous = previous.getPrevious();
+    }
+    if (previous == null) {
+      activeScope.remove();
+    } else {
+      activeScope.set(previous);
+    }
+  }
+
   /**
    * Resolves references to flow variables (i.e. variable references between two curly braces
-   * {request.example}) or the spec if not a variable reference.
+   * {request.example}) or the spec if not a variable reference. References may also be
+   * expressions, e.g. {lower(request.header.accept) ?? 'none'}; see the README for the functions.
+   * Compiled specs are cached, so repeated calls with the same spec do not parse it again.
    *
    * @param spec The potential flow variable reference
    * @param messageContext Message Context
    * @return Resolved flow variable reference or spec
    */
   public String resolveVariableReferences(String spec, MessageContext messageContext) {
-    Matcher matcher = variableReferencePattern.matcher(spec);
-    StringBuffer sb = new StringBuffer();
-    while (matcher.find()) {
-      matcher.appendReplacement(sb, "");
-      sb.append(matcher.group(1));
-      String ref = matcher.group(2);
-      String[] parts = ref.split(":", 2);
-      Object v = messageContext.getVariable(parts[0]);
-      // If flow variable does not exist in messageContext, a default value can be specified using a
-      // colon. (e.g. "{flow.variable:default}" will use "default" as the value if "flow.variable"
-      // is not found)
-      if (v != null) {
-        sb.append((String) v);
-      } else if (parts.length > 1) {
-        sb.append(parts[1]);
+    if (spec.indexOf('{') < 0) {
+      return spec;
+    }
+    return resolvedTemplates.get(spec, PropertyTemplate::compile).resolve(messageContext);
+  }
+
+  /**
+   * Determines the charset of a message's content: the "callout-content-charset" property if set,
+   * else the charset parameter of the Content-Type header if supported, else UTF-8.
+   *
+   * @param message Message
+   * @return Charset of the content
+   */
+  public Charset getContentCharset(Message message) {
+    if (contentCharset != null) {
+      return contentCharset;
+    }
+    String contentType = message.getHeader("Content-Type");
+    if (contentType != null) {
+      int i = contentType.toLowerCase().indexOf("charset=");
+      if (i >= 0) {
+        int end = contentType.indexOf(';', i);
+        String name = contentType.substring(i + 8, end < 0 ? contentType.length() : end).trim();
+        if (name.length() > 1 && name.startsWith("\"") && name.endsWith("\"")) {
+          name = name.substring(1, name.length() - 1);
+        }
+        try {
+          return Charset.forName(name);
+        } catch (IllegalArgumentException e) {
+          // Unknown or malformed charset name.
+        }
       }
-      sb.append(matcher.group(3));
     }
-    matcher.appendTail(sb);
-    return sb.toString();
+    return StandardCharsets.UTF_8;
+  }
+
+  /**
+   * Opens the content of a message as a stream, without reading it into memory. Reading fails with
+   * an IOException past "callout-content-max-bytes" bytes.
+   *
+   * @param message Message
+   * @return Stream of the content, empty if the message has none
+   */
+  public InputStream openContentStream(Message message) {
+    InputStream in = message.getContentAsStream();
+    if (in == null) {
+      in = new ByteArrayInputStream(new byte[0]);
+    }
+    return contentMaxBytes == Long.MAX_VALUE ? in : new BoundedInputStream(in, contentMaxBytes);
+  }
+
+  /**
+   * Opens the content of a message as characters decoded with {@link #getContentCharset(Message)}.
+   *
+   * @param message Message
+   * @return Reader of the content
+   */
+  public Reader openContentReader(Message message) {
+    return new InputStreamReader(openContentStream(message), getContentCharset(message));
+  }
+
+  /**
+   * Streams the content of a message to a consumer in chunks of up to 8KB. The chunk buffer is
+   * reused across chunks and requests, so memory use does not grow with the content.
+   *
+   * @param message Message
+   * @param consumer Consumer of the chunks
+   * @throws IOException if the content cannot be read, exceeds "callout-content-max-bytes" or the
+   *     consumer fails
+   */
+  public void readContentChunks(Message message, ContentChunkConsumer consumer)
+      throws IOException {
+    byte[] array = ScratchBuffers.acquireBytes(CONTENT_CHUNK_SIZE);
+    ByteBuffer chunk = ByteBuffer.wrap(array, 0, CONTENT_CHUNK_SIZE);
+    // Buffer methods are called through Buffer so that the Java 8 signatures are linked.
+    Buffer buffer = chunk;
+    try (InputStream in = openContentStream(message)) {
+      int n;
+      while ((n = in.read(array, 0, CONTENT_CHUNK_SIZE)) >= 0) {
+        if (n > 0) {
+          buffer.clear();
+          buffer.limit(n);
+          consumer.accept(chunk);
+        }
+      }
+    } finally {
+      ScratchBuffers.release(array);
+    }
+  }
+
+  /**
+   * Opens a stream replacing the content of a message. The whole content is buffered in memory
+   * and set when the stream is closed; writing fails with an IOException past
+   * "callout-content-max-bytes" bytes.
+   *
+   * @param message Message
+   * @return Stream of the new content
+   */
+  public OutputStream openContentOutputStream(Message message) {
+    return new ContentOutputStream(message, contentMaxBytes);
+  }
+
+  /**
+   * Opens a writer replacing the content of a message, encoded with {@link
+   * #getContentCharset(Message)}. The content is set when the writer is closed.
+   *
+   * @param message Message
+   * @return Writer of the new content
+   */
+  public Writer openContentWriter(Message message) {
+    return new OutputStreamWriter(openContentOutputStream(message), getContentCharset(message));
+  }
+
+  /**
+   * Opens the content of a message decompressed, streaming it through a pooled inflater. Reading
+   * fails with an IOException past "callout-content-max-bytes" bytes of either the compressed or
+   * the decompressed content.
+   *
+   * @param message Message with compressed content
+   * @param encoding Compression of the content, e.g. {@link ContentEncoding#forHeader(String)} of
+   *     its Content-Encoding header
+   * @return Stream of the decompressed content
+   * @throws IOException if the content cannot be read or the gzip header is invalid
+   */
+  public InputStream openDecompressedContentStream(Message message, ContentEncoding encoding)
+      throws IOException {
+    InputStream compressed = openContentStream(message);
+    InputStream in;
+    try {
+      in = new DecompressingInputStream(compressed, encoding);
+    } catch (IOException e) {
+      compressed.close();
+      throw e;
+    }
+    return contentMaxBytes == Long.MAX_VALUE ? in : new BoundedInputStream(in, contentMaxBytes);
+  }
+
+  /**
+   * Opens a stream replacing the content of a message with its compressed form, streaming it
+   * through a pooled deflater at "callout-compression-level". Content of at most
+   * "callout-compression-min-bytes" bytes is set uncompressed. When the stream is closed the
+   * content is set, along with the Content-Encoding header if it was compressed.
+   *
+   * @param message Message
+   * @param encoding Compression of the new content
+   * @return Stream of the new, uncompressed content
+   */
+  public OutputStream openCompressedContentOutputStream(
+      Message message, ContentEncoding encoding) {
+    return new CompressingOutputStream(
+        openContentOutputStream(message), message, encoding, compressionLevel, compressionMinBytes);
+  }
+
+  /**
+   * Compresses the content of a message in place, see {@link
+   * #openCompressedContentOutputStream(Message, ContentEncoding)}. The content is streamed, never
+   * held in memory as a whole.
+   *
+   * @param message Message
+   * @param encoding Compression of the new content
+   * @throws IOException if the content cannot be read or exceeds "callout-content-max-bytes"
+   */
+  public void compressContent(Message message, ContentEncoding encoding) throws IOException {
+    try (InputStream in = openContentStream(message)) {
+      CompressingOutputStream out =
+          new CompressingOutputStream(
+              openContentOutputStream(message),
+              message,
+              encoding,
+              compressionLevel,
+              compressionMinBytes);
+      try {
+        copy(in, out);
+        // Closing sets the content, so it is only done once the whole content was read.
+        out.close();
+      } finally {
+        // Returns the deflater to the pool if reading failed, leaving the content as is.
+        out.abort();
+      }
+    }
+  }
+
+  /**
+   * Decompresses the content of a message in place and removes its Content-Encoding header. The
+   * content is streamed, never held in memory as a whole, and is left as is if decompression fails.
+   *
+   * @param message Message with compressed content
+   * @param encoding Compression of the content
+   * @throws IOException if the content cannot be read, is not validly compressed or exceeds
+   *     "callout-content-max-bytes"
+   */
+  public void decompressContent(Message message, ContentEncoding encoding) throws IOException {
+    try (InputStream in = openDecompressedContentStream(message, encoding)) {
+      OutputStream out = openContentOutputStream(message);
+      copy(in, out);
+      out.close();
+      message.removeHeader("Content-Encoding");
+    }
+  }
+
+  private static void copy(InputStream in, OutputStream out) throws IOException {
+    byte[] chunk = ScratchBuffers.acquireBytes(CONTENT_CHUNK_SIZE);
+    try {
+      int n;
+      while ((n = in.read(chunk, 0, CONTENT_CHUNK_SIZE)) >= 0) {
+        out.write(chunk, 0, n);
+      }
+    } finally {
+      ScratchBuffers.release(chunk);
+    }
+  }
+
+  /**
+   * Extracts the values at the JSON paths declared by "callout-json-path.&lt;name&gt;" properties
+   * from the content of a message. The content is streamed and reading stops once every path has
+   * been found.
+   *
+   * @param message Message with JSON content
+   * @return Value of each path found by name; strings are unescaped, other values are JSON text
+   * @throws IOException if the content cannot be read or is not JSON
+   */
+  public Map<String, String> extractJsonFields(Message message) throws IOException {
+    if (jsonFields.isEmpty()) {
+      return Collections.emptyMap();
+    }
+    try (Reader reader = openContentReader(message)) {
+      return jsonFields.extract(reader);
+    }
+  }
+
+  /**
+   * Replaces the values at some of the declared JSON paths in the content of a message, streaming
+   * the rest of the content through unchanged. The content is left as is if patching fails.
+   *
+   * @param message Message with JSON content
+   * @param replacements JSON text of the new value by path name, e.g. {@link
+   *     JsonFields#quote(String)} of a string
+   * @throws IOException if the content cannot be read or is not JSON
+   * @throws IllegalArgumentException if a replacement names an undeclared path
+   */
+  public void patchJsonFields(Message message, Map<String, String> replacements)
+      throws IOException {
+    try (Reader reader = openContentReader(message)) {
+      Writer writer = openContentWriter(message);
+      jsonFields.patch(reader, writer, replacements);
+      // Closing sets the content, so it is only done once the whole content was patched.
+      writer.close();
+    }
+  }
+
+  /**
+   * Extracts the values at the XML paths declared by "callout-xml-path.&lt;name&gt;" properties
+   * from the content of a message. The content is streamed through a StAX parser and reading
+   * stops once every path has been found.
+   *
+   * @param message Message with XML content
+   * @return Value of each path found by name: attribute values, or the text of elements
+   * @throws IOException if the content cannot be read or is not XML
+   */
+  public Map<String, String> extractXmlFields(Message message) throws IOException {
+    if (xmlFields.isEmpty()) {
+      return Collections.emptyMap();
+    }
+    try (InputStream in = openContentStream(message)) {
+      return xmlFields.extract(in);
+    }
+  }
+
+  /**
+   * Reads a flow variable. Within a request scope, writes buffered by {@link #setVariable} are
+   * visible and prefetched variables are served from the buffer.
+   *
+   * @param name Name of the flow variable
+   * @param messageContext Message Context
+   * @return Value of the variable, or null if it is not set
+   */
+  @SuppressWarnings("unchecked")
+  public <T> T getVariable(String name, MessageContext messageContext) {
+    RequestScope scope = getBufferingScope(messageContext);
+    if (scope == null) {
+      return messageContext.getVariable(name);
+    }
+    return (T) scope.getVariableBuffer().get(name, scope.getMessageContext());
+  }
+
+  /**
+   * Writes a flow variable. Within a request scope, the write is buffered and committed to the
+   * Message Context when the scope closes or {@link #commitVariables(MessageContext)} is called;
+   * repeated writes to the same variable are committed once. Writes made directly to the Message
+   * Context passed to {@link TemplateCalloutBase#executeCallout} are buffered the same way;
+   * callouts opening a scope with {@link #openScope} must write variables through this method
+   * while it is open.
+   *
+   * @param name Name of the flow variable
+   * @param value New value
+   * @param messageContext Message Context
+   */
+  public void setVariable(String name, Object value, MessageContext messageContext) {
+    writeVariable(name, value, messageContext);
+  }
+
+  private void writeVariable(String name, Object value, MessageContext messageContext) {
+    RequestScope scope = getBufferingScope(messageContext);
+    if (scope == null) {
+      messageContext.setVariable(name, value);
+      return;
+    }
+    scope.getVariableBuffer().set(name, value);
+    if (dynamicReferences || referencedVariables.contains(name)) {
+      scope.clearResolvedProperties();
+    }
   }
 
   /**
-   * Sets exception, error and stacktrace flow variables.
+   * Removes a flow variable, buffered like {@link #setVariable} within a request scope.
+   *
+   * @param name Name of the flow variable
+   * @param messageContext Message Context
+   */
+  public void removeVariable(String name, MessageContext messageContext) {
+    RequestScope scope = getBufferingScope(messageContext);
+    if (scope == null) {
+      messageContext.removeVariable(name);
+      return;
+    }
+    scope.getVariableBuffer().set(name, null);
+    if (dynamicReferences || referencedVariables.contains(name)) {
+      scope.clearResolvedProperties();
+    }
+  }
+
+  /**
+   * Commits the variable writes buffered by the request scope open for the Message Context, e.g.
+   * before handing control to code reading the variables directly. Does nothing without a scope.
+   *
+   * @param messageContext Message Context
+   */
+  public void commitVariables(MessageContext messageContext) {
+    RequestScope scope = getBufferingScope(messageContext);
+    if (scope != null) {
+      scope.getVariableBuffer().commit(scope.getMessageContext());
+    }
+  }
+
+  /**
+   * Sets exception, error and stacktrace flow variables. Within a request scope, they are
+   * committed with the other buffered variable writes.
    *
    * @param exception Exception thrown
    * @param messageContext Message Context
    */
   public void setExceptionVariables(Exception exception, MessageContext messageContext) {
-    String error = exception.toString().replaceAll("\n", " ");
-    messageContext.setVariable(EXCEPTION_FLOW_VARIABLE, error);
-    String stackTrace = getStackTrace(exception);
-    messageContext.setVariable(EXCEPTION_STACKTRACE_FLOW_VARIABLE, stackTrace);
-    Matcher matcher = commonErrorPattern.matcher(error);
-    if (matcher.matches()) {
-      messageContext.setVariable(ERROR_FLOW_VARIABLE, matcher.group(2));
-    } else {
-      messageContext.setVariable(ERROR_FLOW_VARIABLE, error);
+    storeExceptionVariables(exception, messageContext);
+  }
+
+  private void storeExceptionVariables(Exception exception, MessageContext messageContext) {
+    String error = exception.toString().replace('\n', ' ');
+    writeVariable(EXCEPTION_FLOW_VARIABLE, error, messageContext);
+    if (stackTraceRenderer != null) {
+      writeVariable(
+          EXCEPTION_STACKTRACE_FLOW_VARIABLE, stackTraceRenderer.render(exception), messageContext);
+    }
+    writeVariable(ERROR_FLOW_VARIABLE, getCommonErrorMessage(error), messageContext);
+  }
+
+  /**
+   * Extracts the message of a common error string, i.e. the text after the first colon or
+   * semicolon followed by a space (e.g. "error" from "example: error" or "example; error").
+   *
+   * @param error Single line error string
+   * @return Message of the error, or error itself if it is not a common error string
+   */
+  private static String getCommonErrorMessage(String error) {
+    for (int i = 0; i < error.length(); i++) {
+      if (isLineTerminator(error.charAt(i))) {
+        return error;
+      }
+    }
+    for (int i = 1; i < error.length() - 2; i++) {
+      char c = error.charAt(i);
+      if ((c == ':' || c == ';') && error.charAt(i + 1) == ' ') {
+        return error.substring(i + 2);
+      }
     }
+    return error;
+  }
+
+  private static boolean isLineTerminator(char c) {
+    return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
   }
 
   /**
-   * Stores statement in log flow variable.
+   * Stores statement in log flow variable at INFO level.
    *
    * @param logStatement Message to log
    * @param messageContext Message Context
    */
   public void log(Object logStatement, MessageContext messageContext) {
-    StackTraceElement stackTraceElement = getStackTraceElement();
-    String context =
-        stackTraceElement == null
-            ? ""
-            : String.format(
-                "%s.%s[%s:%d]",
-                stackTraceElement.getClassName(),
-                stackTraceElement.getMethodName(),
-                stackTraceElement.getFileName(),
-                stackTraceElement.getLineNumber());
-    String logMessage = logStatement + "\t\t" + context;
-    String prevLogs =
-        messageContext.getVariable(LOG_FLOW_VARIABLE) == null
-            ? ""
-            : messageContext.getVariable(LOG_FLOW_VARIABLE) + "\n";
-    messageContext.setVariable(LOG_FLOW_VARIABLE, prevLogs + logMessage);
+    log(LogLevel.INFO, logStatement, messageContext);
   }
 
   /**
-   * Retrieves current stack trace element.
+   * Stores statement in log flow variable if the level is enabled.
    *
-   * @return StackTraceElement of most recent method call.
+   * @param level Level of the statement
+   * @param logStatement Message to log
+   * @param messageContext Message Context
    */
-  private StackTraceElement getStackTraceElement() {
-    for (StackTraceElement ste : Thread.currentThread().getStackTrace()) {
-      if (!"getStackTrace".equals(ste.getMethodName())
-          && !"getStackTraceElement".equals(ste.getMethodName())
-          && !"log".equals(ste.getMethodName())) {
-        return ste;
+  public void log(LogLevel level, Object logStatement, MessageContext messageContext) {
+    if (isLogEnabled(level)) {
+      appendLog(level, String.valueOf(logStatement), null, messageContext);
+    }
+  }
+
+  /**
+   * Stores the statement produced by a supplier in log flow variable if the level is enabled. The
+   * supplier is not called otherwise.
+   *
+   * @param level Level of the statement
+   * @param logStatement Supplier of the message to log
+   * @param messageContext Message Context
+   */
+  public void log(LogLevel level, Supplier<?> logStatement, MessageContext messageContext) {
+    if (isLogEnabled(level)) {
+      appendLog(level, String.valueOf(logStatement.get()), null, messageContext);
+    }
+  }
+
+  /**
+   * Stores a parameterised statement in log flow variable if the level is enabled. Each "{}" in the
+   * template is replaced by the next argument; the template is not formatted if the level is
+   * disabled.
+   *
+   * @param level Level of the statement
+   * @param messageContext Message Context
+   * @param template Message to log containing "{}" placeholders
+   * @param args Values for the placeholders
+   */
+  public void log(LogLevel level, MessageContext messageContext, String template, Object... args) {
+    if (isLogEnabled(level)) {
+      appendLog(level, formatLogTemplate(template, args), null, messageContext);
+    }
+  }
+
+  /**
+   * Stores a statement with key/value fields in log flow variable if the level is enabled. In the
+   * structured log formats the fields are kept as fields of the record; in the text format they are
+   * appended to the message as "key=value" pairs.
+   *
+   * @param level Level of the statement
+   * @param messageContext Message Context
+   * @param message Message to log
+   * @param keysAndValues Alternating field names and values
+   */
+  public void logFields(
+      LogLevel level, MessageContext messageContext, String message, Object... keysAndValues) {
+    if (isLogEnabled(level)) {
+      appendLog(level, message, keysAndValues.length == 0 ? null : keysAndValues, messageContext);
+    }
+  }
+
+  /**
+   * Checks whether statements of a level are stored, e.g. to skip preparing expensive messages.
+   *
+   * @param level Level of the statement
+   * @return true if statements of the level are stored in log flow variable
+   */
+  public boolean isLogEnabled(LogLevel level) {
+    return level != LogLevel.OFF && level.compareTo(logLevel) >= 0;
+  }
+
+  /**
+   * Replaces each "{}" in a template with the next argument.
+   *
+   * @param template Template containing "{}" placeholders
+   * @param args Values for the placeholders
+   * @return Formatted message
+   */
+  private static String formatLogTemplate(String template, Object[] args) {
+    StringBuilder sb = ScratchBuffers.acquireStringBuilder();
+    int start = 0;
+    for (Object arg : args) {
+      int placeholder = template.indexOf("{}", start);
+      if (placeholder < 0) {
+        break;
       }
+      sb.append(template, start, placeholder).append(arg);
+      start = placeholder + 2;
     }
-    return null;
+    return ScratchBuffers.toStringAndRelease(sb.append(template, start, template.length()));
   }
 
   /**
-   * Gets stack trace from throwable as String. Same as getStackTrace function from apache commons
-   * ExceptionUtils, but this removes the need for import.
+   * Appends a statement to the log flow variable. Inside a request scope, including the one
+   * TemplateCalloutBase opens around every request, the statement is buffered and the flow
+   * variable is written when the scope is closed or the log is flushed; otherwise it is written
+   * immediately. The flow variable always holds the rendered log.
    *
-   * @param throwable Throwable to extract stack trace from
-   * @return stack trace generated by exception as string
+   * @param level Level of the statement
+   * @param message Message of the statement
+   * @param fields Alternating field names and values, or null
+   * @param messageContext Message Context
    */
-  private String getStackTrace(final Throwable throwable) {
-    final StringWriter sw = new StringWriter();
-    final PrintWriter pw = new PrintWriter(sw, true);
-    throwable.printStackTrace(pw);
-    return sw.getBuffer().toString();
+  private void appendLog(
+      LogLevel level, String message, Object[] fields, MessageContext messageContext) {
+    LogCaller caller = logCallerLocation ? LogCaller.locate() : null;
+    RequestScope scope = getActiveScope(messageContext);
+    LogBuffer buffer = scope == null ? null : scope.getLogBuffer();
+    if (buffer == null) {
+      buffer = scope == null ? null : scope.getEnclosingLogBuffer();
+      if (buffer == null) {
+        buffer = openLogBuffer(messageContext);
+      }
+      if (scope != null) {
+        scope.setLogBuffer(buffer);
+      }
+    }
+    if (logFormat == LogFormat.TEXT) {
+      buffer.append(formatLogLine(message, fields, caller));
+    } else {
+      buffer.append(level, caller, message, fields == null ? null : toLogFields(fields));
+    }
+    if (scope == null) {
+      writeLog(buffer, false, messageContext);
+    }
+  }
+
+  /**
+   * Creates the log buffer of a request, continuing the log already in the flow variable. The
+   * buffer last written with the log is appended to in place if it has the same format, unless the
+   * log was replaced since; any other log is copied line by line.
+   *
+   * @param messageContext Message Context
+   * @return Log buffer
+   */
+  private LogBuffer openLogBuffer(MessageContext messageContext) {
+    Object prevLogs = messageContext.getVariable(LOG_FLOW_VARIABLE);
+    if (prevLogs != null) {
+      Object prevBuffer = messageContext.getVariable(LOG_BUFFER_FLOW_VARIABLE);
+      if (prevBuffer instanceof LogBuffer
+          && ((LogBuffer) prevBuffer).getFormat() == logFormat
+          && ((LogBuffer) prevBuffer).isRendering(prevLogs)) {
+        return (LogBuffer) prevBuffer;
+      }
+    }
+    LogBuffer buffer = new LogBuffer(logFormat, logMaxLines, logMaxChars);
+    if (prevLogs != null) {
+      buffer.appendRendered(prevLogs.toString());
+    }
+    return buffer;
+  }
+
+  /**
+   * Renders a text log line: the message, then its fields as "key=value" pairs, then its caller
+   * location if enabled, e.g. "done status=200\t\tCallout.execute[Callout.java:42]".
+   */
+  private String formatLogLine(String message, Object[] fields, LogCaller caller) {
+    if (fields == null && !logCallerLocation) {
+      return message;
+    }
+    StringBuilder sb = ScratchBuffers.acquireStringBuilder().append(message);
+    if (fields != null) {
+      for (int i = 0; i < fields.length; i += 2) {
+        sb.append(' ').append(fields[i]).append('=');
+        sb.append(i + 1 < fields.length ? fields[i + 1] : null);
+      }
+    }
+    if (logCallerLocation) {
+      sb.append("\t\t");
+      if (caller != null) {
+        sb.append(caller.getLocation());
+      }
+    }
+    return ScratchBuffers.toStringAndRelease(sb);
+  }
+
+  /**
+   * Copies fields for a structured log record. Names and values are converted to strings now, as
+   * they may change before the record is encoded; numbers and booleans are kept as they are.
+   */
+  private static Object[] toLogFields(Object[] keysAndValues) {
+    Object[] fields = new Object[keysAndValues.length + (keysAndValues.length & 1)];
+    for (int i = 0; i < keysAndValues.length; i++) {
+      Object field = keysAndValues[i];
+      boolean keep =
+          i % 2 == 1
+              && (field instanceof Boolean
+                  || field instanceof Integer
+                  || field instanceof Long
+                  || field instanceof Short
+                  || field instanceof Byte
+                  || (field instanceof Double && Double.isFinite((Double) field))
+                  || (field instanceof Float && Float.isFinite((Float) field)));
+      fields[i] = keep ? field : String.valueOf(field);
+    }
+    return fields;
+  }
+
+  /**
+   * Writes the rendered log to the log flow variable, and the buffer to its own flow variable so
+   * that later statements of the request continue it.
+   *
+   * @param buffer Log buffer
+   * @param noteDropped Whether a text log notes that lines were dropped; structured logs always do
+   * @param messageContext Message Context
+   */
+  private static void writeLog(
+      LogBuffer buffer, boolean noteDropped, MessageContext messageContext) {
+    boolean text = buffer.getFormat() == LogFormat.TEXT;
+    messageContext.setVariable(LOG_FLOW_VARIABLE, buffer.render(noteDropped || !text));
+    messageContext.setVariable(LOG_BUFFER_FLOW_VARIABLE, buffer);
+  }
+
+  /**
+   * Writes log statements buffered by the request scope open for the Message Context to the log
+   * flow variable. Does nothing if no scope is open or nothing was logged since the last flush.
+   *
+   * @param messageContext Message Context
+   */
+  public void flushLog(MessageContext messageContext) {
+    RequestScope scope = getActiveScope(messageContext);
+    if (scope != null) {
+      flushLog(scope);
+    }
+  }
+
+  /**
+   * Writes log statements buffered by the scope to the log flow variable.
+   *
+   * @param scope Request scope
+   */
+  void flushLog(RequestScope scope) {
+    LogBuffer buffer = scope.getLogBuffer();
+    if (buffer != null && buffer.isDirty()) {
+      writeLog(buffer, true, scope.getMessageContext());
+      scope.invalidateVariable(LOG_FLOW_VARIABLE);
+      scope.invalidateVariable(LOG_BUFFER_FLOW_VARIABLE);
+    }
   }
 }
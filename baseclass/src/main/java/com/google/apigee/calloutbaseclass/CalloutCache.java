@@ -0,0 +1,448 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.apigee.calloutbaseclass;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+import java.util.function.ToIntBiFunction;
+
+/**
+ * Bounded in-memory cache that callouts can share across requests, e.g. to keep the results of
+ * token validation or lookup table transforms. Entries are spread over independently locked
+ * segments, each evicting its least recently used entries once the entry count or total weight
+ * bound is exceeded, and entries can expire a fixed time after they were written. Loading through
+ * {@link #get(Object, Function)} computes a missing value once even when many requests miss on the
+ * same key at the same time.
+ *
+ * <p>Bounds are split over the segments so that their shares add up to the bound, and there are
+ * never more segments than the bound allows entries. The cache never exceeds its bounds, but may
+ * hold fewer entries than its maximum when keys are unevenly spread. An entry heavier than the
+ * weight share of a segment is returned by {@link #get(Object, Function)} but never cached.
+ *
+ * @param <K> Type of keys
+ * @param <V> Type of values
+ */
+public final class CalloutCache<K, V> {
+
+  private final Segment<K, V>[] segments;
+  private final int segmentMask;
+  private final ToIntBiFunction<? super K, ? super V> weigher;
+  private final boolean expires;
+  private final long expireAfterWriteNanos;
+  private final LongSupplier ticker;
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+
+  @SuppressWarnings("unchecked")
+  private CalloutCache(Builder<K, V> builder) {
+    // Every segment must be able to hold at least one entry.
+    long bound = Math.min(builder.maximumSize, builder.maximumWeight);
+    int segmentCount = 1;
+    while (segmentCount < builder.concurrencyLevel && segmentCount * 2L <= bound) {
+      segmentCount <<= 1;
+    }
+    this.segments = (Segment<K, V>[]) new Segment<?, ?>[segmentCount];
+    this.segmentMask = segmentCount - 1;
+    this.weigher = builder.weigher;
+    this.expires = builder.expireAfterWriteNanos > 0;
+    this.expireAfterWriteNanos = builder.expireAfterWriteNanos;
+    this.ticker = builder.ticker;
+    for (int i = 0; i < segmentCount; i++) {
+      segments[i] =
+          new Segment<>(
+              share(builder.maximumSize, segmentCount, i),
+              share(builder.maximumWeight, segmentCount, i));
+    }
+  }
+
+  /** @return Share of a bound of the segment at an index, the shares adding up to the bound */
+  private static long share(long bound, int segmentCount, int index) {
+    if (bound == Long.MAX_VALUE) {
+      return bound;
+    }
+    return bound / segmentCount + (index < bound % segmentCount ? 1 : 0);
+  }
+
+  /**
+   * Creates a builder for a cache.
+   *
+   * @param <K> Type of keys
+   * @param <V> Type of values
+   * @return New builder
+   */
+  public static <K, V> Builder<K, V> newBuilder() {
+    return new Builder<>();
+  }
+
+  /**
+   * Retrieves a cached value.
+   *
+   * @param key Key of the value
+   * @return Cached value, or null if the key is absent or its entry expired
+   */
+  public V get(K key) {
+    Segment<K, V> segment = segmentFor(key);
+    long now = ticker.getAsLong();
+    segment.lock.lock();
+    try {
+      Entry<V> entry = getLive(segment, key, now);
+      if (entry != null) {
+        hits.increment();
+        return entry.value;
+      }
+      misses.increment();
+      return null;
+    } finally {
+      segment.lock.unlock();
+    }
+  }
+
+  /**
+   * Retrieves a cached value, computing and caching it if the key is absent. Concurrent calls
+   * missing on the same key wait for a single computation rather than each computing the value.
+   * Exceptions thrown by the loader are thrown to every waiting caller and nothing is cached.
+   *
+   * @param key Key of the value
+   * @param loader Computes the value for a key; a null result is returned but not cached
+   * @return Cached or computed value
+   */
+  public V get(K key, Function<? super K, ? extends V> loader) {
+    Segment<K, V> segment = segmentFor(key);
+    CompletableFuture<V> loading;
+    boolean owner = false;
+    segment.lock.lock();
+    try {
+      Entry<V> entry = getLive(segment, key, ticker.getAsLong());
+      if (entry != null) {
+        hits.increment();
+        return entry.value;
+      }
+      misses.increment();
+      loading = segment.loading.get(key);
+      if (loading == null) {
+        loading = new CompletableFuture<>();
+        segment.loading.put(key, loading);
+        owner = true;
+      }
+    } finally {
+      segment.lock.unlock();
+    }
+    if (owner) {
+      return load(segment, key, loader, loading);
+    }
+    try {
+      return loading.join();
+    } catch (CompletionException e) {
+      throw unwrap(e);
+    }
+  }
+
+  private V load(
+      Segment<K, V> segment,
+      K key,
+      Function<? super K, ? extends V> loader,
+      CompletableFuture<V> loading) {
+    V value;
+    try {
+      value = loader.apply(key);
+    } catch (RuntimeException | Error e) {
+      segment.lock.lock();
+      try {
+        segment.loading.remove(key);
+      } finally {
+        segment.lock.unlock();
+      }
+      loading.completeExceptionally(e);
+      throw e;
+    }
+    segment.lock.lock();
+    try {
+      segment.loading.remove(key);
+      if (value != null) {
+        putLocked(segment, key, value);
+      }
+    } finally {
+      segment.lock.unlock();
+    }
+    loading.complete(value);
+    return value;
+  }
+
+  private static RuntimeException unwrap(CompletionException e) {
+    Throwable cause = e.getCause();
+    if (cause instanceof RuntimeException) {
+      return (RuntimeException) cause;
+    }
+    if (cause instanceof Error) {
+      throw (Error) cause;
+    }
+    return e;
+  }
+
+  /**
+   * Caches a value, replacing any value cached for the key.
+   *
+   * @param key Key of the value
+   * @param value Value to cache
+   */
+  public void put(K key, V value) {
+    if (value == null) {
+      throw new NullPointerException("value");
+    }
+    Segment<K, V> segment = segmentFor(key);
+    segment.lock.lock();
+    try {
+      putLocked(segment, key, value);
+    } finally {
+      segment.lock.unlock();
+    }
+  }
+
+  /**
+   * Removes the value cached for a key, if any.
+   *
+   * @param key Key of the value
+   */
+  public void invalidate(K key) {
+    Segment<K, V> segment = segmentFor(key);
+    segment.lock.lock();
+    try {
+      Entry<V> removed = segment.entries.remove(key);
+      if (removed != null) {
+        segment.weight -= removed.weight;
+      }
+    } finally {
+      segment.lock.unlock();
+    }
+  }
+
+  /** Removes all cached values. */
+  public void invalidateAll() {
+    for (Segment<K, V> segment : segments) {
+      segment.lock.lock();
+      try {
+        segment.entries.clear();
+        segment.weight = 0;
+      } finally {
+        segment.lock.unlock();
+      }
+    }
+  }
+
+  /** @return Number of cached entries, including expired entries not yet removed */
+  public long size() {
+    long size = 0;
+    for (Segment<K, V> segment : segments) {
+      segment.lock.lock();
+      try {
+        size += segment.entries.size();
+      } finally {
+        segment.lock.unlock();
+      }
+    }
+    return size;
+  }
+
+  /** @return Number of lookups that found a live entry */
+  public long getHitCount() {
+    return hits.sum();
+  }
+
+  /** @return Number of lookups that found no live entry */
+  public long getMissCount() {
+    return misses.sum();
+  }
+
+  /** @return Number of entries removed because a bound was exceeded or the entry expired */
+  public long getEvictionCount() {
+    return evictions.sum();
+  }
+
+  private Segment<K, V> segmentFor(K key) {
+    int h = key.hashCode();
+    return segments[(h ^ (h >>> 16)) & segmentMask];
+  }
+
+  private Entry<V> getLive(Segment<K, V> segment, K key, long now) {
+    Entry<V> entry = segment.entries.get(key);
+    // Elapsed time rather than an expiry time, which could overflow for long times to live.
+    if (entry != null && expires && now - entry.writtenAt >= expireAfterWriteNanos) {
+      segment.entries.remove(key);
+      segment.weight -= entry.weight;
+      evictions.increment();
+      return null;
+    }
+    return entry;
+  }
+
+  private void putLocked(Segment<K, V> segment, K key, V value) {
+    int weight = weigher == null ? 1 : weigher.applyAsInt(key, value);
+    if (weight > segment.maxWeight) {
+      // Caching it would evict the whole segment, itself included.
+      Entry<V> stale = segment.entries.remove(key);
+      if (stale != null) {
+        segment.weight -= stale.weight;
+      }
+      evictions.increment();
+      return;
+    }
+    Entry<V> previous = segment.entries.put(key, new Entry<>(value, weight, ticker.getAsLong()));
+    if (previous != null) {
+      segment.weight -= previous.weight;
+    }
+    segment.weight += weight;
+    // Evicts in least recently used order, which is the iteration order of the access ordered map.
+    Iterator<Map.Entry<K, Entry<V>>> it = segment.entries.entrySet().iterator();
+    while ((segment.entries.size() > segment.maxSize || segment.weight > segment.maxWeight)
+        && it.hasNext()) {
+      segment.weight -= it.next().getValue().weight;
+      it.remove();
+      evictions.increment();
+    }
+  }
+
+  /** Cached value with its weight and write time. */
+  private static final class Entry<V> {
+    private final V value;
+    private final int weight;
+    private final long writtenAt;
+
+    Entry(V value, int weight, long writtenAt) {
+      this.value = value;
+      this.weight = weight;
+      this.writtenAt = writtenAt;
+    }
+  }
+
+  /** Independently locked part of the cache. */
+  private static final class Segment<K, V> {
+    private final ReentrantLock lock = new ReentrantLock();
+    private final LinkedHashMap<K, Entry<V>> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<K, CompletableFuture<V>> loading = new HashMap<>();
+    private final long maxSize;
+    private final long maxWeight;
+    private long weight;
+
+    Segment(long maxSize, long maxWeight) {
+      this.maxSize = maxSize;
+      this.maxWeight = maxWeight;
+    }
+  }
+
+  /**
+   * Builder for {@link CalloutCache}.
+   *
+   * @param <K> Type of keys
+   * @param <V> Type of values
+   */
+  public static final class Builder<K, V> {
+    private long maximumSize = Long.MAX_VALUE;
+    private long maximumWeight = Long.MAX_VALUE;
+    private ToIntBiFunction<? super K, ? super V> weigher;
+    // 0 if entries do not expire.
+    private long expireAfterWriteNanos;
+    private int concurrencyLevel = 16;
+    private LongSupplier ticker = System::nanoTime;
+
+    private Builder() {}
+
+    /**
+     * Bounds the number of cached entries.
+     *
+     * @param maximumSize Maximum number of entries
+     * @return This builder
+     */
+    public Builder<K, V> maximumSize(long maximumSize) {
+      if (maximumSize <= 0) {
+        throw new IllegalArgumentException("maximumSize must be positive: " + maximumSize);
+      }
+      this.maximumSize = maximumSize;
+      return this;
+    }
+
+    /**
+     * Bounds the total weight of cached entries. The bound is split over the segments, so an entry
+     * heavier than maximumWeight divided by the number of segments is never cached; lower the
+     * concurrency level to cache larger entries.
+     *
+     * @param maximumWeight Maximum total weight
+     * @param weigher Computes the weight of an entry, e.g. its approximate size in bytes
+     * @return This builder
+     */
+    public Builder<K, V> maximumWeight(
+        long maximumWeight, ToIntBiFunction<? super K, ? super V> weigher) {
+      if (maximumWeight <= 0) {
+        throw new IllegalArgumentException("maximumWeight must be positive: " + maximumWeight);
+      }
+      this.maximumWeight = maximumWeight;
+      this.weigher = weigher;
+      return this;
+    }
+
+    /**
+     * Expires entries a fixed time after they were written. Times beyond the range of a long in
+     * nanoseconds, about 292 years, are capped to it.
+     *
+     * @param duration Time to live of entries
+     * @return This builder
+     */
+    public Builder<K, V> expireAfterWrite(Duration duration) {
+      if (duration.isNegative() || duration.isZero()) {
+        throw new IllegalArgumentException("expireAfterWrite must be positive: " + duration);
+      }
+      this.expireAfterWriteNanos =
+          duration.compareTo(Duration.ofNanos(Long.MAX_VALUE)) >= 0
+              ? Long.MAX_VALUE
+              : duration.toNanos();
+      return this;
+    }
+
+    /**
+     * Sets the number of independently locked segments, rounded up to a power of two. A cache has
+     * no more segments than its maximum size or weight.
+     *
+     * @param concurrencyLevel Expected number of threads using the cache at the same time
+     * @return This builder
+     */
+    public Builder<K, V> concurrencyLevel(int concurrencyLevel) {
+      if (concurrencyLevel <= 0) {
+        throw new IllegalArgumentException(
+            "concurrencyLevel must be positive: " + concurrencyLevel);
+      }
+      this.concurrencyLevel = concurrencyLevel;
+      return this;
+    }
+
+    /** Replaces System.nanoTime as time source, for tests. */
+    Builder<K, V> ticker(LongSupplier ticker) {
+      this.ticker = ticker;
+      return this;
+    }
+
+    /** @return New cache */
+    public CalloutCache<K, V> build() {
+      return new CalloutCache<>(this);
+    }
+  }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.apigee.calloutbaseclass;
+
+import com.apigee.flow.execution.Action;
+import com.apigee.flow.execution.ExecutionResult;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Latency histograms and outcome counters shared by all instances of a callout class, registered
+ * as an MBean named "com.google.apigee.calloutbaseclass:type=CalloutMetrics,name=&lt;class&gt;".
+ * Recording is lock-free and does not allocate.
+ */
+public final class CalloutMetrics implements CalloutMetricsMBean {
+
+  private static final String OBJECT_NAME_PREFIX =
+      "com.google.apigee.calloutbaseclass:type=CalloutMetrics,name=";
+  private static final ConcurrentMap<Class<?>, CalloutMetrics> metricsByClass =
+      new ConcurrentHashMap<>();
+
+  private final LatencyHistogram latency = new LatencyHistogram();
+  private final LatencyHistogram propertyResolution = new LatencyHistogram();
+  private final LongAdder successes = new LongAdder();
+  private final LongAdder aborts = new LongAdder();
+  private final LongAdder exceptions = new LongAdder();
+  private final LongAdder untrackedRateLimitKeys = new LongAdder();
+  private volatile long startupNanos;
+  private volatile long warmUpNanos;
+
+  private CalloutMetrics() {}
+
+  /**
+   * Retrieves the metrics of a callout class, creating and registering them on first use. An MBean
+   * already registered under the name, left behind by an earlier deployment of the proxy whose
+   * classloader loaded the same class, is replaced so that it neither hides these metrics nor keeps
+   * that classloader alive. The metrics are still recorded if the MBean cannot be registered, e.g.
+   * because a security manager denies access to the platform MBean server.
+   *
+   * @param calloutClass Callout class
+   * @return Metrics of the class
+   */
+  public static CalloutMetrics forClass(Class<?> calloutClass) {
+    CalloutMetrics metrics = metricsByClass.get(calloutClass);
+    if (metrics != null) {
+      return metrics;
+    }
+    CalloutMetrics created = new CalloutMetrics();
+    metrics = metricsByClass.putIfAbsent(calloutClass, created);
+    if (metrics != null) {
+      return metrics;
+    }
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name =
+          new ObjectName(OBJECT_NAME_PREFIX + ObjectName.quote(calloutClass.getName()));
+      if (server.isRegistered(name)) {
+        server.unregisterMBean(name);
+      }
+      server.registerMBean(created, name);
+    } catch (JMException | SecurityException e) {
+      // Not exported, but still available through CalloutBase.getMetrics().
+    }
+    return created;
+  }
+
+  /**
+   * Records an execution that returned a result.
+   *
+   * @param result Result of the execution
+   * @param elapsedNanos Execution latency
+   */
+  void recordExecution(ExecutionResult result, long elapsedNanos) {
+    latency.record(elapsedNanos);
+    if (result != null && result.getAction() == Action.ABORT) {
+      aborts.increment();
+    } else {
+      successes.increment();
+    }
+  }
+
+  /**
+   * Records an execution that threw an exception.
+   *
+   * @param elapsedNanos Execution latency
+   */
+  void recordException(long elapsedNanos) {
+    latency.record(elapsedNanos);
+    exceptions.increment();
+  }
+
+  /**
+   * Records the resolution of a property.
+   *
+   * @param elapsedNanos Resolution latency
+   */
+  void recordPropertyResolution(long elapsedNanos) {
+    propertyResolution.record(elapsedNanos);
+  }
+
+  /**
+   * Records the construction of an instance.
+   *
+   * @param elapsedNanos Construction time
+   */
+  void recordStartup(long elapsedNanos) {
+    startupNanos = elapsedNanos;
+  }
+
+  /** Records a request allowed without rate limit because its key did not fit the key bound. */
+  void recordUntrackedRateLimitKey() {
+    untrackedRateLimitKeys.increment();
+  }
+
+  /**
+   * Records how long the warm-up of an instance took.
+   *
+   * @param elapsedNanos Duration of the warm-up
+   */
+  void recordWarmUp(long elapsedNanos) {
+    warmUpNanos = elapsedNanos;
+  }
+
+  @Override
+  public long getSuccessCount() {
+    return successes.sum();
+  }
+
+  @Override
+  public long getAbortCount() {
+    return aborts.sum();
+  }
+
+  @Override
+  public long getExceptionCount() {
+    return exceptions.sum();
+  }
+
+  @Override
+  public long getRateLimitUntrackedCount() {
+    return untrackedRateLimitKeys.sum();
+  }
+
+  @Override
+  public long getLatencyP50Nanos() {
+    return latency.getPercentile(50);
+  }
+
+  @Override
+  public long getLatencyP99Nanos() {
+    return latency.getPercentile(99);
+  }
+
+  @Override
+  public long getLatencyP999Nanos() {
+    return latency.getPercentile(99.9);
+  }
+
+  @Override
+  public long getLatencyMeanNanos() {
+    long count = latency.getCount();
+    return count == 0 ? 0 : latency.getTotalNanos() / count;
+  }
+
+  @Override
+  public long getPropertyResolutionCount() {
+    return propertyResolution.getCount();
+  }
+
+  @Override
+  public long getPropertyResolutionTotalNanos() {
+    return propertyResolution.getTotalNanos();
+  }
+
+  @Override
+  public long getPropertyResolutionP99Nanos() {
+    return propertyResolution.getPercentile(99);
+  }
+
+  @Override
+  public long getStartupNanos() {
+    return startupNanos;
+  }
+
+  @Override
+  public long getWarmUpNanos() {
+    return warmUpNanos;
+  }
+
+  @Override
+  public void reset() {
+    latency.reset();
+    propertyResolution.reset();
+    successes.reset();
+    aborts.reset();
+    exceptions.reset();
+    untrackedRateLimitKeys.reset();
+  }
+}
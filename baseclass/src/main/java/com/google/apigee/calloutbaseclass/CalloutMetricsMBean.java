@@ -0,0 +1,60 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.apigee.calloutbaseclass;
+
+/** JMX view of the metrics recorded for a callout class. Latencies are in nanoseconds. */
+public interface CalloutMetricsMBean {
+
+  /** @return Number of executions that returned a successful result */
+  long getSuccessCount();
+
+  /** @return Number of executions that returned an ABORT result */
+  long getAbortCount();
+
+  /** @return Number of executions that threw an exception */
+  long getExceptionCount();
+
+  /** @return Number of requests not rate limited because their key did not fit the key bound */
+  long getRateLimitUntrackedCount();
+
+  /** @return Median execution latency */
+  long getLatencyP50Nanos();
+
+  /** @return 99th percentile execution latency */
+  long getLatencyP99Nanos();
+
+  /** @return 99.9th percentile execution latency */
+  long getLatencyP999Nanos();
+
+  /** @return Mean execution latency */
+  long getLatencyMeanNanos();
+
+  /** @return Number of property resolutions */
+  long getPropertyResolutionCount();
+
+  /** @return Total time spent resolving properties */
+  long getPropertyResolutionTotalNanos();
+
+  /** @return 99th percentile property resolution latency */
+  long getPropertyResolutionP99Nanos();
+
+  /** @return Construction time, including validation, of the last instance created */
+  long getStartupNanos();
+
+  /** @return Duration of the background warm-up of the last instance that finished one */
+  long getWarmUpNanos();
+
+  /** Discards all recorded metrics. */
+  void reset();
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.apigee.calloutbaseclass;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Lock-free circuit breaker over a tumbling window of recent executions. Once at least a minimum
+ * number of executions in the window failed at or above a rate, the breaker opens and rejects
+ * every execution until the open duration passes. A single probe execution is then let through:
+ * its success closes the breaker and its failure opens it again.
+ */
+final class CircuitBreaker {
+
+  private static final int CLOSED = 0;
+  private static final int OPEN = 1;
+  private static final int HALF_OPEN = 2;
+
+  private final int failureRatePercent;
+  private final int minimumCalls;
+  private final long windowNanos;
+  private final long openNanos;
+  private final LongSupplier ticker;
+  private final AtomicInteger state = new AtomicInteger(CLOSED);
+  private final AtomicReference<Window> window;
+  private volatile long openedAt;
+
+  /**
+   * @param failureRatePercent Failure rate in percent at which the breaker opens
+   * @param minimumCalls Minimum number of executions in a window before the breaker can open
+   * @param windowNanos Length of the window the failure rate is computed over
+   * @param openNanos Time the breaker stays open before letting a probe through
+   * @param ticker Source of nanosecond time
+   */
+  CircuitBreaker(
+      int failureRatePercent,
+      int minimumCalls,
+      long windowNanos,
+      long openNanos,
+      LongSupplier ticker) {
+    this.failureRatePercent = failureRatePercent;
+    this.minimumCalls = minimumCalls;
+    this.windowNanos = windowNanos;
+    this.openNanos = openNanos;
+    this.ticker = ticker;
+    this.window = new AtomicReference<>(new Window(ticker.getAsLong()));
+  }
+
+  /** @return true if an execution may proceed; its outcome must then be recorded */
+  boolean tryAcquire() {
+    int current = state.get();
+    if (current == CLOSED) {
+      return true;
+    }
+    return current == OPEN
+        && ticker.getAsLong() - openedAt >= openNanos
+        && state.compareAndSet(OPEN, HALF_OPEN);
+  }
+
+  /** Records the outcome of an execution allowed by {@link #tryAcquire()}. */
+  void record(boolean success) {
+    long now = ticker.getAsLong();
+    if (state.get() == HALF_OPEN) {
+      if (success) {
+        window.set(new Window(now));
+        state.set(CLOSED);
+      } else {
+        openedAt = now;
+        state.set(OPEN);
+      }
+      return;
+    }
+    Window current = currentWindow(now);
+    current.calls.increment();
+    if (success) {
+      return;
+    }
+    current.failures.increment();
+    long calls = current.calls.sum();
+    if (calls >= minimumCalls && current.failures.sum() * 100 >= failureRatePercent * calls) {
+      openedAt = now;
+      if (state.compareAndSet(CLOSED, OPEN)) {
+        window.compareAndSet(current, new Window(now));
+      }
+    }
+  }
+
+  /** @return true if the breaker currently rejects executions */
+  boolean isOpen() {
+    return state.get() != CLOSED;
+  }
+
+  private Window currentWindow(long now) {
+    Window current = window.get();
+    if (now - current.start < windowNanos) {
+      return current;
+    }
+    Window next = new Window(now);
+    return window.compareAndSet(current, next) ? next : window.get();
+  }
+
+  private static final class Window {
+    final long start;
+    final LongAdder calls = new LongAdder();
+    final LongAdder failures = new LongAdder();
+
+    Window(long start) {
+      this.start = start;
+    }
+  }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.apigee.calloutbaseclass;
+
+import com.apigee.flow.message.Message;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Output stream compressing what is written to it into another stream, with a pooled deflater.
+ * The first bytes are held back until more than a threshold has been written; content that ends
+ * before that is written through uncompressed.
+ */
+final class CompressingOutputStream extends OutputStream {
+
+  private static final int BUFFER_SIZE = 8 * 1024;
+  private static final byte[] GZIP_HEADER = {
+    0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff
+  };
+
+  private final OutputStream out;
+  private final Message message;
+  private final ContentEncoding encoding;
+  private final int level;
+  private final int threshold;
+  // Bytes held back until the threshold is passed, null once compressing or without threshold.
+  private byte[] pending;
+  private int pendingLength;
+  // Acquired once the threshold is passed.
+  private Deflater deflater;
+  private byte[] buffer;
+  private final CRC32 crc = new CRC32();
+  private boolean compressed;
+  private boolean closed;
+
+  /**
+   * @param out Stream receiving the compressed content; closed when this stream is closed
+   * @param message Message whose Content-Encoding header is set if the content is compressed, or
+   *     null
+   * @param encoding Compression format
+   * @param level Compression level, 0-9
+   * @param threshold Size in bytes up to which content is written uncompressed, or 0
+   */
+  CompressingOutputStream(
+      OutputStream out, Message message, ContentEncoding encoding, int level, int threshold) {
+    this.out = out;
+    this.message = message;
+    this.encoding = encoding;
+    this.level = level;
+    this.threshold = threshold;
+    if (threshold > 0) {
+      this.pending = ScratchBuffers.acquireBytes(threshold);
+    }
+  }
+
+  /** @return true if the content was compressed, false if it passed through below the threshold */
+  boolean isCompressed() {
+    return compressed;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    write(new byte[] {(byte) b}, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    if (off < 0 || len < 0 || len > b.length - off) {
+      throw new IndexOutOfBoundsException();
+    }
+    if (closed) {
+      throw new IOException("Stream closed");
+    }
+    if (pending != null) {
+      if (pendingLength + len <= threshold) {
+        System.arraycopy(b, off, pending, pendingLength, len);
+        pendingLength += len;
+        return;
+      }
+      startCompression();
+    } else if (deflater == null) {
+      startCompression();
+    }
+    deflate(b, off, len);
+  }
+
+  private void startCompression() throws IOException {
+    boolean gzip = encoding == ContentEncoding.GZIP;
+    deflater = CompressionPool.acquireDeflater(level, gzip);
+    buffer = ScratchBuffers.acquireBytes(BUFFER_SIZE);
+    compressed = true;
+    if (gzip) {
+      out.write(GZIP_HEADER);
+    }
+    if (pending != null) {
+      byte[] held = pending;
+      pending = null;
+      deflate(held, 0, pendingLength);
+      ScratchBuffers.release(held);
+    }
+  }
+
+  private void deflate(byte[] b, int off, int len) throws IOException {
+    if (len == 0) {
+      return;
+    }
+    if (encoding == ContentEncoding.GZIP) {
+      crc.update(b, off, len);
+    }
+    deflater.setInput(b, off, len);
+    while (!deflater.needsInput()) {
+      drain();
+    }
+  }
+
+  private void drain() throws IOException {
+    int n = deflater.deflate(buffer, 0, buffer.length);
+    if (n > 0) {
+      out.write(buffer, 0, n);
+    }
+  }
+
+  /**
+   * Finishes the content, writing held back bytes uncompressed if the threshold was not passed,
+   * then closes the underlying stream, sets the Content-Encoding header if the content was
+   * compressed and returns the deflater to the pool. Closing twice has no
+   * effect.
+   */
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try {
+      if (pending != null) {
+        out.write(pending, 0, pendingLength);
+      } else {
+        if (deflater == null) {
+          startCompression();
+        }
+        deflater.finish();
+        while (!deflater.finished()) {
+          drain();
+        }
+        if (encoding == ContentEncoding.GZIP) {
+          writeIntLe(crc.getValue());
+          writeIntLe(deflater.getBytesRead());
+        }
+      }
+      out.close();
+      if (compressed && message != null) {
+        message.setHeader("Content-Encoding", encoding.getHeaderValue());
+      }
+    } finally {
+      releaseResources();
+    }
+  }
+
+  /**
+   * Discards the content without closing the underlying stream, so that no content is set, and
+   * returns the deflater to the pool. Has no effect once the stream is closed.
+   */
+  void abort() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    releaseResources();
+  }
+
+  private void writeIntLe(long value) throws IOException {
+    buffer[0] = (byte) value;
+    buffer[1] = (byte) (value >> 8);
+    buffer[2] = (byte) (value >> 16);
+    buffer[3] = (byte) (value >> 24);
+    out.write(buffer, 0, 4);
+  }
+
+  private void releaseResources() {
+    if (pending != null) {
+      ScratchBuffers.release(pending);
+      pending = null;
+    }
+    if (deflater != null) {
+      CompressionPool.release(deflater, encoding == ContentEncoding.GZIP);
+      deflater = null;
+      ScratchBuffers.release(buffer);
+      buffer = null;
+    }
+  }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.apigee.calloutbaseclass;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Bounded pools of Deflater and Inflater instances shared by all callouts. Both hold native zlib
+ * memory that is otherwise only freed when they are garbage collected, so instances are reset and
+ * reused across requests instead. Instances returned while a pool is full are ended at once.
+ */
+final class CompressionPool {
+
+  private static final int CAPACITY = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+
+  // Indexed by nowrap: raw deflate data for gzip, zlib wrapped data otherwise.
+  private static final BlockingQueue<Deflater>[] deflaters = newPools();
+  private static final BlockingQueue<Inflater>[] inflaters = newPools();
+
+  private CompressionPool() {}
+
+  @SuppressWarnings("unchecked")
+  private static <T> BlockingQueue<T>[] newPools() {
+    return (BlockingQueue<T>[])
+        new BlockingQueue<?>[] {
+          new ArrayBlockingQueue<T>(CAPACITY), new ArrayBlockingQueue<T>(CAPACITY)
+        };
+  }
+
+  /**
+   * Takes a deflater from the pool, or creates one if the pool is empty.
+   *
+   * @param level Compression level, 0-9
+   * @param nowrap Whether to produce raw deflate data without zlib header and checksum
+   * @return Deflater owned by the caller until released
+   */
+  static Deflater acquireDeflater(int level, boolean nowrap) {
+    Deflater deflater = deflaters[nowrap ? 1 : 0].poll();
+    if (deflater == null) {
+      return new Deflater(level, nowrap);
+    }
+    deflater.setLevel(level);
+    return deflater;
+  }
+
+  /**
+   * Resets a deflater and returns it to the pool, or ends it if the pool is full.
+   *
+   * @param deflater Deflater acquired with the same nowrap; it must not be used afterwards
+   * @param nowrap Whether the deflater was acquired for raw deflate data
+   */
+  static void release(Deflater deflater, boolean nowrap) {
+    deflater.reset();
+    if (!deflaters[nowrap ? 1 : 0].offer(deflater)) {
+      deflater.end();
+    }
+  }
+
+  /** @return Number of idle deflaters in the pool, for tests */
+  static int idleDeflaters(boolean nowrap) {
+    return deflaters[nowrap ? 1 : 0].size();
+  }
+
+  /**
+   * Takes an inflater from the pool, or creates one if the pool is empty.
+   *
+   * @param nowrap Whether to read raw deflate data without zlib header and checksum
+   * @return Inflater owned by the caller until released
+   */
+  static Inflater acquireInflater(boolean nowrap) {
+    Inflater inflater = inflaters[nowrap ? 1 : 0].poll();
+    return inflater == null ? new Inflater(nowrap) : inflater;
+  }
+
+  /**
+   * Resets an inflater and returns it to the pool, or ends it if the pool is full.
+   *
+   * @param inflater Inflater acquired with the same nowrap; it must not be used afterwards
+   * @param nowrap Whether the inflater was acquired for raw deflate data
+   */
+  static void release(Inflater inflater, boolean nowrap) {
+    inflater.reset();
+    if (!inflaters[nowrap ? 1 : 0].offer(inflater)) {
+      inflater.end();
+    }
+  }
+}
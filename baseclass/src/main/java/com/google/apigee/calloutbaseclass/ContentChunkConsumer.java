@@ -0,0 +1,33 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.apigee.calloutbaseclass;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Receives message content chunk by chunk from {@link CalloutBase#readContentChunks}. The chunk
+ * buffer is reused for the next chunk, so it must not be kept after accept returns.
+ */
+@FunctionalInterface
+public interface ContentChunkConsumer {
+
+  /**
+   * Processes the next chunk of content.
+   *
+   * @param chunk Bytes of the chunk, between its position and limit
+   * @throws IOException to stop reading
+   */
+  void accept(ByteBuffer chunk) throws IOException;
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.apigee.calloutbaseclass;
+
+/** Compression of message content, as named by the Content-Encoding header. */
+public enum ContentEncoding {
+  /** gzip file format (RFC 1952). */
+  GZIP("gzip"),
+  /** zlib format (RFC 1950), which HTTP calls "deflate". */
+  DEFLATE("deflate");
+
+  private final String headerValue;
+
+  ContentEncoding(String headerValue) {
+    this.headerValue = headerValue;
+  }
+
+  /** @return Value of the Content-Encoding header for the encoding */
+  public String getHeaderValue() {
+    return headerValue;
+  }
+
+  /**
+   * Looks up the encoding named by a Content-Encoding header.
+   *
+   * @param headerValue Value of the header, may be null
+   * @return Encoding, or null if the header is absent or names no supported compression
+   */
+  public static ContentEncoding forHeader(String headerValue) {
+    if (headerValue == null) {
+      return null;
+    }
+    String value = headerValue.trim();
+    if (value.equalsIgnoreCase("gzip") || value.equalsIgnoreCase("x-gzip")) {
+      return GZIP;
+    }
+    return value.equalsIgnoreCase("deflate") ? DEFLATE : null;
+  }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.apigee.calloutbaseclass;
+
+import com.apigee.flow.message.Message;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Output stream collecting the new content of a message and setting it as a stream when closed.
+ * The whole content is buffered in memory until then, bounded by the maximum number of bytes.
+ * Bytes are kept in chunks that grow up to 1MB, so the content is never copied into a larger array
+ * or a String while it is written. Chunks are drawn from {@link ScratchBuffers} and released once
+ * the content has been read to its end or the content stream is closed.
+ */
+final class ContentOutputStream extends OutputStream {
+
+  private static final int FIRST_CHUNK_SIZE = 8 * 1024;
+  private static final int MAX_CHUNK_SIZE = 1024 * 1024;
+
+  private final Message message;
+  private final long maxBytes;
+  private final List<byte[]> chunks = new ArrayList<>();
+  private byte[] current;
+  private int position;
+  private long count;
+  private boolean closed;
+
+  /**
+   * @param message Message whose content is replaced on close
+   * @param maxBytes Maximum number of bytes that may be written
+   */
+  ContentOutputStream(Message message, long maxBytes) {
+    this.message = message;
+    this.maxBytes = maxBytes;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    reserve(1);
+    if (current == null || position == current.length) {
+      addChunk();
+    }
+    current[position++] = (byte) b;
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    if (off < 0 || len < 0 || len > b.length - off) {
+      throw new IndexOutOfBoundsException();
+    }
+    reserve(len);
+    while (len > 0) {
+      if (current == null || position == current.length) {
+        addChunk();
+      }
+      int n = Math.min(len, current.length - position);
+      System.arraycopy(b, off, current, position, n);
+      position += n;
+      off += n;
+      len -= n;
+    }
+  }
+
+  private void reserve(int len) throws IOException {
+    if (closed) {
+      throw new IOException("Stream closed");
+    }
+    if (count + len > maxBytes) {
+      throw new IOException(String.format("Message content exceeds %d bytes", maxBytes));
+    }
+    count += len;
+  }
+
+  private void addChunk() {
+    int size = current == null ? FIRST_CHUNK_SIZE : Math.min(current.length * 2, MAX_CHUNK_SIZE);
+    current = ScratchBuffers.acquireBytes(size);
+    chunks.add(current);
+    position = 0;
+  }
+
+  /** Sets the written bytes as the content of the message. Closing twice has no effect. */
+  @Override
+  public void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    message.setContent(new ChunksInputStream(chunks, position));
+  }
+
+  /** Reads back the chunks of a closed stream, releasing them once read. */
+  private static final class ChunksInputStream extends InputStream {
+    private List<byte[]> chunks;
+    private final int lastLength;
+    private int index;
+    private int offset;
+
+    ChunksInputStream(List<byte[]> chunks, int lastLength) {
+      this.chunks = chunks;
+      this.lastLength = lastLength;
+    }
+
+    private int limit() {
+      return index == chunks.size() - 1 ? lastLength : chunks.get(index).length;
+    }
+
+    /** @return true if bytes are left, moving to the next chunk if the current one is read */
+    private boolean advance() {
+      if (chunks == null) {
+        return false;
+      }
+      while (index < chunks.size() && offset == limit()) {
+        index++;
+        offset = 0;
+      }
+      if (index < chunks.size()) {
+        return true;
+      }
+      close();
+      return false;
+    }
+
+    @Override
+    public int read() {
+      return advance() ? chunks.get(index)[offset++] & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+      if (len == 0) {
+        return 0;
+      }
+      if (!advance()) {
+        return -1;
+      }
+      int n = Math.min(len, limit() - offset);
+      System.arraycopy(chunks.get(index), offset, b, off, n);
+      offset += n;
+      return n;
+    }
+
+    @Override
+    public int available() {
+      return chunks != null && index < chunks.size() ? limit() - offset : 0;
+    }
+
+    @Override
+    public void close() {
+      if (chunks != null) {
+        for (byte[] chunk : chunks) {
+          ScratchBuffers.release(chunk);
+        }
+        chunks = null;
+      }
+    }
+  }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.apigee.calloutbaseclass;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Input stream decompressing gzip or zlib content read from another stream, with a pooled
+ * inflater. Concatenated gzip members are read as one stream, as with GZIPInputStream. The
+ * inflater is returned to the pool at the end of the content or when the stream is closed.
+ */
+final class DecompressingInputStream extends InputStream {
+
+  private static final int BUFFER_SIZE = 8 * 1024;
+  private static final int GZIP_MAGIC = 0x8b1f;
+  private static final int FHCRC = 2;
+  private static final int FEXTRA = 4;
+  private static final int FNAME = 8;
+  private static final int FCOMMENT = 16;
+
+  private final InputStream in;
+  private final boolean gzip;
+  private final CRC32 crc = new CRC32();
+  private Inflater inflater;
+  private byte[] buffer;
+  // Bytes of buffer[position, limit) are neither parsed nor passed to the inflater yet.
+  private int position;
+  private int limit;
+  private boolean eof;
+  private boolean closed;
+
+  /**
+   * @param in Stream of compressed content; closed when this stream is closed
+   * @param encoding Compression format
+   * @throws IOException if the gzip header cannot be read or is invalid
+   */
+  DecompressingInputStream(InputStream in, ContentEncoding encoding) throws IOException {
+    this.in = in;
+    this.gzip = encoding == ContentEncoding.GZIP;
+    this.inflater = CompressionPool.acquireInflater(gzip);
+    this.buffer = ScratchBuffers.acquireBytes(BUFFER_SIZE);
+    try {
+      if (gzip) {
+        readHeader();
+      }
+    } catch (IOException e) {
+      releaseResources();
+      throw e;
+    }
+  }
+
+  @Override
+  public int read() throws IOException {
+    byte[] b = new byte[1];
+    return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (off < 0 || len < 0 || len > b.length - off) {
+      throw new IndexOutOfBoundsException();
+    }
+    if (closed) {
+      throw new IOException("Stream closed");
+    }
+    if (eof) {
+      return -1;
+    }
+    if (len == 0) {
+      return 0;
+    }
+    try {
+      while (true) {
+        int n = inflater.inflate(b, off, len);
+        if (n > 0) {
+          if (gzip) {
+            crc.update(b, off, n);
+          }
+          return n;
+        }
+        if (inflater.finished()) {
+          position = limit - inflater.getRemaining();
+          if (!gzip || !readTrailer()) {
+            eof = true;
+            releaseResources();
+            return -1;
+          }
+        } else if (inflater.needsDictionary()) {
+          throw new ZipException("Compressed content requires a preset dictionary");
+        } else if (inflater.needsInput()) {
+          if (position == limit && !fill()) {
+            throw new EOFException("Unexpected end of compressed content");
+          }
+          inflater.setInput(buffer, position, limit - position);
+          position = limit;
+        }
+      }
+    } catch (DataFormatException e) {
+      String reason = e.getMessage();
+      throw new ZipException(reason == null ? "Invalid compressed content" : reason);
+    }
+  }
+
+  /** Reads the header of a gzip member, leaving the inflater at the start of its data. */
+  private void readHeader() throws IOException {
+    if (readUnsignedShort() != GZIP_MAGIC) {
+      throw new ZipException("Not in gzip format");
+    }
+    if (readUnsignedByte() != Deflater.DEFLATED) {
+      throw new ZipException("Unsupported gzip compression method");
+    }
+    int flags = readUnsignedByte();
+    // Modification time, extra flags and operating system.
+    skipBytes(6);
+    if ((flags & FEXTRA) != 0) {
+      skipBytes(readUnsignedShort());
+    }
+    if ((flags & FNAME) != 0) {
+      skipString();
+    }
+    if ((flags & FCOMMENT) != 0) {
+      skipString();
+    }
+    if ((flags & FHCRC) != 0) {
+      skipBytes(2);
+    }
+    crc.reset();
+  }
+
+  /**
+   * Checks the trailer of a gzip member and starts the next member if one follows.
+   *
+   * @return true if another member follows
+   */
+  private boolean readTrailer() throws IOException {
+    if (readUnsignedInt() != crc.getValue()) {
+      throw new ZipException("Corrupt gzip trailer: CRC mismatch");
+    }
+    if (readUnsignedInt() != (inflater.getBytesWritten() & 0xffffffffL)) {
+      throw new ZipException("Corrupt gzip trailer: size mismatch");
+    }
+    if (position == limit && !fill()) {
+      return false;
+    }
+    inflater.reset();
+    readHeader();
+    return true;
+  }
+
+  /** @return false at the end of the underlying stream */
+  private boolean fill() throws IOException {
+    int n;
+    do {
+      n = in.read(buffer, 0, buffer.length);
+    } while (n == 0);
+    position = 0;
+    limit = Math.max(n, 0);
+    return n > 0;
+  }
+
+  private int readUnsignedByte() throws IOException {
+    if (position == limit && !fill()) {
+      throw new EOFException("Unexpected end of gzip content");
+    }
+    return buffer[position++] & 0xff;
+  }
+
+  private int readUnsignedShort() throws IOException {
+    return readUnsignedByte() | (readUnsignedByte() << 8);
+  }
+
+  private long readUnsignedInt() throws IOException {
+    return readUnsignedShort() | ((long) readUnsignedShort() << 16);
+  }
+
+  private void skipBytes(int n) throws IOException {
+    for (int i = 0; i < n; i++) {
+      readUnsignedByte();
+    }
+  }
+
+  private void skipString() throws IOException {
+    while (readUnsignedByte() != 0) {
+      // Skip to the terminating zero byte.
+    }
+  }
+
+  /** Closes the underlying stream and returns the inflater to the pool if still held. */
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    releaseResources();
+    in.close();
+  }
+
+  private void releaseResources() {
+    if (inflater != null) {
+      CompressionPool.release(inflater, gzip);
+      inflater = null;
+      ScratchBuffers.release(buffer);
+      buffer = null;
+    }
+  }
+}
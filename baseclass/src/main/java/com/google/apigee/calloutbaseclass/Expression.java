@@ -0,0 +1,629 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.apigee.calloutbaseclass;
+
+import com.apigee.flow.message.MessageContext;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Compiled expression between curly braces in a property value, extending plain references with
+ * function calls and fallback chains, e.g. "{lower(request.header.accept) ?? 'none'}". Expressions
+ * are parsed once into a tree of nodes; evaluating one appends the values of the nodes to a single
+ * builder, so references and literals are not copied into intermediate strings.
+ *
+ * <p>Grammar, whitespace allowed between tokens:
+ *
+ * <pre>
+ * expression := term ( "??" term )*                    first term that is set
+ * term       := 'string' | number | call | reference
+ * call       := function "(" [ expression ( "," expression )* ] ")"
+ * reference  := name-chars [ ":" default ]
+ * </pre>
+ *
+ * <p>A value in braces only becomes an expression if it uses one of these constructs; plain
+ * "{name}" and "{name:default}" references keep being compiled as before, and nested braces keep
+ * their literal meaning. A variable whose name is computed is only read through the explicit
+ * var() function.
+ */
+abstract class Expression {
+
+  // Characters that end a name or a default; anything else is part of it.
+  private static final String NAME_DELIMITERS = "{}(),'\":?";
+  private static final String DEFAULT_DELIMITERS = "{}(),'\"?";
+  private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+  private static final char[] BASE64_DIGITS =
+      "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+  /**
+   * Appends the value of the expression.
+   *
+   * @param sb Builder to append to
+   * @param messageContext Message Context
+   * @param variables Variable buffer of the request, or null to read the Message Context directly
+   * @return false if the value is not set, in which case nothing was appended
+   */
+  abstract boolean appendTo(
+      StringBuilder sb, MessageContext messageContext, VariableBuffer variables);
+
+  /**
+   * Evaluates the expression.
+   *
+   * @param messageContext Message Context
+   * @param variables Variable buffer of the request, or null to read the Message Context directly
+   * @return Value of the expression, or null if it is not set
+   */
+  String evaluate(MessageContext messageContext, VariableBuffer variables) {
+    StringBuilder sb = ScratchBuffers.acquireStringBuilder();
+    if (!appendTo(sb, messageContext, variables)) {
+      ScratchBuffers.release(sb);
+      return null;
+    }
+    return ScratchBuffers.toStringAndRelease(sb);
+  }
+
+  /** @return true if the expression uses a construct beyond a plain reference or number */
+  boolean isExtended() {
+    return true;
+  }
+
+  /**
+   * Adds the names of the variables the expression reads.
+   *
+   * @param names Set to add to
+   * @return false if the expression also reads variables whose names are only known when it is
+   *     evaluated
+   */
+  abstract boolean collectVariableNames(Set<String> names);
+
+  /**
+   * Parses the expression between the braces opening at a position.
+   *
+   * @param spec Property value
+   * @param open Index of the opening brace
+   * @return Parsed expression ending at {@link Parser#end}, or null if there is no valid expression
+   *     using an extended construct
+   */
+  static Parser parse(String spec, int open) {
+    Parser parser = new Parser(spec, open + 1);
+    try {
+      Expression expression = parser.expression();
+      parser.skipWhitespace();
+      if (parser.peek() != '}' || !expression.isExtended()) {
+        return null;
+      }
+      parser.result = expression;
+      parser.end = parser.position;
+      return parser;
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+  }
+
+  /** Recursive descent parser; invalid input fails with an IllegalArgumentException. */
+  static final class Parser {
+    private final String spec;
+    private int position;
+    Expression result;
+    // Index of the closing brace of the parsed expression.
+    int end;
+
+    Parser(String spec, int position) {
+      this.spec = spec;
+      this.position = position;
+    }
+
+    private char peek() {
+      return position < spec.length() ? spec.charAt(position) : '\0';
+    }
+
+    private void skipWhitespace() {
+      while (position < spec.length() && Character.isWhitespace(spec.charAt(position))) {
+        position++;
+      }
+    }
+
+    private void expect(char c) {
+      if (peek() != c) {
+        throw new IllegalArgumentException("expected " + c + " at " + position);
+      }
+      position++;
+    }
+
+    private Expression expression() {
+      List<Expression> terms = new ArrayList<>();
+      skipWhitespace();
+      terms.add(term());
+      skipWhitespace();
+      while (spec.startsWith("??", position)) {
+        position += 2;
+        skipWhitespace();
+        terms.add(term());
+        skipWhitespace();
+      }
+      return terms.size() == 1 ? terms.get(0) : new Chain(terms.toArray(new Expression[0]));
+    }
+
+    private Expression term() {
+      char c = peek();
+      if (c == '\'') {
+        return string();
+      }
+      int start = position;
+      String name = chars(NAME_DELIMITERS);
+      if (peek() == '(' && !name.isEmpty()) {
+        Function function = Function.forName(name);
+        if (function == null) {
+          throw new IllegalArgumentException("unknown function " + name);
+        }
+        return call(function);
+      }
+      if (isNumber(name) && peek() != '{' && peek() != ':') {
+        return new NumberLiteral(name);
+      }
+      position = start;
+      return reference();
+    }
+
+    private Expression string() {
+      expect('\'');
+      StringBuilder sb = new StringBuilder();
+      while (peek() != '\'') {
+        char c = peek();
+        if (c == '\0') {
+          throw new IllegalArgumentException("unterminated string");
+        }
+        if (c == '\\') {
+          position++;
+          c = peek();
+          if (c == '\0') {
+            throw new IllegalArgumentException("unterminated string");
+          }
+        }
+        sb.append(c);
+        position++;
+      }
+      position++;
+      return new Literal(sb.toString());
+    }
+
+    private Expression call(Function function) {
+      expect('(');
+      List<Expression> args = new ArrayList<>();
+      skipWhitespace();
+      if (peek() != ')') {
+        args.add(expression());
+        while (peek() == ',') {
+          position++;
+          args.add(expression());
+        }
+      }
+      expect(')');
+      if (args.size() < function.minArgs || args.size() > function.maxArgs) {
+        throw new IllegalArgumentException("wrong number of arguments to " + function);
+      }
+      return new Call(function, args.toArray(new Expression[0]));
+    }
+
+    private Expression reference() {
+      String name = chars(NAME_DELIMITERS);
+      if (name.isEmpty()) {
+        // Also rejects nested braces, which keep their literal meaning.
+        throw new IllegalArgumentException("expected reference at " + position);
+      }
+      String defaultValue = null;
+      if (peek() == ':') {
+        position++;
+        defaultValue = chars(DEFAULT_DELIMITERS);
+      }
+      return new Reference(name, defaultValue);
+    }
+
+    /** Reads characters up to whitespace or a delimiter. */
+    private String chars(String delimiters) {
+      int start = position;
+      while (position < spec.length()) {
+        char c = spec.charAt(position);
+        if (Character.isWhitespace(c) || delimiters.indexOf(c) >= 0) {
+          break;
+        }
+        position++;
+      }
+      return spec.substring(start, position);
+    }
+
+    private static boolean isNumber(String s) {
+      int start = s.startsWith("-") ? 1 : 0;
+      if (s.length() == start || s.length() - start > 9) {
+        return false;
+      }
+      for (int i = start; i < s.length(); i++) {
+        if (s.charAt(i) < '0' || s.charAt(i) > '9') {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  /** Quoted string. */
+  private static final class Literal extends Expression {
+    private final String value;
+
+    Literal(String value) {
+      this.value = value;
+    }
+
+    @Override
+    boolean appendTo(StringBuilder sb, MessageContext messageContext, VariableBuffer variables) {
+      sb.append(value);
+      return true;
+    }
+
+    @Override
+    String evaluate(MessageContext messageContext, VariableBuffer variables) {
+      return value;
+    }
+
+    @Override
+    boolean collectVariableNames(Set<String> names) {
+      return true;
+    }
+  }
+
+  /** Integer literal, e.g. an index passed to substring. */
+  private static final class NumberLiteral extends Expression {
+    private final String value;
+
+    NumberLiteral(String value) {
+      this.value = value;
+    }
+
+    @Override
+    boolean appendTo(StringBuilder sb, MessageContext messageContext, VariableBuffer variables) {
+      sb.append(value);
+      return true;
+    }
+
+    @Override
+    String evaluate(MessageContext messageContext, VariableBuffer variables) {
+      return value;
+    }
+
+    @Override
+    boolean isExtended() {
+      return false;
+    }
+
+    @Override
+    boolean collectVariableNames(Set<String> names) {
+      return true;
+    }
+  }
+
+  /** Flow variable with a fixed name, with the same semantics as a plain reference. */
+  private static final class Reference extends Expression {
+    private final String name;
+    private final String defaultValue;
+
+    Reference(String name, String defaultValue) {
+      this.name = name;
+      this.defaultValue = defaultValue;
+    }
+
+    @Override
+    boolean appendTo(StringBuilder sb, MessageContext messageContext, VariableBuffer variables) {
+      String value = evaluate(messageContext, variables);
+      if (value == null) {
+        return false;
+      }
+      sb.append(value);
+      return true;
+    }
+
+    @Override
+    String evaluate(MessageContext messageContext, VariableBuffer variables) {
+      String value = PropertyTemplate.readVariable(name, messageContext, variables);
+      return value == null ? defaultValue : value;
+    }
+
+    @Override
+    boolean isExtended() {
+      return false;
+    }
+
+    @Override
+    boolean collectVariableNames(Set<String> names) {
+      names.add(name);
+      return true;
+    }
+  }
+
+  /** Fallback chain, e.g. "a ?? b ?? 'none'": the first term that is set. */
+  private static final class Chain extends Expression {
+    private final Expression[] terms;
+
+    Chain(Expression[] terms) {
+      this.terms = terms;
+    }
+
+    @Override
+    boolean appendTo(StringBuilder sb, MessageContext messageContext, VariableBuffer variables) {
+      int mark = sb.length();
+      for (Expression term : terms) {
+        if (term.appendTo(sb, messageContext, variables)) {
+          return true;
+        }
+        sb.setLength(mark);
+      }
+      return false;
+    }
+
+    @Override
+    boolean collectVariableNames(Set<String> names) {
+      boolean known = true;
+      for (Expression term : terms) {
+        known &= term.collectVariableNames(names);
+      }
+      return known;
+    }
+  }
+
+  /** Call of a built-in function. */
+  private static final class Call extends Expression {
+    private final Function function;
+    private final Expression[] args;
+
+    Call(Function function, Expression[] args) {
+      this.function = function;
+      this.args = args;
+    }
+
+    @Override
+    boolean appendTo(StringBuilder sb, MessageContext messageContext, VariableBuffer variables) {
+      return function.appendTo(sb, args, messageContext, variables);
+    }
+
+    @Override
+    boolean collectVariableNames(Set<String> names) {
+      boolean known = function != Function.VAR;
+      for (Expression arg : args) {
+        known &= arg.collectVariableNames(names);
+      }
+      return known;
+    }
+  }
+
+  /**
+   * Built-in functions. Functions of a single value are not set if their argument is not set, so
+   * that they can be followed by a fallback.
+   */
+  private enum Function {
+    LOWER(1, 1) {
+      @Override
+      boolean appendTo(StringBuilder sb, Expression[] args, MessageContext mc, VariableBuffer vb) {
+        String s = args[0].evaluate(mc, vb);
+        if (s == null) {
+          return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+          sb.append(Character.toLowerCase(s.charAt(i)));
+        }
+        return true;
+      }
+    },
+    UPPER(1, 1) {
+      @Override
+      boolean appendTo(StringBuilder sb, Expression[] args, MessageContext mc, VariableBuffer vb) {
+        String s = args[0].evaluate(mc, vb);
+        if (s == null) {
+          return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+          sb.append(Character.toUpperCase(s.charAt(i)));
+        }
+        return true;
+      }
+    },
+    TRIM(1, 1) {
+      @Override
+      boolean appendTo(StringBuilder sb, Expression[] args, MessageContext mc, VariableBuffer vb) {
+        String s = args[0].evaluate(mc, vb);
+        if (s == null) {
+          return false;
+        }
+        int start = 0;
+        int end = s.length();
+        while (start < end && s.charAt(start) <= ' ') {
+          start++;
+        }
+        while (end > start && s.charAt(end - 1) <= ' ') {
+          end--;
+        }
+        sb.append(s, start, end);
+        return true;
+      }
+    },
+    /** Percent-encodes the UTF-8 bytes of the value, leaving only unreserved characters. */
+    URLENCODE(1, 1) {
+      @Override
+      boolean appendTo(StringBuilder sb, Expression[] args, MessageContext mc, VariableBuffer vb) {
+        String s = args[0].evaluate(mc, vb);
+        if (s == null) {
+          return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+          char c = s.charAt(i);
+          if (isUnreserved(c)) {
+            sb.append(c);
+          } else if (c < 0x80) {
+            appendPercent(sb, c);
+          } else {
+            int end = Character.isHighSurrogate(c) && i + 1 < s.length() ? i + 2 : i + 1;
+            for (byte b : s.substring(i, end).getBytes(StandardCharsets.UTF_8)) {
+              appendPercent(sb, b & 0xff);
+            }
+            i = end - 1;
+          }
+        }
+        return true;
+      }
+    },
+    /** Base64 encodes the UTF-8 bytes of the value. */
+    BASE64(1, 1) {
+      @Override
+      boolean appendTo(StringBuilder sb, Expression[] args, MessageContext mc, VariableBuffer vb) {
+        String s = args[0].evaluate(mc, vb);
+        if (s == null) {
+          return false;
+        }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        int i = 0;
+        for (; i + 2 < bytes.length; i += 3) {
+          int n = (bytes[i] & 0xff) << 16 | (bytes[i + 1] & 0xff) << 8 | (bytes[i + 2] & 0xff);
+          sb.append(BASE64_DIGITS[n >> 18])
+              .append(BASE64_DIGITS[(n >> 12) & 0x3f])
+              .append(BASE64_DIGITS[(n >> 6) & 0x3f])
+              .append(BASE64_DIGITS[n & 0x3f]);
+        }
+        if (i < bytes.length) {
+          boolean two = i + 1 < bytes.length;
+          int n = (bytes[i] & 0xff) << 16 | (two ? (bytes[i + 1] & 0xff) << 8 : 0);
+          sb.append(BASE64_DIGITS[n >> 18]).append(BASE64_DIGITS[(n >> 12) & 0x3f]);
+          sb.append(two ? BASE64_DIGITS[(n >> 6) & 0x3f] : '=').append('=');
+        }
+        return true;
+      }
+    },
+    /** substring(value, start[, end]); indices are clamped, negative ones count from the end. */
+    SUBSTRING(2, 3) {
+      @Override
+      boolean appendTo(StringBuilder sb, Expression[] args, MessageContext mc, VariableBuffer vb) {
+        String s = args[0].evaluate(mc, vb);
+        if (s == null) {
+          return false;
+        }
+        int start = index(args[1].evaluate(mc, vb), s.length(), 0);
+        int end =
+            args.length > 2 ? index(args[2].evaluate(mc, vb), s.length(), s.length()) : s.length();
+        if (start < end) {
+          sb.append(s, start, end);
+        }
+        return true;
+      }
+    },
+    /**
+     * var(name): the flow variable whose name is the value, e.g. var(concat('request.header.',
+     * name)). Not set if the name or the variable is not set. The variable read may depend on the
+     * request, so callouts should only build names from trusted values.
+     */
+    VAR(1, 1) {
+      @Override
+      boolean appendTo(StringBuilder sb, Expression[] args, MessageContext mc, VariableBuffer vb) {
+        String name = args[0].evaluate(mc, vb);
+        String value = name == null ? null : PropertyTemplate.readVariable(name, mc, vb);
+        if (value == null) {
+          return false;
+        }
+        sb.append(value);
+        return true;
+      }
+    },
+    /** Concatenates the values, leaving out those that are not set. */
+    CONCAT(1, Integer.MAX_VALUE) {
+      @Override
+      boolean appendTo(StringBuilder sb, Expression[] args, MessageContext mc, VariableBuffer vb) {
+        for (Expression arg : args) {
+          arg.appendTo(sb, mc, vb);
+        }
+        return true;
+      }
+    },
+    /** "true" if both values are equal or both are not set, else "false". */
+    EQ(2, 2) {
+      @Override
+      boolean appendTo(StringBuilder sb, Expression[] args, MessageContext mc, VariableBuffer vb) {
+        String a = args[0].evaluate(mc, vb);
+        String b = args[1].evaluate(mc, vb);
+        sb.append(a == null ? b == null : a.equals(b));
+        return true;
+      }
+    },
+    /**
+     * if(condition, then[, else]): the condition holds if it is set, not empty and not "false".
+     * Without an else branch the result is not set if the condition does not hold.
+     */
+    IF(2, 3) {
+      @Override
+      boolean appendTo(StringBuilder sb, Expression[] args, MessageContext mc, VariableBuffer vb) {
+        String condition = args[0].evaluate(mc, vb);
+        if (condition != null && !condition.isEmpty() && !"false".equalsIgnoreCase(condition)) {
+          return args[1].appendTo(sb, mc, vb);
+        }
+        return args.length > 2 && args[2].appendTo(sb, mc, vb);
+      }
+    };
+
+    private final int minArgs;
+    private final int maxArgs;
+
+    Function(int minArgs, int maxArgs) {
+      this.minArgs = minArgs;
+      this.maxArgs = maxArgs;
+    }
+
+    abstract boolean appendTo(
+        StringBuilder sb, Expression[] args, MessageContext mc, VariableBuffer vb);
+
+    static Function forName(String name) {
+      for (Function function : values()) {
+        if (function.name().equalsIgnoreCase(name)) {
+          return function;
+        }
+      }
+      return null;
+    }
+
+    private static boolean isUnreserved(char c) {
+      return (c >= 'a' && c <= 'z')
+          || (c >= 'A' && c <= 'Z')
+          || (c >= '0' && c <= '9')
+          || c == '-'
+          || c == '.'
+          || c == '_'
+          || c == '~';
+    }
+
+    private static void appendPercent(StringBuilder sb, int b) {
+      sb.append('%').append(HEX[b >> 4]).append(HEX[b & 0xf]);
+    }
+
+    /** Parses an index argument, counting negative values back from the length. */
+    private static int index(String value, int length, int defaultValue) {
+      int index;
+      try {
+        index = value == null ? defaultValue : Integer.parseInt(value.trim());
+      } catch (NumberFormatException e) {
+        index = defaultValue;
+      }
+      if (index < 0) {
+        index += length;
+      }
+      return Math.max(0, Math.min(index, length));
+    }
+  }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.apigee.calloutbaseclass;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Runs independent sub-tasks of a request in parallel, so that the request takes as long as its
+ * slowest branch rather than the sum of all branches. Opened with {@link
+ * CalloutBase#openFanOut(com.apigee.flow.message.MessageContext)}:
+ *
+ * <pre>
+ * try (FanOut fanOut = openFanOut(messageContext)) {
+ *   Future&lt;String&gt; signature = fanOut.submit(() -&gt; sign(payload));
+ *   Future&lt;String&gt; digest = fanOut.submit(() -&gt; hash(payload));
+ *   fanOut.join();
+ *   setVariable("signature", signature.get(), messageContext);
+ *   setVariable("digest", digest.get(), messageContext);
+ * }
+ * </pre>
+ *
+ * <p>Branches run on an executor shared by all callouts: platform threads on Java 8 to 20, a
+ * virtual thread per branch on Java 21 and above. Each callout runs at most
+ * "callout-fanout-max-concurrency" branches on it at the same time; once saturated, further
+ * branches run on the submitting thread, which slows the submitting request down rather than
+ * queueing work without bound. The same happens when the platform thread pool, shared by all
+ * callouts, has no thread or queue slot left.
+ *
+ * <p>Branches run outside the request scope and may run concurrently, so they should not access
+ * the Message Context or log through the callout; they return their results, which the request
+ * thread applies after {@link #join()}. A fan-out belongs to a single request and must only be
+ * used by the thread that opened it.
+ */
+public final class FanOut implements AutoCloseable {
+
+  private final Semaphore permits;
+  // System.nanoTime() by which branches must finish, if hasDeadline.
+  private final long deadline;
+  private final boolean hasDeadline;
+  private final List<Branch<?>> branches = new ArrayList<>();
+  private final BlockingQueue<Branch<?>> completed = new LinkedBlockingQueue<>();
+  private int joined;
+
+  /**
+   * @param permits Bound on the branches of the callout running on the executor
+   * @param remainingNanos Time left until the deadline of the request, or Long.MAX_VALUE if none
+   */
+  FanOut(Semaphore permits, long remainingNanos) {
+    this.permits = permits;
+    this.hasDeadline = remainingNanos != Long.MAX_VALUE;
+    this.deadline = hasDeadline ? System.nanoTime() + remainingNanos : 0;
+  }
+
+  /** @return true if branches run on virtual threads */
+  public static boolean isVirtualThreads() {
+    return FanOutThreads.isVirtual();
+  }
+
+  /**
+   * Starts a branch. If the callout already runs its maximum number of branches, the branch runs
+   * on the current thread before this method returns.
+   *
+   * @param task Branch to run
+   * @param <T> Type of the result
+   * @return Future of the result of the branch
+   */
+  public <T> Future<T> submit(Callable<T> task) {
+    Branch<T> branch = new Branch<>(task);
+    branches.add(branch);
+    if (!permits.tryAcquire()) {
+      branch.run();
+      return branch;
+    }
+    try {
+      Executor.INSTANCE.execute(
+          () -> {
+            try {
+              branch.run();
+            } finally {
+              permits.release();
+            }
+          });
+    } catch (RejectedExecutionException e) {
+      permits.release();
+      branch.run();
+    }
+    return branch;
+  }
+
+  /**
+   * Waits for all submitted branches until the deadline of the request. If a branch fails, the
+   * other branches are cancelled and its exception is thrown without waiting for them, so that
+   * callouts implementing executeCallout store it in the exception flow variables.
+   *
+   * @throws TimeoutException if the deadline passes first; unfinished branches are cancelled
+   * @throws InterruptedException if the current thread is interrupted while waiting
+   * @throws Exception the exception thrown by the first branch that failed
+   */
+  public void join() throws Exception {
+    join(deadline, hasDeadline);
+  }
+
+  /**
+   * Waits for all submitted branches until a timeout or the deadline of the request, whichever
+   * comes first. Failures are handled as in {@link #join()}.
+   *
+   * @param timeout Maximum time to wait
+   * @throws TimeoutException if the timeout or deadline passes first
+   * @throws InterruptedException if the current thread is interrupted while waiting
+   * @throws Exception the exception thrown by the first branch that failed
+   */
+  public void join(Duration timeout) throws Exception {
+    long timeoutDeadline = System.nanoTime() + timeout.toNanos();
+    join(hasDeadline && deadline - timeoutDeadline < 0 ? deadline : timeoutDeadline, true);
+  }
+
+  private void join(long until, boolean bounded) throws Exception {
+    try {
+      while (joined < branches.size()) {
+        Branch<?> branch;
+        if (bounded) {
+          branch = completed.poll(until - System.nanoTime(), TimeUnit.NANOSECONDS);
+          if (branch == null) {
+            throw new TimeoutException(
+                String.format(
+                    "Deadline exceeded with %d of %d fan-out branches unfinished",
+                    branches.size() - joined, branches.size()));
+          }
+        } else {
+          branch = completed.take();
+        }
+        joined++;
+        branch.rethrowFailure();
+      }
+    } catch (Exception e) {
+      close();
+      throw e;
+    }
+  }
+
+  /** Cancels the branches that have not finished, interrupting those that are running. */
+  @Override
+  public void close() {
+    for (Branch<?> branch : branches) {
+      branch.cancel(true);
+    }
+  }
+
+  /** Branch that reports its completion to the fan-out. */
+  private final class Branch<T> extends FutureTask<T> {
+
+    Branch(Callable<T> task) {
+      super(task);
+    }
+
+    @Override
+    protected void done() {
+      completed.add(this);
+    }
+
+    void rethrowFailure() throws Exception {
+      try {
+        get();
+      } catch (CancellationException e) {
+        // Only cancelled by close, after the failure that caused it was thrown.
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof Exception) {
+          throw (Exception) cause;
+        }
+        if (cause instanceof Error) {
+          throw (Error) cause;
+        }
+        throw e;
+      }
+    }
+  }
+
+  /** Executor shared by all callouts, created on first use. */
+  private static final class Executor {
+    static final ExecutorService INSTANCE = FanOutThreads.newExecutor();
+  }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.apigee.calloutbaseclass;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the executor running the fan-out branches of all callouts. This Java 8 version uses a
+ * pool of daemon platform threads; on Java 21 and above the multi-release jar replaces it with a
+ * version that starts a virtual thread per branch, so blocking branches do not tie up threads.
+ */
+final class FanOutThreads {
+
+  private static final int POOL_SIZE = Math.max(8, 4 * Runtime.getRuntime().availableProcessors());
+  // Branches waiting for a thread, across all callouts. Each callout bounds only its own branches,
+  // so without this bound many callouts together could queue work without limit.
+  private static final int QUEUE_SIZE = POOL_SIZE;
+
+  private FanOutThreads() {}
+
+  /** @return true if branches run on virtual threads */
+  static boolean isVirtual() {
+    return false;
+  }
+
+  /** @return Default number of branches a callout runs on the executor at the same time */
+  static int defaultMaxConcurrency() {
+    return POOL_SIZE;
+  }
+
+  /**
+   * @return New executor; idle threads exit after a minute, and branches submitted while its queue
+   *     is full are rejected so that they run on the submitting thread
+   */
+  static ExecutorService newExecutor() {
+    AtomicInteger number = new AtomicInteger();
+    ThreadPoolExecutor executor =
+        new ThreadPoolExecutor(
+            POOL_SIZE,
+            POOL_SIZE,
+            1,
+            TimeUnit.MINUTES,
+            new ArrayBlockingQueue<>(QUEUE_SIZE),
+            r -> {
+              Thread thread = new Thread(r, "callout-fanout-" + number.incrementAndGet());
+              thread.setDaemon(true);
+              return thread;
+            });
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+}
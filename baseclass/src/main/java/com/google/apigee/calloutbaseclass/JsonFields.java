@@ -0,0 +1,242 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.apigee.calloutbaseclass;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Named JSON paths compiled once and evaluated over streamed JSON without building a tree. Only
+ * the members leading to a path are examined; everything else is skipped as it is read.
+ *
+ * <p>{@link #extract(Reader)} stops reading as soon as every path has been found. {@link
+ * #patch(Reader, Writer, Map)} copies the JSON through, replacing only the values at the given
+ * paths.
+ */
+public final class JsonFields {
+
+  private final String[] names;
+  private final JsonPath[] paths;
+  private final int maxLength;
+
+  private JsonFields(String[] names, JsonPath[] paths) {
+    this.names = names;
+    this.paths = paths;
+    int length = 0;
+    for (JsonPath path : paths) {
+      length = Math.max(length, path.length());
+    }
+    this.maxLength = length;
+  }
+
+  /**
+   * Compiles named paths of the form "$.a.b[0]['c d']".
+   *
+   * @param pathsByName Path of each name
+   * @return Compiled paths
+   * @throws IllegalArgumentException if a path is invalid
+   */
+  public static JsonFields compile(Map<String, String> pathsByName) {
+    String[] names = new String[pathsByName.size()];
+    JsonPath[] paths = new JsonPath[names.length];
+    int i = 0;
+    for (Map.Entry<String, String> entry : pathsByName.entrySet()) {
+      names[i] = entry.getKey();
+      paths[i] = JsonPath.compile(entry.getKey(), entry.getValue());
+      i++;
+    }
+    return new JsonFields(names, paths);
+  }
+
+  /** @return true if no paths are declared */
+  public boolean isEmpty() {
+    return names.length == 0;
+  }
+
+  /**
+   * Extracts the value at each path. String values are unescaped; other values are returned as
+   * their JSON text. Reading stops once every path has been found.
+   *
+   * @param reader JSON text
+   * @return Value of each path found, by name
+   * @throws IOException if the JSON cannot be read or is malformed
+   */
+  public Map<String, String> extract(Reader reader) throws IOException {
+    if (names.length == 0) {
+      return Collections.emptyMap();
+    }
+    Evaluation evaluation = new Evaluation(new JsonScanner(reader, null), null);
+    evaluation.visit(0);
+    Map<String, String> values = new HashMap<>();
+    for (int i = 0; i < names.length; i++) {
+      if (evaluation.values[i] != null) {
+        values.put(names[i], evaluation.values[i]);
+      }
+    }
+    return values;
+  }
+
+  /**
+   * Copies JSON text, replacing the values at some of the paths. Paths not found are ignored.
+   *
+   * @param reader JSON text
+   * @param writer Writer receiving the patched JSON text
+   * @param replacements JSON text of the new value by path name, e.g. {@link #quote(String)} of a
+   *     string
+   * @throws IOException if the JSON cannot be read or written, or is malformed
+   * @throws IllegalArgumentException if a replacement names an undeclared path
+   */
+  public void patch(Reader reader, Writer writer, Map<String, String> replacements)
+      throws IOException {
+    String[] values = new String[names.length];
+    for (Map.Entry<String, String> replacement : replacements.entrySet()) {
+      int i = Arrays.asList(names).indexOf(replacement.getKey());
+      if (i < 0) {
+        throw new IllegalArgumentException("Undeclared JSON path: " + replacement.getKey());
+      }
+      values[i] = replacement.getValue();
+    }
+    JsonScanner scanner = new JsonScanner(reader, writer);
+    new Evaluation(scanner, values).visit(0);
+    scanner.copyRemaining();
+  }
+
+  /**
+   * Quotes a string as a JSON string value.
+   *
+   * @param value String to quote
+   * @return JSON text of the string
+   */
+  public static String quote(String value) {
+    StringBuilder sb = ScratchBuffers.acquireStringBuilder().append('"');
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c == '"' || c == '\\') {
+        sb.append('\\').append(c);
+      } else if (c == '\n') {
+        sb.append("\\n");
+      } else if (c == '\r') {
+        sb.append("\\r");
+      } else if (c == '\t') {
+        sb.append("\\t");
+      } else if (c < 0x20) {
+        sb.append(String.format("\\u%04x", (int) c));
+      } else {
+        sb.append(c);
+      }
+    }
+    return ScratchBuffers.toStringAndRelease(sb.append('"'));
+  }
+
+  /** State of one pass over a JSON document. */
+  private final class Evaluation {
+    private final JsonScanner scanner;
+    // Replacement of each path in patch mode, or null when extracting.
+    private final String[] replacements;
+    private final String[] values = new String[names.length];
+    private final boolean[] done = new boolean[names.length];
+    private final String[] stackNames = new String[maxLength];
+    private final int[] stackIndexes = new int[maxLength];
+    private int remaining;
+
+    Evaluation(JsonScanner scanner, String[] replacements) {
+      this.scanner = scanner;
+      this.replacements = replacements;
+      for (int i = 0; i < names.length; i++) {
+        done[i] = replacements != null && replacements[i] == null;
+        if (!done[i]) {
+          remaining++;
+        }
+      }
+    }
+
+    /**
+     * Visits the value at the current location.
+     *
+     * @param depth Number of members and elements enclosing the value
+     * @return true once every path has been handled
+     */
+    boolean visit(int depth) throws IOException {
+      if (remaining == 0) {
+        return true;
+      }
+      for (int i = 0; i < paths.length; i++) {
+        if (!done[i]
+            && paths[i].length() == depth
+            && paths[i].matches(depth, stackNames, stackIndexes)) {
+          if (replacements == null) {
+            values[i] = scanner.readValue();
+          } else {
+            scanner.replaceValue(replacements[i]);
+          }
+          done[i] = true;
+          return --remaining == 0;
+        }
+      }
+      if (!leadsToPath(depth)) {
+        scanner.skipValue();
+        return false;
+      }
+      int c = scanner.peek();
+      if (c == '{') {
+        scanner.expect('{');
+        if (scanner.consume('}')) {
+          return false;
+        }
+        do {
+          stackNames[depth] = scanner.readString();
+          stackIndexes[depth] = -1;
+          scanner.expect(':');
+          if (visit(depth + 1)) {
+            return true;
+          }
+        } while (scanner.consume(','));
+        scanner.expect('}');
+      } else if (c == '[') {
+        scanner.expect('[');
+        if (scanner.consume(']')) {
+          return false;
+        }
+        int index = 0;
+        do {
+          stackNames[depth] = null;
+          stackIndexes[depth] = index++;
+          if (visit(depth + 1)) {
+            return true;
+          }
+        } while (scanner.consume(','));
+        scanner.expect(']');
+      } else {
+        scanner.skipValue();
+      }
+      return false;
+    }
+
+    private boolean leadsToPath(int depth) {
+      for (int i = 0; i < paths.length; i++) {
+        if (!done[i]
+            && paths[i].length() > depth
+            && paths[i].matches(depth, stackNames, stackIndexes)) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.apigee.calloutbaseclass;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compiled JSON path of the form "$.a.b[0]['c d']": a sequence of object field names and array
+ * indexes from the root value. The leading "$" may be left out, and "$" alone is the root.
+ */
+final class JsonPath {
+
+  // Field name of each segment, or null if the segment is an array index.
+  private final String[] names;
+  // Array index of each segment, or -1 if the segment is a field name.
+  private final int[] indexes;
+
+  private JsonPath(String[] names, int[] indexes) {
+    this.names = names;
+    this.indexes = indexes;
+  }
+
+  /**
+   * Compiles a path.
+   *
+   * @param propertyName Name of the property declaring the path, for error messages
+   * @param spec Path to compile
+   * @return Compiled path
+   * @throws IllegalArgumentException if spec is not a valid path
+   */
+  static JsonPath compile(String propertyName, String spec) {
+    String path = spec;
+    if (path.startsWith("$")) {
+      path = path.substring(1);
+    } else if (!path.startsWith("[") && !path.startsWith(".")) {
+      path = "." + path;
+    }
+    List<String> names = new ArrayList<>();
+    List<Integer> indexes = new ArrayList<>();
+    int i = 0;
+    while (i < path.length()) {
+      char c = path.charAt(i);
+      int end;
+      if (c == '.') {
+        end = i + 1;
+        while (end < path.length() && path.charAt(end) != '.' && path.charAt(end) != '[') {
+          end++;
+        }
+        if (end == i + 1) {
+          throw invalid(propertyName, spec);
+        }
+        names.add(path.substring(i + 1, end));
+        indexes.add(-1);
+        i = end;
+      } else if (c == '[' && i + 1 < path.length()
+          && (path.charAt(i + 1) == '\'' || path.charAt(i + 1) == '"')) {
+        end = path.indexOf(path.charAt(i + 1), i + 2);
+        if (end < 0 || end + 1 >= path.length() || path.charAt(end + 1) != ']') {
+          throw invalid(propertyName, spec);
+        }
+        names.add(path.substring(i + 2, end));
+        indexes.add(-1);
+        i = end + 2;
+      } else if (c == '[') {
+        end = path.indexOf(']', i);
+        int index;
+        try {
+          index = end < 0 ? -1 : Integer.parseInt(path.substring(i + 1, end));
+        } catch (NumberFormatException e) {
+          index = -1;
+        }
+        if (index < 0) {
+          throw invalid(propertyName, spec);
+        }
+        names.add(null);
+        indexes.add(index);
+        i = end + 1;
+      } else {
+        throw invalid(propertyName, spec);
+      }
+    }
+    int[] indexArray = new int[indexes.size()];
+    for (int j = 0; j < indexArray.length; j++) {
+      indexArray[j] = indexes.get(j);
+    }
+    return new JsonPath(names.toArray(new String[0]), indexArray);
+  }
+
+  private static IllegalArgumentException invalid(String propertyName, String spec) {
+    return new IllegalArgumentException(
+        String.format("%s must be a JSON path: %s", propertyName, spec));
+  }
+
+  /** @return Number of segments */
+  int length() {
+    return names.length;
+  }
+
+  /**
+   * Checks whether the first segments of the path match the location of a value.
+   *
+   * @param depth Number of segments to compare
+   * @param stackNames Field name of each enclosing member, or null for array elements
+   * @param stackIndexes Array index of each enclosing element
+   * @return true if the first depth segments match
+   */
+  boolean matches(int depth, String[] stackNames, int[] stackIndexes) {
+    for (int i = 0; i < depth; i++) {
+      if (names[i] == null
+          ? stackNames[i] != null || stackIndexes[i] != indexes[i]
+          : !names[i].equals(stackNames[i])) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.apigee.calloutbaseclass;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+
+/**
+ * Pull scanner over JSON text read from a stream through a fixed buffer. Values that are not of
+ * interest are skipped without being materialized. If constructed with a writer, the scanned text
+ * is copied to it, except for values replaced through {@link #replaceValue(String)}.
+ */
+final class JsonScanner {
+
+  private static final int BUFFER_SIZE = 8 * 1024;
+
+  private final Reader in;
+  private final Writer out;
+  private final char[] buffer = new char[BUFFER_SIZE];
+  private final StringBuilder text = new StringBuilder();
+  private int position;
+  private int limit;
+  // Number of characters read before the buffer, for error messages.
+  private long offset;
+  // Start of the buffered characters not yet copied to out.
+  private int copyStart;
+  private boolean copying = true;
+  // Raw text of the value being captured, if any, and the start of its buffered characters.
+  private StringBuilder capture;
+  private int captureStart;
+
+  /**
+   * @param in JSON text
+   * @param out Writer receiving a copy of the text, or null
+   */
+  JsonScanner(Reader in, Writer out) {
+    this.in = in;
+    this.out = out;
+  }
+
+  private boolean fill() throws IOException {
+    if (out != null && copying) {
+      out.write(buffer, copyStart, position - copyStart);
+    }
+    if (capture != null) {
+      capture.append(buffer, captureStart, position - captureStart);
+    }
+    offset += limit;
+    int n;
+    do {
+      n = in.read(buffer, 0, buffer.length);
+    } while (n == 0);
+    position = 0;
+    limit = Math.max(n, 0);
+    copyStart = 0;
+    captureStart = 0;
+    return n > 0;
+  }
+
+  /** @return Next character after whitespace without consuming it, or -1 at the end */
+  int peek() throws IOException {
+    while (position < limit || fill()) {
+      char c = buffer[position];
+      if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+        return c;
+      }
+      position++;
+    }
+    return -1;
+  }
+
+  private char next() throws IOException {
+    if (position == limit && !fill()) {
+      throw malformed("unexpected end of input");
+    }
+    return buffer[position++];
+  }
+
+  /** Consumes the next character after whitespace, failing if it is not c. */
+  void expect(char c) throws IOException {
+    if (peek() != c) {
+      throw malformed("expected '" + c + "'");
+    }
+    position++;
+  }
+
+  /**
+   * Consumes the next character after whitespace if it is c.
+   *
+   * @return true if c was consumed
+   */
+  boolean consume(char c) throws IOException {
+    if (peek() != c) {
+      return false;
+    }
+    position++;
+    return true;
+  }
+
+  /** @return The next value, a string, unescaped */
+  String readString() throws IOException {
+    expect('"');
+    text.setLength(0);
+    while (true) {
+      char c = next();
+      if (c == '"') {
+        return text.toString();
+      }
+      if (c == '\\') {
+        c = next();
+        switch (c) {
+          case 'b':
+            c = '\b';
+            break;
+          case 'f':
+            c = '\f';
+            break;
+          case 'n':
+            c = '\n';
+            break;
+          case 'r':
+            c = '\r';
+            break;
+          case 't':
+            c = '\t';
+            break;
+          case 'u':
+            c = readHexChar();
+            break;
+          case '"':
+          case '\\':
+          case '/':
+            break;
+          default:
+            throw malformed("invalid escape");
+        }
+      }
+      text.append(c);
+    }
+  }
+
+  private char readHexChar() throws IOException {
+    int value = 0;
+    for (int i = 0; i < 4; i++) {
+      int digit = Character.digit(next(), 16);
+      if (digit < 0) {
+        throw malformed("invalid escape");
+      }
+      value = value * 16 + digit;
+    }
+    return (char) value;
+  }
+
+  /**
+   * Reads the next value. Strings are unescaped; any other value is returned as its JSON text.
+   *
+   * @return Value
+   */
+  String readValue() throws IOException {
+    int c = peek();
+    if (c == '"') {
+      return readString();
+    }
+    capture = new StringBuilder();
+    captureStart = position;
+    skipValue();
+    capture.append(buffer, captureStart, position - captureStart);
+    String value = capture.toString();
+    capture = null;
+    return value;
+  }
+
+  /** Consumes the next value, however deeply nested, without materializing it. */
+  void skipValue() throws IOException {
+    int depth = 0;
+    do {
+      int c = peek();
+      if (c == '"') {
+        skipString();
+      } else if (c == '{' || c == '[') {
+        position++;
+        depth++;
+      } else if ((c == '}' || c == ']') && depth > 0) {
+        position++;
+        depth--;
+      } else if ((c == ',' || c == ':') && depth > 0) {
+        position++;
+      } else if (c == '-' || (c >= '0' && c <= '9') || c == 't' || c == 'f' || c == 'n') {
+        skipLiteral();
+      } else {
+        throw malformed(c < 0 ? "unexpected end of input" : "unexpected '" + (char) c + "'");
+      }
+    } while (depth > 0);
+  }
+
+  private void skipString() throws IOException {
+    position++;
+    while (true) {
+      char c = next();
+      if (c == '"') {
+        return;
+      }
+      if (c == '\\') {
+        next();
+      }
+    }
+  }
+
+  private void skipLiteral() throws IOException {
+    while (position < limit || fill()) {
+      char c = buffer[position];
+      if (c == ',' || c == '}' || c == ']' || c == ':' || c == ' ' || c == '\t' || c == '\n'
+          || c == '\r') {
+        return;
+      }
+      position++;
+    }
+  }
+
+  /**
+   * Skips the next value and writes replacement in its place.
+   *
+   * @param replacement JSON text of the new value
+   */
+  void replaceValue(String replacement) throws IOException {
+    peek();
+    out.write(buffer, copyStart, position - copyStart);
+    copying = false;
+    skipValue();
+    out.write(replacement);
+    copying = true;
+    copyStart = position;
+  }
+
+  /** Copies the rest of the input to the writer unchanged. */
+  void copyRemaining() throws IOException {
+    position = limit;
+    while (fill()) {
+      position = limit;
+    }
+  }
+
+  IOException malformed(String reason) {
+    return new IOException(
+        String.format("Malformed JSON at offset %d: %s", offset + position, reason));
+  }
+}
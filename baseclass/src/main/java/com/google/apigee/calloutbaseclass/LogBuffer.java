@@ -0,0 +1,352 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.apigee.calloutbaseclass;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Bounded buffer of log statements backing the callout log flow variable. Once the line or
+ * character cap is reached the oldest statements are dropped, so the rendered log never grows past
+ * the caps however much a callout logs.
+ *
+ * <p>In the TEXT format each statement is a rendered line. In the structured formats a statement
+ * is a compact record of its level, the nanoseconds since the buffer was created, its interned
+ * caller and its key/value fields; records are only encoded when the log is rendered into the flow
+ * variable, and the buffer is kept in a flow variable of its own so that later statements of the
+ * request add records to it. The character cap then applies to an estimate of the encoded size of
+ * each record.
+ *
+ * <p>The TEXT rendering is kept too and extended with the lines appended since, so that writing
+ * the log after each statement copies the log once instead of rebuilding it line by line.
+ */
+final class LogBuffer {
+
+  // Estimated encoded size of the parts of a record besides its message and fields.
+  private static final int RECORD_OVERHEAD = 48;
+  private static final int FIELD_OVERHEAD = 6;
+  private static final int NUMBER_SIZE = 20;
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  private final LogFormat format;
+  private final int maxLines;
+  private final int maxChars;
+  private final ArrayDeque<Record> records = new ArrayDeque<>();
+  private final long startNanos = System.nanoTime();
+  private final long startMillis = System.currentTimeMillis();
+  private int chars;
+  private int dropped;
+  private boolean dirty;
+  // Last rendering; in the structured formats until the next append, in TEXT until lines are
+  // dropped.
+  private String rendered;
+  // Whether the TEXT rendering notes dropped lines.
+  private boolean renderedNotesDropped;
+  // Lines appended since the TEXT rendering.
+  private int unrendered;
+
+  /**
+   * @param format Encoding of the rendered log
+   * @param maxLines Maximum number of statements kept
+   * @param maxChars Maximum number of characters kept, not counting line separators
+   */
+  LogBuffer(LogFormat format, int maxLines, int maxChars) {
+    this.format = format;
+    this.maxLines = maxLines;
+    this.maxChars = maxChars;
+  }
+
+  /** @return Encoding of the rendered log */
+  LogFormat getFormat() {
+    return format;
+  }
+
+  /**
+   * Appends every line of previously rendered log output.
+   *
+   * @param rendered Log output, lines separated by newlines
+   */
+  synchronized void appendRendered(String rendered) {
+    int start = 0;
+    int end;
+    while ((end = rendered.indexOf('\n', start)) >= 0) {
+      append(rendered.substring(start, end));
+      start = end + 1;
+    }
+    append(rendered.substring(start));
+  }
+
+  /**
+   * Appends a line, dropping the oldest statements if a cap is exceeded. In the structured formats
+   * the line becomes the message of a record without level, caller or fields.
+   *
+   * @param line Line to append
+   */
+  synchronized void append(String line) {
+    append(null, null, line, null);
+  }
+
+  /**
+   * Appends a record, dropping the oldest statements if a cap is exceeded.
+   *
+   * @param level Level of the statement, or null
+   * @param caller Caller of the statement, or null
+   * @param message Message of the statement
+   * @param fields Alternating field names and values, or null; values that are not numbers or
+   *     booleans must already be strings
+   */
+  synchronized void append(LogLevel level, LogCaller caller, String message, Object[] fields) {
+    if (message.length() > maxChars) {
+      message = message.substring(0, maxChars);
+    }
+    int size = message.length();
+    if (format != LogFormat.TEXT) {
+      size += RECORD_OVERHEAD;
+      if (fields != null) {
+        for (int i = 0; i < fields.length; i++) {
+          Object field = fields[i];
+          size += field instanceof String ? ((String) field).length() : NUMBER_SIZE;
+          size += FIELD_OVERHEAD;
+        }
+      }
+    }
+    long nanos = format == LogFormat.TEXT ? 0 : System.nanoTime() - startNanos;
+    records.addLast(new Record(level, nanos, caller, message, fields, size));
+    chars += size;
+    int droppedBefore = dropped;
+    while (records.size() > maxLines || (chars > maxChars && records.size() > 1)) {
+      chars -= records.removeFirst().size;
+      dropped++;
+    }
+    dirty = true;
+    if (format == LogFormat.TEXT && dropped == droppedBefore) {
+      unrendered++;
+    } else {
+      rendered = null;
+    }
+  }
+
+  /** @return true if statements were appended since the buffer was last rendered or flushed */
+  synchronized boolean isDirty() {
+    return dirty;
+  }
+
+  /**
+   * @param log Value of the log flow variable
+   * @return true if log is the current rendering of this structured buffer, i.e. nothing replaced
+   *     the log since the buffer was written
+   */
+  synchronized boolean isRendering(Object log) {
+    return log != null && log == rendered;
+  }
+
+  /** @return true if the buffer holds no statements */
+  synchronized boolean isEmpty() {
+    return records.isEmpty();
+  }
+
+  /**
+   * Renders the buffered statements in the format of the buffer.
+   *
+   * @param noteDropped Whether to note that statements were dropped
+   * @return Rendered log
+   */
+  synchronized String render(boolean noteDropped) {
+    dirty = false;
+    if (format == LogFormat.TEXT) {
+      if (rendered == null || (dropped > 0 && renderedNotesDropped != noteDropped)) {
+        rendered = records.isEmpty() ? null : renderText(noteDropped);
+      } else if (unrendered > 0) {
+        rendered = extendText(rendered, unrendered);
+      }
+      renderedNotesDropped = noteDropped;
+      unrendered = 0;
+      return rendered == null ? "" : rendered;
+    }
+    if (!noteDropped) {
+      return renderStructured(false);
+    }
+    if (rendered == null) {
+      rendered = renderStructured(true);
+    }
+    return rendered;
+  }
+
+  /** @return The rendered log, encoded once until the next append */
+  @Override
+  public synchronized String toString() {
+    if (format == LogFormat.TEXT) {
+      return renderText(true);
+    }
+    if (rendered == null) {
+      rendered = renderStructured(true);
+    }
+    return rendered;
+  }
+
+  private String renderText(boolean noteDropped) {
+    StringBuilder sb = new StringBuilder(chars + records.size() + 48);
+    boolean first = true;
+    if (noteDropped && dropped > 0) {
+      sb.append('[').append(dropped).append(" earlier log lines dropped]");
+      first = false;
+    }
+    for (Record record : records) {
+      if (!first) {
+        sb.append('\n');
+      }
+      sb.append(record.message);
+      first = false;
+    }
+    return sb.toString();
+  }
+
+  /** Appends the last count lines to a TEXT rendering of the lines before them. */
+  private String extendText(String text, int count) {
+    Record[] added = new Record[count];
+    Iterator<Record> newest = records.descendingIterator();
+    int length = text.length();
+    for (int i = count - 1; i >= 0; i--) {
+      added[i] = newest.next();
+      length += added[i].message.length() + 1;
+    }
+    StringBuilder sb = new StringBuilder(length).append(text);
+    for (Record record : added) {
+      sb.append('\n').append(record.message);
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Renders a header object, then one object per record. The header holds the wall clock time the
+   * record timestamps are relative to, the number of dropped records and the location of each
+   * caller id the records refer to.
+   */
+  private String renderStructured(boolean noteDropped) {
+    StringBuilder sb = new StringBuilder(chars + 128);
+    int mark = sb.length();
+    sb.append("{\"start\":").append(startMillis);
+    if (noteDropped && dropped > 0) {
+      sb.append(",\"dropped\":").append(dropped);
+    }
+    Set<LogCaller> callers = new LinkedHashSet<>();
+    for (Record record : records) {
+      if (record.caller != null) {
+        callers.add(record.caller);
+      }
+    }
+    if (!callers.isEmpty()) {
+      sb.append(",\"callers\":{");
+      String separator = "";
+      for (LogCaller caller : callers) {
+        sb.append(separator).append('"').append(caller.getId()).append("\":");
+        appendQuoted(sb, caller.getLocation());
+        separator = ",";
+      }
+      sb.append('}');
+    }
+    endEntry(sb.append('}'), mark);
+    for (Record record : records) {
+      mark = sb.length();
+      sb.append("{\"t\":").append(record.nanos);
+      if (record.level != null) {
+        sb.append(",\"level\":\"").append(record.level.name()).append('"');
+      }
+      if (record.caller != null) {
+        sb.append(",\"caller\":").append(record.caller.getId());
+      }
+      appendQuoted(sb.append(",\"msg\":"), record.message);
+      if (record.fields != null) {
+        sb.append(",\"fields\":{");
+        for (int i = 0; i < record.fields.length; i += 2) {
+          if (i > 0) {
+            sb.append(',');
+          }
+          appendQuoted(sb, String.valueOf(record.fields[i]));
+          sb.append(':');
+          Object value = i + 1 < record.fields.length ? record.fields[i + 1] : null;
+          if (value instanceof String) {
+            appendQuoted(sb, (String) value);
+          } else {
+            sb.append(value);
+          }
+        }
+        sb.append('}');
+      }
+      endEntry(sb.append('}'), mark);
+    }
+    return sb.toString();
+  }
+
+  /** Terminates the entry starting at mark: a newline in JSONL, a netstring around it otherwise. */
+  private void endEntry(StringBuilder sb, int mark) {
+    if (format == LogFormat.JSONL) {
+      sb.append('\n');
+    } else {
+      sb.insert(mark, (sb.length() - mark) + ":").append(',');
+    }
+  }
+
+  /**
+   * Appends a string as a JSON string value. Non-ASCII characters are escaped too, so that the
+   * length of an entry in characters is also its length in bytes.
+   */
+  private static void appendQuoted(StringBuilder sb, String value) {
+    sb.append('"');
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c == '"' || c == '\\') {
+        sb.append('\\').append(c);
+      } else if (c == '\n') {
+        sb.append("\\n");
+      } else if (c == '\r') {
+        sb.append("\\r");
+      } else if (c == '\t') {
+        sb.append("\\t");
+      } else if (c < 0x20 || c >= 0x7f) {
+        sb.append("\\u")
+            .append(HEX[c >> 12])
+            .append(HEX[(c >> 8) & 0xf])
+            .append(HEX[(c >> 4) & 0xf])
+            .append(HEX[c & 0xf]);
+      } else {
+        sb.append(c);
+      }
+    }
+    sb.append('"');
+  }
+
+  /** A buffered statement. */
+  private static final class Record {
+    private final LogLevel level;
+    private final long nanos;
+    private final LogCaller caller;
+    private final String message;
+    private final Object[] fields;
+    // Characters the record counts against the cap.
+    private final int size;
+
+    Record(
+        LogLevel level, long nanos, LogCaller caller, String message, Object[] fields, int size) {
+      this.level = level;
+      this.nanos = nanos;
+      this.caller = caller;
+      this.message = message;
+      this.fields = fields;
+      this.size = size;
+    }
+  }
+}
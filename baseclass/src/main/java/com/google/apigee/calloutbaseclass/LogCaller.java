@@ -0,0 +1,84 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.apigee.calloutbaseclass;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Interned location of a log statement. Each distinct caller frame is rendered once and given a
+ * small id, so that log records only hold a reference to it and structured logs name the location
+ * once per rendering instead of once per line.
+ */
+final class LogCaller {
+
+  // Bound on the interned callers. Past it callers are still given ids but no longer cached, so a
+  // pathological number of log sites cannot grow the table without limit.
+  private static final int MAX_INTERNED = 4096;
+  private static final ConcurrentMap<StackTraceElement, LogCaller> interned =
+      new ConcurrentHashMap<>();
+  private static final AtomicInteger nextId = new AtomicInteger();
+
+  private final int id;
+  private final String location;
+
+  private LogCaller(int id, String location) {
+    this.id = id;
+    this.location = location;
+  }
+
+  /**
+   * Interns the caller of the base class.
+   *
+   * @return Interned caller, or null if there is none
+   */
+  static LogCaller locate() {
+    StackTraceElement ste = CallerLocator.locate();
+    if (ste == null) {
+      return null;
+    }
+    LogCaller caller = interned.get(ste);
+    if (caller != null) {
+      return caller;
+    }
+    caller = new LogCaller(nextId.getAndIncrement(), render(ste));
+    if (interned.size() >= MAX_INTERNED) {
+      return caller;
+    }
+    LogCaller previous = interned.putIfAbsent(ste, caller);
+    return previous == null ? caller : previous;
+  }
+
+  private static String render(StackTraceElement ste) {
+    return ste.getClassName()
+        + '.'
+        + ste.getMethodName()
+        + '['
+        + ste.getFileName()
+        + ':'
+        + ste.getLineNumber()
+        + ']';
+  }
+
+  /** @return Id of the caller, unique within the JVM */
+  int getId() {
+    return id;
+  }
+
+  /** @return Location of the caller, e.g. "Callout.execute[Callout.java:42]" */
+  String getLocation() {
+    return location;
+  }
+}
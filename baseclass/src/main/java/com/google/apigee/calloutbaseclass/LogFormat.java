@@ -0,0 +1,25 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.apigee.calloutbaseclass;
+
+/**
+ * Encoding of the callout log flow variable. TEXT is one line per statement. The structured
+ * formats keep statements as records and encode them when the flow variable is written: JSONL as
+ * one JSON object per line, LENGTH_PREFIXED as the same objects written as netstrings.
+ */
+enum LogFormat {
+  TEXT,
+  JSONL,
+  LENGTH_PREFIXED
+}
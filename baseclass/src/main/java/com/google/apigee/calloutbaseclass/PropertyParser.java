@@ -0,0 +1,179 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.apigee.calloutbaseclass;
+
+import java.time.Duration;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Parsers for typed property values. Each throws an IllegalArgumentException naming the property
+ * if the value is not of the expected type.
+ */
+final class PropertyParser {
+
+  private PropertyParser() {}
+
+  /**
+   * Parses a decimal long.
+   *
+   * @param propertyName Name of the property, for error messages
+   * @param value Value to parse
+   * @return Parsed value
+   */
+  static long parseLong(String propertyName, String value) {
+    try {
+      return Long.parseLong(value);
+    } catch (NumberFormatException e) {
+      throw invalid(propertyName, "an integer", value);
+    }
+  }
+
+  /**
+   * Parses a decimal int.
+   *
+   * @param propertyName Name of the property, for error messages
+   * @param value Value to parse
+   * @return Parsed value
+   */
+  static int parseInt(String propertyName, String value) {
+    try {
+      return Integer.parseInt(value);
+    } catch (NumberFormatException e) {
+      throw invalid(propertyName, "an int", value);
+    }
+  }
+
+  /**
+   * Parses "true" or "false", ignoring case.
+   *
+   * @param propertyName Name of the property, for error messages
+   * @param value Value to parse
+   * @return Parsed value
+   */
+  static boolean parseBoolean(String propertyName, String value) {
+    if ("true".equalsIgnoreCase(value)) {
+      return true;
+    }
+    if ("false".equalsIgnoreCase(value)) {
+      return false;
+    }
+    throw invalid(propertyName, "true or false", value);
+  }
+
+  /**
+   * Parses a duration, either in ISO-8601 form (e.g. "PT1.5S") or as a number followed by one of
+   * the units ms, s, m, h or d (e.g. "500ms", "30s"). A number without unit is in milliseconds.
+   *
+   * @param propertyName Name of the property, for error messages
+   * @param value Value to parse
+   * @return Parsed value
+   */
+  static Duration parseDuration(String propertyName, String value) {
+    Duration duration = tryParseDuration(value);
+    if (duration == null) {
+      throw invalid(propertyName, "a duration", value);
+    }
+    return duration;
+  }
+
+  /**
+   * Parses a duration like {@link #parseDuration(String, String)}.
+   *
+   * @param value Value to parse
+   * @return Parsed value, or null if value is not a duration
+   */
+  static Duration tryParseDuration(String value) {
+    try {
+      if (!value.isEmpty() && (value.charAt(0) == 'P' || value.charAt(0) == 'p')) {
+        return Duration.parse(value);
+      }
+      int unit = 0;
+      while (unit < value.length() && Character.isDigit(value.charAt(unit))) {
+        unit++;
+      }
+      if (unit == 0) {
+        return null;
+      }
+      long amount = Long.parseLong(value.substring(0, unit));
+      switch (value.substring(unit).trim().toLowerCase(Locale.ROOT)) {
+        case "":
+        case "ms":
+          return Duration.ofMillis(amount);
+        case "s":
+          return Duration.ofSeconds(amount);
+        case "m":
+          return Duration.ofMinutes(amount);
+        case "h":
+          return Duration.ofHours(amount);
+        case "d":
+          return Duration.ofDays(amount);
+        default:
+          return null;
+      }
+    } catch (DateTimeParseException | ArithmeticException | NumberFormatException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Splits a comma separated list, trimming items and leaving out empty ones.
+   *
+   * @param value Value to split
+   * @return Unmodifiable list of items
+   */
+  static List<String> parseList(String value) {
+    List<String> items = new ArrayList<>();
+    int start = 0;
+    while (start <= value.length()) {
+      int end = value.indexOf(',', start);
+      if (end < 0) {
+        end = value.length();
+      }
+      String item = value.substring(start, end).trim();
+      if (!item.isEmpty()) {
+        items.add(item);
+      }
+      start = end + 1;
+    }
+    return Collections.unmodifiableList(items);
+  }
+
+  /**
+   * Parses the name of an enum constant, ignoring case.
+   *
+   * @param propertyName Name of the property, for error messages
+   * @param type Enum class
+   * @param value Value to parse
+   * @return Parsed value
+   */
+  static <E extends Enum<E>> E parseEnum(String propertyName, Class<E> type, String value) {
+    for (E constant : type.getEnumConstants()) {
+      if (constant.name().equalsIgnoreCase(value)) {
+        return constant;
+      }
+    }
+    throw invalid(propertyName, "one of " + Arrays.toString(type.getEnumConstants()), value);
+  }
+
+  private static IllegalArgumentException invalid(
+      String propertyName, String expected, String value) {
+    return new IllegalArgumentException(
+        String.format("%s must be %s: %s", propertyName, expected, value));
+  }
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.apigee.calloutbaseclass;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Properties a callout expects, declared by the subclass and passed to {@link
+ * CalloutBase#CalloutBase(Map, PropertySchema)}. The properties are validated when the callout is
+ * constructed, so a policy missing a required property or holding a malformed literal value fails
+ * at deployment rather than on the first request:
+ *
+ * <pre>
+ * private static final PropertySchema SCHEMA =
+ *     PropertySchema.newBuilder()
+ *         .required("message")
+ *         .optional("name")
+ *         .optional("max-items", PropertySchema.Type.INT)
+ *         .optional("mode", Mode.class)
+ *         .build();
+ * </pre>
+ *
+ * <p>Values referencing flow variables can only be checked once they are resolved, so only their
+ * presence is validated.
+ */
+public final class PropertySchema {
+
+  /** Type of a property value. */
+  public enum Type {
+    STRING,
+    INT,
+    LONG,
+    BOOLEAN,
+    DURATION,
+    LIST,
+    /** Name of a constant of an enum, ignoring case; declared with the enum class. */
+    ENUM
+  }
+
+  private final Map<String, Type> types;
+  private final Map<String, Class<? extends Enum<?>>> enumTypes;
+  private final List<String> required;
+  private final boolean rejectUnknown;
+
+  private PropertySchema(Builder builder) {
+    this.types = Collections.unmodifiableMap(new LinkedHashMap<>(builder.types));
+    this.enumTypes = Collections.unmodifiableMap(new LinkedHashMap<>(builder.enumTypes));
+    this.required = Collections.unmodifiableList(new ArrayList<>(builder.required));
+    this.rejectUnknown = builder.rejectUnknown;
+  }
+
+  /** @return New builder */
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  /** @return Type of each declared property, by name, in declaration order */
+  public Map<String, Type> getTypes() {
+    return types;
+  }
+
+  /**
+   * @param propertyName Name of the property
+   * @return Enum class of a property declared as {@link Type#ENUM}, or null
+   */
+  public Class<? extends Enum<?>> getEnumType(String propertyName) {
+    return enumTypes.get(propertyName);
+  }
+
+  /** @return true if the property is declared as required */
+  public boolean isRequired(String propertyName) {
+    return required.contains(propertyName);
+  }
+
+  /**
+   * Validates compiled properties against the schema.
+   *
+   * @param properties Compiled properties of the callout
+   * @throws IllegalArgumentException listing every violation
+   */
+  void validate(Map<String, PropertyTemplate> properties) {
+    List<String> errors = new ArrayList<>();
+    for (String name : required) {
+      PropertyTemplate template = properties.get(name);
+      if (template == null || template.getSpec().isEmpty()) {
+        errors.add("Missing required property: " + name);
+      }
+    }
+    for (Map.Entry<String, Type> declared : types.entrySet()) {
+      PropertyTemplate template = properties.get(declared.getKey());
+      if (template != null && template.isLiteral()) {
+        try {
+          check(declared.getKey(), declared.getValue(), template);
+          if (declared.getValue() == Type.ENUM) {
+            checkEnum(declared.getKey(), enumTypes.get(declared.getKey()), template);
+          }
+        } catch (IllegalArgumentException e) {
+          errors.add(e.getMessage());
+        }
+      }
+    }
+    if (rejectUnknown) {
+      for (String name : properties.keySet()) {
+        // Base class settings are validated by the base class.
+        if (!types.containsKey(name) && !name.startsWith("callout-")) {
+          errors.add("Unknown property: " + name);
+        }
+      }
+    }
+    if (!errors.isEmpty()) {
+      throw new IllegalArgumentException(String.join("; ", errors));
+    }
+  }
+
+  private static void check(String name, Type type, PropertyTemplate template) {
+    switch (type) {
+      case INT:
+        template.getInt(name);
+        break;
+      case LONG:
+        template.getLong(name);
+        break;
+      case BOOLEAN:
+        template.getBoolean(name);
+        break;
+      case DURATION:
+        template.getDuration(name);
+        break;
+      default:
+        break;
+    }
+  }
+
+  // The enum class is only known as Class<? extends Enum<?>>, which getEnum cannot bind to E.
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  private static void checkEnum(
+      String name, Class<? extends Enum<?>> type, PropertyTemplate template) {
+    template.getEnum(name, (Class) type);
+  }
+
+  /** Builder for {@link PropertySchema}. */
+  public static final class Builder {
+    private final Map<String, Type> types = new LinkedHashMap<>();
+    private final Map<String, Class<? extends Enum<?>>> enumTypes = new LinkedHashMap<>();
+    private final List<String> required = new ArrayList<>();
+    private boolean rejectUnknown;
+
+    private Builder() {}
+
+    /**
+     * Declares a required string property.
+     *
+     * @param propertyName Name of the property
+     * @return This builder
+     */
+    public Builder required(String propertyName) {
+      return required(propertyName, Type.STRING);
+    }
+
+    /**
+     * Declares a required property. Construction fails if it is not set or empty.
+     *
+     * @param propertyName Name of the property
+     * @param type Type of the value
+     * @return This builder
+     */
+    public Builder required(String propertyName, Type type) {
+      declare(propertyName, type);
+      required.add(propertyName);
+      return this;
+    }
+
+    /**
+     * Declares a required enum property, the name of a constant of the enum ignoring case.
+     *
+     * @param propertyName Name of the property
+     * @param enumType Enum class
+     * @return This builder
+     */
+    public Builder required(String propertyName, Class<? extends Enum<?>> enumType) {
+      required(propertyName, Type.ENUM);
+      enumTypes.put(propertyName, enumType);
+      return this;
+    }
+
+    /**
+     * Declares an optional string property.
+     *
+     * @param propertyName Name of the property
+     * @return This builder
+     */
+    public Builder optional(String propertyName) {
+      return optional(propertyName, Type.STRING);
+    }
+
+    /**
+     * Declares an optional property.
+     *
+     * @param propertyName Name of the property
+     * @param type Type of the value
+     * @return This builder
+     */
+    public Builder optional(String propertyName, Type type) {
+      declare(propertyName, type);
+      return this;
+    }
+
+    /**
+     * Declares an optional enum property, the name of a constant of the enum ignoring case.
+     *
+     * @param propertyName Name of the property
+     * @param enumType Enum class
+     * @return This builder
+     */
+    public Builder optional(String propertyName, Class<? extends Enum<?>> enumType) {
+      optional(propertyName, Type.ENUM);
+      enumTypes.put(propertyName, enumType);
+      return this;
+    }
+
+    /**
+     * Fails construction if a property is neither declared nor a base class setting, e.g. to catch
+     * misspelled property names.
+     *
+     * @return This builder
+     */
+    public Builder rejectUnknownProperties() {
+      this.rejectUnknown = true;
+      return this;
+    }
+
+    private void declare(String propertyName, Type type) {
+      if (types.putIfAbsent(propertyName, type) != null) {
+        throw new IllegalArgumentException("Property declared twice: " + propertyName);
+      }
+    }
+
+    /**
+     * @return New schema
+     * @throws IllegalArgumentException if an enum property was declared without its enum class
+     */
+    public PropertySchema build() {
+      for (Map.Entry<String, Type> declared : types.entrySet()) {
+        if (declared.getValue() == Type.ENUM && !enumTypes.containsKey(declared.getKey())) {
+          throw new IllegalArgumentException(
+              "Enum property declared without its enum class: " + declared.getKey());
+        }
+      }
+      return new PropertySchema(this);
+    }
+  }
+}
@@ -0,0 +1,399 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.apigee.calloutbaseclass;
+
+import com.apigee.flow.message.MessageContext;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Compiled form of a property value containing flow variable references (e.g. "Hi
+ * {request.queryparam.name:Stranger}!"). The value is parsed once into literal segments, variable
+ * names and defaults so that resolving it only walks the segments and looks up the variables.
+ * References using function calls or fallback chains are compiled into an {@link Expression}
+ * instead.
+ */
+final class PropertyTemplate {
+
+  private final String spec;
+  // literals.length == names.length + 1; literal i precedes reference i.
+  private final String[] literals;
+  // Name of each plain reference, or null if the reference is an expression.
+  private final String[] names;
+  // Default value for each reference, or null if the reference has no default.
+  private final String[] defaults;
+  // Compiled expression of each reference, or null if the reference is plain.
+  private final Expression[] expressions;
+  // Names of the variables read, and whether the names of all variables read are known.
+  private final String[] variableNames;
+  private final boolean dynamicReferences;
+  private final int literalLength;
+
+  // Typed forms of a value without references, parsed once when the template is compiled. A value
+  // that is not of a type is only reported when it is read as that type.
+  private final long longValue;
+  private final boolean isLong;
+  // 1 for true, 0 for false, -1 if not a boolean
+  private final byte booleanValue;
+  private final Duration durationValue;
+  private final List<String> listValue;
+  // Enum types are only known when read, so the last enum read is cached instead.
+  private volatile Enum<?> enumValue;
+  // Error of reading the value as each type, kept from the first failed read so that a malformed
+  // literal is not parsed again on every request.
+  private volatile IllegalArgumentException intError;
+  private volatile IllegalArgumentException longError;
+  private volatile IllegalArgumentException booleanError;
+  private volatile IllegalArgumentException durationError;
+
+  private PropertyTemplate(
+      String spec,
+      String[] literals,
+      String[] names,
+      String[] defaults,
+      Expression[] expressions) {
+    this.spec = spec;
+    this.literals = literals;
+    this.names = names;
+    this.defaults = defaults;
+    this.expressions = expressions;
+    Set<String> read = new LinkedHashSet<>();
+    boolean dynamic = false;
+    for (int i = 0; i < names.length; i++) {
+      if (expressions[i] == null) {
+        read.add(names[i]);
+      } else if (!expressions[i].collectVariableNames(read)) {
+        dynamic = true;
+      }
+    }
+    this.variableNames = read.toArray(new String[0]);
+    this.dynamicReferences = dynamic;
+    int length = 0;
+    for (String literal : literals) {
+      length += literal.length();
+    }
+    this.literalLength = length;
+
+    boolean literal = names.length == 0 && !spec.isEmpty();
+    long parsedLong = 0;
+    boolean parsedIsLong = false;
+    if (literal) {
+      try {
+        parsedLong = Long.parseLong(spec);
+        parsedIsLong = true;
+      } catch (NumberFormatException e) {
+        // Not a long.
+      }
+    }
+    this.longValue = parsedLong;
+    this.isLong = parsedIsLong;
+    byte parsedBoolean = -1;
+    if (literal && "true".equalsIgnoreCase(spec)) {
+      parsedBoolean = 1;
+    } else if (literal && "false".equalsIgnoreCase(spec)) {
+      parsedBoolean = 0;
+    }
+    this.booleanValue = parsedBoolean;
+    this.durationValue = literal ? PropertyParser.tryParseDuration(spec) : null;
+    this.listValue = literal ? PropertyParser.parseList(spec) : null;
+  }
+
+  /**
+   * Parses a spec into a template. A reference is a name between two curly braces that does not
+   * start with a colon and contains no curly braces or spaces, or an {@link Expression}. Anything
+   * else is kept literally.
+   *
+   * @param spec The value to compile
+   * @return Compiled template of spec
+   */
+  static PropertyTemplate compile(String spec) {
+    List<String> literals = new ArrayList<>();
+    List<String> names = new ArrayList<>();
+    List<String> defaults = new ArrayList<>();
+    List<Expression> expressions = new ArrayList<>();
+    StringBuilder literal = new StringBuilder();
+    int i = 0;
+    while (i < spec.length()) {
+      char c = spec.charAt(i);
+      Expression.Parser parsed = c == '{' ? Expression.parse(spec, i) : null;
+      if (parsed != null) {
+        literals.add(literal.toString());
+        names.add(null);
+        defaults.add(null);
+        expressions.add(parsed.result);
+        literal.setLength(0);
+        i = parsed.end + 1;
+        continue;
+      }
+      int end = c == '{' ? referenceEnd(spec, i) : -1;
+      if (end < 0) {
+        literal.append(c);
+        i++;
+        continue;
+      }
+      // If flow variable does not exist in messageContext, a default value can be specified using
+      // a colon. (e.g. "{flow.variable:default}" will use "default" as the value if
+      // "flow.variable" is not found)
+      String ref = spec.substring(i + 1, end);
+      int colon = ref.indexOf(':');
+      literals.add(literal.toString());
+      names.add(colon < 0 ? ref : ref.substring(0, colon));
+      defaults.add(colon < 0 ? null : ref.substring(colon + 1));
+      expressions.add(null);
+      literal.setLength(0);
+      i = end + 1;
+    }
+    literals.add(literal.toString());
+    return new PropertyTemplate(
+        spec,
+        literals.toArray(new String[0]),
+        names.toArray(new String[0]),
+        defaults.toArray(new String[0]),
+        expressions.toArray(new Expression[0]));
+  }
+
+  /**
+   * Finds the closing brace of a reference opened at the given index.
+   *
+   * @return Index of the closing brace, or -1 if no valid reference starts at open
+   */
+  private static int referenceEnd(String spec, int open) {
+    int first = open + 1;
+    if (first >= spec.length() || isInvalidReferenceChar(spec.charAt(first))
+        || spec.charAt(first) == ':') {
+      return -1;
+    }
+    for (int i = first + 1; i < spec.length(); i++) {
+      char c = spec.charAt(i);
+      if (c == '}') {
+        return i;
+      }
+      if (isInvalidReferenceChar(c)) {
+        return -1;
+      }
+    }
+    return -1;
+  }
+
+  private static boolean isInvalidReferenceChar(char c) {
+    return c == '{' || c == '}' || c == ' ';
+  }
+
+  /** @return true if the template contains no variable references */
+  boolean isConstant() {
+    return names.length == 0;
+  }
+
+  /** @return true if the template contains no variable references and is not empty */
+  boolean isLiteral() {
+    return names.length == 0 && !spec.isEmpty();
+  }
+
+  /** @return Names of the variables the template references */
+  String[] getVariableNames() {
+    return variableNames.clone();
+  }
+
+  /**
+   * @return true if the template also reads variables whose names are only known when it is
+   *     resolved, e.g. "{var(concat('request.header.', name))}"
+   */
+  boolean hasDynamicReferences() {
+    return dynamicReferences;
+  }
+
+  /** @return the uncompiled value of the template */
+  String getSpec() {
+    return spec;
+  }
+
+  /**
+   * Resolves the template against the flow variables of a message context.
+   *
+   * @param messageContext Message Context
+   * @return Resolved value
+   */
+  String resolve(MessageContext messageContext) {
+    return resolve(messageContext, null);
+  }
+
+  /**
+   * Resolves the template, reading variables through a request's variable buffer.
+   *
+   * @param messageContext Message Context
+   * @param variables Variable buffer of the request, or null to read the Message Context directly
+   * @return Resolved value
+   */
+  String resolve(MessageContext messageContext, VariableBuffer variables) {
+    if (names.length == 0) {
+      return spec;
+    }
+    if (names.length == 1 && literalLength == 0) {
+      return lookup(0, messageContext, variables);
+    }
+    StringBuilder sb = ScratchBuffers.acquireStringBuilder();
+    for (int i = 0; i < names.length; i++) {
+      sb.append(literals[i]);
+      if (expressions[i] != null) {
+        // Appended in place rather than evaluated into a string of its own.
+        expressions[i].appendTo(sb, messageContext, variables);
+      } else {
+        sb.append(lookup(i, messageContext, variables));
+      }
+    }
+    return ScratchBuffers.toStringAndRelease(sb.append(literals[names.length]));
+  }
+
+  /**
+   * Reads a literal template as an int.
+   *
+   * @param propertyName Name of the property, for error messages
+   * @return Parsed value
+   * @throws IllegalArgumentException if the value is not an int
+   */
+  int getInt(String propertyName) {
+    if (isLong && (int) longValue == longValue) {
+      return (int) longValue;
+    }
+    IllegalArgumentException error = intError;
+    if (error == null) {
+      try {
+        return PropertyParser.parseInt(propertyName, spec);
+      } catch (IllegalArgumentException e) {
+        intError = error = e;
+      }
+    }
+    throw error;
+  }
+
+  /**
+   * Reads a literal template as a long.
+   *
+   * @param propertyName Name of the property, for error messages
+   * @return Parsed value
+   * @throws IllegalArgumentException if the value is not a long
+   */
+  long getLong(String propertyName) {
+    if (isLong) {
+      return longValue;
+    }
+    IllegalArgumentException error = longError;
+    if (error == null) {
+      try {
+        return PropertyParser.parseLong(propertyName, spec);
+      } catch (IllegalArgumentException e) {
+        longError = error = e;
+      }
+    }
+    throw error;
+  }
+
+  /**
+   * Reads a literal template as a boolean.
+   *
+   * @param propertyName Name of the property, for error messages
+   * @return Parsed value
+   * @throws IllegalArgumentException if the value is not a boolean
+   */
+  boolean getBoolean(String propertyName) {
+    if (booleanValue >= 0) {
+      return booleanValue == 1;
+    }
+    IllegalArgumentException error = booleanError;
+    if (error == null) {
+      try {
+        return PropertyParser.parseBoolean(propertyName, spec);
+      } catch (IllegalArgumentException e) {
+        booleanError = error = e;
+      }
+    }
+    throw error;
+  }
+
+  /**
+   * Reads a literal template as a duration.
+   *
+   * @param propertyName Name of the property, for error messages
+   * @return Parsed value
+   * @throws IllegalArgumentException if the value is not a duration
+   */
+  Duration getDuration(String propertyName) {
+    if (durationValue != null) {
+      return durationValue;
+    }
+    IllegalArgumentException error = durationError;
+    if (error == null) {
+      try {
+        return PropertyParser.parseDuration(propertyName, spec);
+      } catch (IllegalArgumentException e) {
+        durationError = error = e;
+      }
+    }
+    throw error;
+  }
+
+  /** @return Items of a literal template read as a comma separated list */
+  List<String> getList() {
+    return listValue;
+  }
+
+  /**
+   * Reads a literal template as an enum constant.
+   *
+   * @param propertyName Name of the property, for error messages
+   * @param type Enum class
+   * @return Parsed value
+   * @throws IllegalArgumentException if the value is not a constant of the enum
+   */
+  <E extends Enum<E>> E getEnum(String propertyName, Class<E> type) {
+    Enum<?> cached = enumValue;
+    if (cached != null && cached.getDeclaringClass() == type) {
+      return type.cast(cached);
+    }
+    E value = PropertyParser.parseEnum(propertyName, type, spec);
+    enumValue = value;
+    return value;
+  }
+
+  private String lookup(int index, MessageContext messageContext, VariableBuffer variables) {
+    if (expressions[index] != null) {
+      String value = expressions[index].evaluate(messageContext, variables);
+      return value == null ? "" : value;
+    }
+    String v = readVariable(names[index], messageContext, variables);
+    if (v != null) {
+      return v;
+    }
+    return defaults[index] == null ? "" : defaults[index];
+  }
+
+  /**
+   * Reads a flow variable as a string.
+   *
+   * @param name Name of the variable
+   * @param messageContext Message Context
+   * @param variables Variable buffer of the request, or null to read the Message Context directly
+   * @return Value of the variable, or null if it is not set
+   */
+  static String readVariable(String name, MessageContext messageContext, VariableBuffer variables) {
+    Object v =
+        variables == null ? messageContext.getVariable(name) : variables.get(name, messageContext);
+    // Variables holding objects, such as a structured callout log, resolve to their string form.
+    return v == null ? null : v.toString();
+  }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.apigee.calloutbaseclass;
+
+import java.time.Duration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Node-local token bucket rate limiter keyed by e.g. a client id. Each key may take a number of
+ * permits per period, refilled continuously, with bursts of up to the full number of permits.
+ *
+ * <p>The bucket of a key is a single atomic timestamp, the time at which it would be full again
+ * (the generic cell rate algorithm), updated with compare-and-set, so requests for different keys
+ * never contend and requests for the same key never block. Buckets that are full again are idle
+ * and are evicted once the key bound is reached. A key arriving while every tracked key is active
+ * is not limited: its requests are allowed and counted by {@link #getUntrackedCount()} until idle
+ * keys have been evicted, so that a burst of new clients neither throttles each other nor evicts
+ * the buckets of clients being limited.
+ */
+public final class RateLimiter {
+
+  private final long intervalNanos;
+  private final long burstNanos;
+  private final long periodNanos;
+  private final int permits;
+  private final int maximumKeys;
+  private final LongSupplier ticker;
+  private final ConcurrentMap<String, AtomicLong> buckets = new ConcurrentHashMap<>();
+  private final LongAdder untracked = new LongAdder();
+  // Time of the last sweep for idle buckets; sweeps happen at most once per period.
+  private final AtomicLong lastSweep;
+
+  private RateLimiter(Builder builder) {
+    this.intervalNanos = Math.max(1, builder.periodNanos / builder.permits);
+    this.burstNanos = intervalNanos * builder.permits;
+    this.periodNanos = builder.periodNanos;
+    this.permits = builder.permits;
+    this.maximumKeys = builder.maximumKeys;
+    this.ticker = builder.ticker;
+    this.lastSweep = new AtomicLong(ticker.getAsLong() - periodNanos);
+  }
+
+  /** @return New builder */
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  /**
+   * Takes a permit for a key if one is available.
+   *
+   * @param key Key to limit, e.g. a client id
+   * @return Whether the permit was taken, with the permits left or the time until one is; always
+   *     allowed if the key bound is reached and the key is not tracked
+   */
+  public Result tryAcquire(String key) {
+    long now = ticker.getAsLong();
+    AtomicLong bucket = bucketFor(key, now);
+    if (bucket == null) {
+      untracked.increment();
+      return new Result(true, permits, 0, false);
+    }
+    while (true) {
+      long full = bucket.get();
+      long next = Math.max(full, now) + intervalNanos;
+      if (next - now > burstNanos) {
+        return new Result(false, 0, next - now - burstNanos, true);
+      }
+      if (bucket.compareAndSet(full, next)) {
+        return new Result(true, (now + burstNanos - next) / intervalNanos, 0, true);
+      }
+    }
+  }
+
+  /** @return Number of keys tracked */
+  public int size() {
+    return buckets.size();
+  }
+
+  /** @return Number of requests allowed without limit because their key did not fit the bound */
+  public long getUntrackedCount() {
+    return untracked.sum();
+  }
+
+  /** @return Bucket of the key, or null if the key bound is reached and no bucket is idle */
+  private AtomicLong bucketFor(String key, long now) {
+    AtomicLong bucket = buckets.get(key);
+    if (bucket != null) {
+      return bucket;
+    }
+    if (buckets.size() >= maximumKeys) {
+      evictIdle(now);
+      if (buckets.size() >= maximumKeys) {
+        return null;
+      }
+    }
+    return buckets.computeIfAbsent(key, k -> new AtomicLong(Long.MIN_VALUE));
+  }
+
+  /** Removes the buckets that are full again, unless another thread swept within the period. */
+  private void evictIdle(long now) {
+    long last = lastSweep.get();
+    if (now - last < periodNanos || !lastSweep.compareAndSet(last, now)) {
+      return;
+    }
+    buckets.values().removeIf(bucket -> bucket.get() <= now);
+  }
+
+  /** Outcome of {@link #tryAcquire(String)}. */
+  public static final class Result {
+    private final boolean allowed;
+    private final long remaining;
+    private final long retryAfterNanos;
+    private final boolean tracked;
+
+    Result(boolean allowed, long remaining, long retryAfterNanos, boolean tracked) {
+      this.allowed = allowed;
+      this.remaining = remaining;
+      this.retryAfterNanos = retryAfterNanos;
+      this.tracked = tracked;
+    }
+
+    /** @return true if the permit was taken */
+    public boolean isAllowed() {
+      return allowed;
+    }
+
+    /** @return Permits left for the key right now */
+    public long getRemaining() {
+      return remaining;
+    }
+
+    /** @return Nanoseconds until a permit is available, 0 if the permit was taken */
+    public long getRetryAfterNanos() {
+      return retryAfterNanos;
+    }
+
+    /** @return false if the key was not limited because the key bound was reached */
+    public boolean isTracked() {
+      return tracked;
+    }
+  }
+
+  /** Builder for {@link RateLimiter}. */
+  public static final class Builder {
+    private int permits;
+    private long periodNanos = Duration.ofSeconds(1).toNanos();
+    private int maximumKeys = 10000;
+    private LongSupplier ticker = System::nanoTime;
+
+    private Builder() {}
+
+    /**
+     * Sets the number of permits per period of each key, also the largest burst.
+     *
+     * @param permits Permits per period
+     * @return This builder
+     */
+    public Builder permits(int permits) {
+      if (permits <= 0) {
+        throw new IllegalArgumentException("permits must be positive: " + permits);
+      }
+      this.permits = permits;
+      return this;
+    }
+
+    /**
+     * Sets the period over which the permits of a key are refilled.
+     *
+     * @param period Refill period, 1 second by default
+     * @return This builder
+     */
+    public Builder period(Duration period) {
+      if (period.isNegative() || period.isZero()) {
+        throw new IllegalArgumentException("period must be positive: " + period);
+      }
+      this.periodNanos = period.toNanos();
+      return this;
+    }
+
+    /**
+     * Bounds the number of keys tracked.
+     *
+     * @param maximumKeys Maximum number of keys, 10000 by default
+     * @return This builder
+     */
+    public Builder maximumKeys(int maximumKeys) {
+      if (maximumKeys <= 0) {
+        throw new IllegalArgumentException("maximumKeys must be positive: " + maximumKeys);
+      }
+      this.maximumKeys = maximumKeys;
+      return this;
+    }
+
+    /** Replaces System.nanoTime as time source, for tests. */
+    Builder ticker(LongSupplier ticker) {
+      this.ticker = ticker;
+      return this;
+    }
+
+    /**
+     * @return New rate limiter
+     * @throws IllegalStateException if no number of permits was set
+     */
+    public RateLimiter build() {
+      if (permits == 0) {
+        throw new IllegalStateException("permits must be set");
+      }
+      return new RateLimiter(this);
+    }
+  }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.apigee.calloutbaseclass;
+
+import com.apigee.flow.message.MessageContext;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Per-request view of a callout, opened with {@link CalloutBase#openScope(MessageContext)} and
+ * closed at the end of the request. While a scope is open on the current thread, property lookups
+ * against its Message Context are resolved at most once and served from the scope afterwards, log
+ * statements are buffered and written to the log flow variable once when the scope closes, and
+ * flow variable writes through the callout are buffered and committed when the scope closes.
+ *
+ * <p>{@link TemplateCalloutBase} also runs executeCallout in a scope, which only carries the
+ * deadline of the request and buffers its log statements unless the "callout-request-scope"
+ * property is true.
+ *
+ * <p>A scope belongs to a single request and must only be used by the thread that opened it. The
+ * callout instance itself stays shareable across concurrent requests.
+ */
+public final class RequestScope implements AutoCloseable {
+
+  private final CalloutBase callout;
+  private final MessageContext messageContext;
+  private final RequestScope previous;
+  // False for a scope that only carries the deadline of the request.
+  private final boolean buffered;
+  private final Map<String, Optional<String>> resolvedProperties = new HashMap<>();
+  private LogBuffer logBuffer;
+  // Created on the first variable access.
+  private VariableBuffer variables;
+  // Created on first use.
+  private ScopedMessageContext scopedMessageContext;
+  // System.nanoTime() by which the request must finish, if hasDeadline.
+  private long deadline;
+  private boolean hasDeadline;
+  private boolean closed;
+
+  RequestScope(
+      CalloutBase callout, MessageContext messageContext, RequestScope previous, boolean buffered) {
+    this.callout = callout;
+    this.messageContext = messageContext;
+    this.previous = previous;
+    this.buffered = buffered;
+    // A scope opened inside execute keeps the deadline of the request.
+    if (previous != null && previous.hasDeadline && previous.isBoundTo(messageContext)) {
+      setDeadline(previous.deadline);
+    }
+  }
+
+  /** @return Message Context this scope is bound to */
+  public MessageContext getMessageContext() {
+    return messageContext;
+  }
+
+  /**
+   * @return Message Context whose flow variables are read and written through the variable buffer
+   *     of this scope, as handed to executeCallout
+   */
+  MessageContext getScopedMessageContext() {
+    if (scopedMessageContext == null) {
+      scopedMessageContext = new ScopedMessageContext(callout, messageContext);
+    }
+    return scopedMessageContext;
+  }
+
+  /** @return true if messageContext is the Message Context of this scope or its scoped view */
+  boolean isBoundTo(MessageContext messageContext) {
+    return messageContext == this.messageContext || messageContext == scopedMessageContext;
+  }
+
+  /**
+   * Retrieves an optional property, resolving it on first use within this scope.
+   *
+   * @param propertyName Name of property to retrieve value
+   * @return Optional of property value in properties map or empty
+   */
+  public Optional<String> getOptionalProperty(String propertyName) {
+    Optional<String> value = resolvedProperties.get(propertyName);
+    if (value == null) {
+      value = callout.resolveProperty(propertyName, messageContext, variables);
+      resolvedProperties.put(propertyName, value);
+    }
+    return value;
+  }
+
+  /**
+   * Retrieves a required property, resolving it on first use within this scope.
+   *
+   * @param propertyName Name of property to retrieve value
+   * @return Value of property in properties map
+   * @throws IllegalArgumentException if the propertyName does not exist in properties map or
+   *     resolves to an empty string.
+   */
+  public String getRequiredProperty(String propertyName) {
+    return getOptionalProperty(propertyName).orElseThrow(IllegalArgumentException::new);
+  }
+
+  /**
+   * @return Nanoseconds left until the deadline of the request, negative once it has passed, or
+   *     Long.MAX_VALUE if the request has no deadline
+   */
+  public long getRemainingNanos() {
+    return hasDeadline ? deadline - System.nanoTime() : Long.MAX_VALUE;
+  }
+
+  void setDeadline(long deadline) {
+    this.deadline = deadline;
+    this.hasDeadline = true;
+  }
+
+  VariableBuffer getVariableBuffer() {
+    if (variables == null) {
+      variables = new VariableBuffer();
+    }
+    return variables;
+  }
+
+  /**
+   * @return true if the scope memoizes properties and buffers log statements and variable writes,
+   *     false if it only carries the deadline of the request
+   */
+  boolean isBuffered() {
+    return buffered;
+  }
+
+  /**
+   * Forgets a variable written directly to the Message Context, bypassing the variable buffer.
+   *
+   * @param name Name of the variable
+   */
+  void invalidateVariable(String name) {
+    if (variables != null) {
+      variables.invalidate(name);
+    }
+  }
+
+  /** Drops the resolved properties, e.g. after a variable they reference was written. */
+  void clearResolvedProperties() {
+    if (!resolvedProperties.isEmpty()) {
+      resolvedProperties.clear();
+    }
+  }
+
+  LogBuffer getLogBuffer() {
+    return logBuffer;
+  }
+
+  /**
+   * @return Log buffer of the closest enclosing open scope of the same request, so that a nested
+   *     scope continues its log instead of starting from the flow variable, or null if none has one
+   */
+  LogBuffer getEnclosingLogBuffer() {
+    for (RequestScope scope = previous; scope != null; scope = scope.previous) {
+      if (!scope.closed && scope.isBoundTo(messageContext) && scope.logBuffer != null) {
+        return scope.logBuffer;
+      }
+    }
+    return null;
+  }
+
+  void setLogBuffer(LogBuffer logBuffer) {
+    this.logBuffer = logBuffer;
+  }
+
+  RequestScope getPrevious() {
+    return previous;
+  }
+
+  boolean isClosed() {
+    return closed;
+  }
+
+  /**
+   * Ends the scope, writing buffered log statements to the log flow variable, committing buffered
+   * variable writes and dropping everything cached for the request. Closing twice has no effect.
+   */
+  @Override
+  public void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try {
+      callout.flushLog(this);
+      if (variables != null) {
+        variables.commit(messageContext);
+      }
+    } finally {
+      logBuffer = null;
+      variables = null;
+      resolvedProperties.clear();
+      callout.closeScope(this);
+    }
+  }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.apigee.calloutbaseclass;
+
+import com.apigee.flow.FlowInfo;
+import com.apigee.flow.message.Connection;
+import com.apigee.flow.message.FlowContext;
+import com.apigee.flow.message.Message;
+import com.apigee.flow.message.MessageContext;
+import com.apigee.flow.message.TransportMessage;
+
+/**
+ * Message Context of a request scope, handed to executeCallout. Flow variables are read and
+ * written through the variable buffer of the scope, as with {@link CalloutBase#getVariable} and
+ * {@link CalloutBase#setVariable}, so that writes made directly to it cannot be hidden or
+ * overwritten by buffered writes. Everything else is delegated to the Message Context of the
+ * request. Once the scope is closed, variables are read and written directly again.
+ */
+final class ScopedMessageContext implements MessageContext {
+
+  private final CalloutBase callout;
+  private final MessageContext target;
+
+  ScopedMessageContext(CalloutBase callout, MessageContext target) {
+    this.callout = callout;
+    this.target = target;
+  }
+
+  @Override
+  public <T> T getVariable(String name) {
+    return callout.getVariable(name, target);
+  }
+
+  @Override
+  public boolean setVariable(String name, Object value) {
+    callout.setVariable(name, value, target);
+    return true;
+  }
+
+  @Override
+  public boolean removeVariable(String name) {
+    callout.removeVariable(name, target);
+    return true;
+  }
+
+  @Override
+  @SuppressWarnings("rawtypes")
+  public <T extends Comparable> T get(String name) {
+    // Typed reads are left to the Message Context, so buffered writes are committed first.
+    callout.commitVariables(target);
+    return target.get(name);
+  }
+
+  @Override
+  public Message getMessage(FlowContext flowContext) {
+    return target.getMessage(flowContext);
+  }
+
+  @Override
+  public void setMessage(FlowContext flowContext, Message message) {
+    target.setMessage(flowContext, message);
+  }
+
+  @Override
+  public Message getRequestMessage() {
+    return target.getRequestMessage();
+  }
+
+  @Override
+  public void setRequestMessage(Message message) {
+    target.setRequestMessage(message);
+  }
+
+  @Override
+  public Message getResponseMessage() {
+    return target.getResponseMessage();
+  }
+
+  @Override
+  public void setResponseMessage(Message message) {
+    target.setResponseMessage(message);
+  }
+
+  @Override
+  public Message getErrorMessage() {
+    return target.getErrorMessage();
+  }
+
+  @Override
+  public void setErrorMessage(Message message) {
+    target.setErrorMessage(message);
+  }
+
+  @Override
+  public Connection getClientConnection() {
+    return target.getClientConnection();
+  }
+
+  @Override
+  public Connection getTargetConnection() {
+    return target.getTargetConnection();
+  }
+
+  @Override
+  public Message getMessage() {
+    return target.getMessage();
+  }
+
+  @Override
+  public <T extends FlowInfo> T getFlowInfo(String name) {
+    return target.getFlowInfo(name);
+  }
+
+  @Override
+  public boolean addFlowInfo(FlowInfo flowInfo) {
+    return target.addFlowInfo(flowInfo);
+  }
+
+  @Override
+  public void removeFlowInfo(String name) {
+    target.removeFlowInfo(name);
+  }
+
+  @Override
+  public Message createMessage(TransportMessage transportMessage) {
+    return target.createMessage(transportMessage);
+  }
+}
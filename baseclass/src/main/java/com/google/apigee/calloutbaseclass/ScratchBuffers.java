@@ -0,0 +1,204 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.apigee.calloutbaseclass;
+
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import javax.crypto.Mac;
+
+/**
+ * Per-thread reusable buffers and crypto objects, so that hot paths do not allocate them per
+ * request.
+ *
+ * <p>Buffers are acquired and released in pairs. An acquired buffer is owned by the caller until
+ * released. A nested acquire on the same thread gets a fresh buffer, so a missed release only
+ * costs an allocation; a few byte arrays are kept per thread, so that nested byte buffers and the
+ * chunks of a message body are reused too. Buffers that grew past a cap are dropped on release, so
+ * one large request does not pin memory on the thread. Digests, MACs and encoders are reset before
+ * they are handed out and must not be used after the calling method returns.
+ *
+ * <p>The buffers of a thread are kept across requests. The thread-local value only holds JDK
+ * objects, so the threads of the message processor, which outlive the callout, do not keep its
+ * classloader reachable after it is redeployed: once the classloader is unreachable the
+ * thread-local itself is collected and its entries become stale. {@link #clear()} drops the
+ * buffers of the current thread for code that wants them gone sooner.
+ */
+public final class ScratchBuffers {
+
+  // Largest buffers kept for reuse.
+  private static final int MAX_STRING_BUILDER_CAPACITY = 16 * 1024;
+  private static final int MAX_BYTE_ARRAY_LENGTH = 64 * 1024;
+  private static final int DEFAULT_STRING_BUILDER_CAPACITY = 256;
+  private static final int MAX_BYTE_ARRAYS = 4;
+
+  // Slots of the per-thread array. An instance of a class of this library there would keep the
+  // classloader of the callout reachable from the thread.
+  private static final int STRING_BUILDER = 0;
+  private static final int BYTES = 1;
+  private static final int DIGESTS = 2;
+  private static final int MACS = 3;
+  private static final int ENCODERS = 4;
+
+  static final ThreadLocal<Object[]> buffers =
+      ThreadLocal.withInitial(
+          () ->
+              new Object[] {
+                null, new ArrayDeque<byte[]>(), new HashMap<>(), new HashMap<>(), new HashMap<>()
+              });
+
+  private ScratchBuffers() {}
+
+  /**
+   * Drops the buffers and crypto objects of the current thread, e.g. when a callout that is being
+   * undeployed or that borrowed a foreign thread is done with it.
+   */
+  public static void clear() {
+    buffers.remove();
+  }
+
+  /** @return An empty string builder owned by the caller until released */
+  public static StringBuilder acquireStringBuilder() {
+    Object[] scratch = buffers.get();
+    StringBuilder sb = (StringBuilder) scratch[STRING_BUILDER];
+    if (sb == null) {
+      return new StringBuilder(DEFAULT_STRING_BUILDER_CAPACITY);
+    }
+    scratch[STRING_BUILDER] = null;
+    sb.setLength(0);
+    return sb;
+  }
+
+  /**
+   * Returns a string builder for reuse by the current thread.
+   *
+   * @param sb String builder acquired by the caller; it must not be used afterwards
+   */
+  public static void release(StringBuilder sb) {
+    if (sb.capacity() <= MAX_STRING_BUILDER_CAPACITY) {
+      buffers.get()[STRING_BUILDER] = sb;
+    }
+  }
+
+  /**
+   * Returns the content of a string builder and releases it.
+   *
+   * @param sb String builder acquired by the caller; it must not be used afterwards
+   * @return Content of sb
+   */
+  public static String toStringAndRelease(StringBuilder sb) {
+    String value = sb.toString();
+    release(sb);
+    return value;
+  }
+
+  /**
+   * Acquires a byte array of at least a length. Its content is undefined.
+   *
+   * @param minLength Minimum length of the array
+   * @return A byte array owned by the caller until released
+   */
+  public static byte[] acquireBytes(int minLength) {
+    ArrayDeque<byte[]> arrays = slot(BYTES);
+    byte[] b = arrays.peekLast();
+    if (b == null || b.length < minLength) {
+      return new byte[Math.max(minLength, 8 * 1024)];
+    }
+    return arrays.pollLast();
+  }
+
+  /**
+   * Returns a byte array for reuse by the current thread, which need not be the thread that
+   * acquired it.
+   *
+   * @param b Byte array acquired by the caller; it must not be used afterwards
+   */
+  public static void release(byte[] b) {
+    if (b.length <= MAX_BYTE_ARRAY_LENGTH) {
+      ArrayDeque<byte[]> arrays = slot(BYTES);
+      if (arrays.size() == MAX_BYTE_ARRAYS) {
+        arrays.pollFirst();
+      }
+      arrays.addLast(b);
+    }
+  }
+
+  /**
+   * Retrieves the current thread's digest for an algorithm, reset.
+   *
+   * @param algorithm Digest algorithm, e.g. "SHA-256"
+   * @return Digest
+   * @throws NoSuchAlgorithmException if the algorithm is not available
+   */
+  public static MessageDigest getMessageDigest(String algorithm) throws NoSuchAlgorithmException {
+    Map<String, MessageDigest> digests = slot(DIGESTS);
+    MessageDigest digest = digests.get(algorithm);
+    if (digest == null) {
+      digest = MessageDigest.getInstance(algorithm);
+      digests.put(algorithm, digest);
+    } else {
+      digest.reset();
+    }
+    return digest;
+  }
+
+  /**
+   * Retrieves the current thread's MAC for an algorithm, initialized with a key.
+   *
+   * @param algorithm MAC algorithm, e.g. "HmacSHA256"
+   * @param key Key to initialize the MAC with
+   * @return MAC
+   * @throws GeneralSecurityException if the algorithm is not available or the key is invalid
+   */
+  public static Mac getMac(String algorithm, Key key) throws GeneralSecurityException {
+    Map<String, Mac> macs = slot(MACS);
+    Mac mac = macs.get(algorithm);
+    if (mac == null) {
+      mac = Mac.getInstance(algorithm);
+      macs.put(algorithm, mac);
+    }
+    mac.init(key);
+    return mac;
+  }
+
+  /**
+   * Retrieves the current thread's encoder for a charset, reset. Malformed and unmappable input
+   * is reported, as by {@link Charset#newEncoder()}.
+   *
+   * @param charset Charset
+   * @return Encoder
+   */
+  public static CharsetEncoder getEncoder(Charset charset) {
+    Map<Charset, CharsetEncoder> encoders = slot(ENCODERS);
+    CharsetEncoder encoder = encoders.get(charset);
+    if (encoder == null) {
+      encoder = charset.newEncoder();
+      encoders.put(charset, encoder);
+    } else {
+      encoder.reset();
+    }
+    return encoder;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <T> T slot(int index) {
+    return (T) buffers.get()[index];
+  }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.apigee.calloutbaseclass;
+
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Renders exception stack traces for the stacktrace flow variable. By default the output is the
+ * same as {@link Throwable#printStackTrace()}. It can be bounded to a number of frames per
+ * exception and skip frames of excluded packages; like printStackTrace, the frames a cause shares
+ * with the exception it caused are elided. The rendered frames can also be cached per exception
+ * instance, so that an exception thrown again, e.g. a preallocated one, is rendered only once
+ * without even reading its stack trace. Messages are never cached; they are rendered on every
+ * call, since they can hold data of the request.
+ */
+final class StackTraceRenderer {
+
+  // Same separator as printStackTrace, so every mode renders lines alike.
+  private static final String NEWLINE = System.lineSeparator();
+
+  private final int maxFrames;
+  private final String[] excludedPrefixes;
+  // Rendered frames of each exception of the cause chain of an exception instance.
+  private final CalloutCache<Identity, String[]> cache;
+
+  /**
+   * @param maxFrames Maximum number of frames rendered per exception, or 0 for no limit
+   * @param excludedPrefixes Class name prefixes of frames to leave out
+   * @param cacheSize Maximum number of exceptions whose frames are cached, or 0 to disable caching
+   */
+  StackTraceRenderer(int maxFrames, String[] excludedPrefixes, int cacheSize) {
+    this.maxFrames = maxFrames;
+    this.excludedPrefixes = excludedPrefixes;
+    this.cache =
+        cacheSize > 0
+            ? CalloutCache.<Identity, String[]>newBuilder().maximumSize(cacheSize).build()
+            : null;
+  }
+
+  /**
+   * Renders the stack trace of a throwable.
+   *
+   * @param throwable Throwable to render
+   * @return Rendered stack trace
+   */
+  String render(Throwable throwable) {
+    StringBuilder sb = ScratchBuffers.acquireStringBuilder();
+    if (cache == null && maxFrames == 0 && excludedPrefixes.length == 0) {
+      throwable.printStackTrace(new PrintWriter(new StringBuilderWriter(sb)));
+      return ScratchBuffers.toStringAndRelease(sb);
+    }
+    Identity key = cache == null ? null : new Identity(throwable);
+    String[] cached = key == null ? null : cache.get(key);
+    List<String> blocks = key != null && cached == null ? new ArrayList<>() : null;
+    Set<Throwable> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+    Throwable enclosing = null;
+    // Frames of enclosing, if they were read.
+    StackTraceElement[] enclosingFrames = null;
+    String prefix = "";
+    int index = 0;
+    for (Throwable t = throwable; t != null && seen.add(t); t = t.getCause()) {
+      sb.append(prefix).append(t).append(NEWLINE);
+      StackTraceElement[] frames = null;
+      if (cached != null && index < cached.length) {
+        sb.append(cached[index]);
+      } else {
+        if (enclosing != null && enclosingFrames == null) {
+          enclosingFrames = enclosing.getStackTrace();
+        }
+        frames = t.getStackTrace();
+        int mark = sb.length();
+        appendFrames(sb, frames, enclosingFrames);
+        if (blocks != null) {
+          blocks.add(sb.substring(mark));
+        }
+      }
+      enclosing = t;
+      enclosingFrames = frames;
+      prefix = "Caused by: ";
+      index++;
+    }
+    if (blocks != null) {
+      cache.put(key, blocks.toArray(new String[0]));
+    }
+    return ScratchBuffers.toStringAndRelease(sb);
+  }
+
+  /**
+   * Appends the frames of an exception, leaving out those it shares at the bottom of its stack with
+   * the exception it caused, as printStackTrace does.
+   *
+   * @param sb Builder to append to
+   * @param frames Frames of the exception
+   * @param enclosing Frames of the exception it caused, or null
+   */
+  private void appendFrames(
+      StringBuilder sb, StackTraceElement[] frames, StackTraceElement[] enclosing) {
+    int last = frames.length - 1;
+    if (enclosing != null) {
+      for (int n = enclosing.length - 1; last >= 0 && n >= 0; last--, n--) {
+        if (!frames[last].equals(enclosing[n])) {
+          break;
+        }
+      }
+    }
+    int rendered = 0;
+    int omitted = frames.length - 1 - last;
+    for (int i = 0; i <= last; i++) {
+      StackTraceElement frame = frames[i];
+      if ((maxFrames > 0 && rendered == maxFrames) || isExcluded(frame.getClassName())) {
+        omitted++;
+        continue;
+      }
+      sb.append("\tat ").append(frame).append(NEWLINE);
+      rendered++;
+    }
+    if (omitted > 0) {
+      sb.append("\t... ").append(omitted).append(" more").append(NEWLINE);
+    }
+  }
+
+  private boolean isExcluded(String className) {
+    for (String prefix : excludedPrefixes) {
+      if (className.startsWith(prefix)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Writer appending to a string builder, unlike StringWriter which grows its own buffer. */
+  private static final class StringBuilderWriter extends Writer {
+    private final StringBuilder sb;
+
+    StringBuilderWriter(StringBuilder sb) {
+      this.sb = sb;
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) {
+      sb.append(cbuf, off, len);
+    }
+
+    @Override
+    public void write(String str, int off, int len) {
+      sb.append(str, off, off + len);
+    }
+
+    @Override
+    public void flush() {}
+
+    @Override
+    public void close() {}
+  }
+
+  /** Exception compared by identity, so that only the same instance shares rendered frames. */
+  private static final class Identity {
+    private final Throwable throwable;
+
+    Identity(Throwable throwable) {
+      this.throwable = throwable;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof Identity && ((Identity) o).throwable == throwable;
+    }
+
+    @Override
+    public int hashCode() {
+      return System.identityHashCode(throwable);
+    }
+  }
+}
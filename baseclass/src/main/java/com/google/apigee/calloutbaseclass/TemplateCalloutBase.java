@@ -0,0 +1,121 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.apigee.calloutbaseclass;
+
+import com.apigee.flow.execution.Action;
+import com.apigee.flow.execution.ExecutionContext;
+import com.apigee.flow.execution.ExecutionResult;
+import com.apigee.flow.execution.spi.Execution;
+import com.apigee.flow.message.MessageContext;
+
+import java.util.Map;
+
+/**
+ * Base class for callouts that implement {@link #executeCallout(MessageContext, ExecutionContext)}
+ * instead of execute. execute runs it with an optional deadline, rate limit and circuit breaker,
+ * turning exceptions into the exception flow variables and an ABORT result.
+ */
+public abstract class TemplateCalloutBase extends CalloutBase implements Execution {
+
+  // Set as the error of rejected requests, so rejecting a request renders nothing.
+  private static final String CIRCUIT_BREAKER_OPEN_ERROR = "Circuit breaker open";
+  private static final String RATE_LIMIT_EXCEEDED_ERROR = "Rate limit exceeded";
+
+  /**
+   * Constructor taking in String key and value properties map
+   *
+   * @param properties String key and value map
+   */
+  public TemplateCalloutBase(Map<String, String> properties) {
+    super(properties);
+  }
+
+  /**
+   * Constructor validating the properties against the schema declared by the subclass.
+   *
+   * @param properties String key and value map
+   * @param schema Properties the callout expects, or null to skip validation
+   * @throws IllegalArgumentException listing every property that violates the schema
+   */
+  public TemplateCalloutBase(Map<String, String> properties, PropertySchema schema) {
+    super(properties, schema);
+  }
+
+  /**
+   * Executes the callout through {@link #executeCallout(MessageContext, ExecutionContext)}.
+   *
+   * <p>If the request exceeds the rate limit, or while the circuit breaker is open, the callout is
+   * not run: the error flow variable is set and ABORT is returned. Otherwise executeCallout runs
+   * in a request scope whose deadline is set from the "callout-timeout" property. The scope only
+   * memoizes properties and buffers log statements and variable writes, as one opened with {@link
+   * #openScope(MessageContext)}, if the "callout-request-scope" property is true. An exception sets
+   * the exception flow variables and returns ABORT. Exceptions, ABORT results and executions that
+   * overran the deadline count as failures of the circuit breaker. Metrics are recorded as with
+   * executeInstrumented.
+   *
+   * @param messageContext Message Context of the current request
+   * @param executionContext Execution Context of the current request
+   * @return Result of executeCallout, or ABORT if it failed or was not run
+   */
+  @Override
+  public ExecutionResult execute(MessageContext messageContext, ExecutionContext executionContext) {
+    if (!tryAcquireRateLimit(messageContext)) {
+      setErrorVariable(RATE_LIMIT_EXCEEDED_ERROR, messageContext);
+      return ExecutionResult.ABORT;
+    }
+    CircuitBreaker circuitBreaker = getCircuitBreaker();
+    if (circuitBreaker != null && !circuitBreaker.tryAcquire()) {
+      setErrorVariable(CIRCUIT_BREAKER_OPEN_ERROR, messageContext);
+      return ExecutionResult.ABORT;
+    }
+    long start = System.nanoTime();
+    ExecutionResult result = null;
+    boolean overran = false;
+    boolean buffered = usesRequestScope();
+    try (RequestScope scope = openScope(messageContext, buffered)) {
+      if (getTimeoutNanos() > 0) {
+        scope.setDeadline(start + getTimeoutNanos());
+      }
+      try {
+        // Writes the callout makes directly to the Message Context go through the buffer too.
+        result =
+            executeCallout(
+                buffered ? scope.getScopedMessageContext() : messageContext, executionContext);
+        overran = scope.getRemainingNanos() < 0;
+      } catch (Exception e) {
+        // Set in the scope, so that the variables are committed with the callout's own.
+        setExceptionVariables(e, messageContext);
+      }
+    } finally {
+      recordMetrics(start, result, messageContext);
+      if (circuitBreaker != null) {
+        circuitBreaker.record(result != null && result.getAction() != Action.ABORT && !overran);
+      }
+    }
+    return result == null ? ExecutionResult.ABORT : result;
+  }
+
+  /**
+   * Body of the callout, run by {@link #execute(MessageContext, ExecutionContext)}. Callouts with a
+   * time budget should call {@link #checkDeadline(MessageContext)} between steps and bound blocking
+   * calls by {@link #getRemainingNanos(MessageContext)}.
+   *
+   * @param messageContext Message Context of the current request
+   * @param executionContext Execution Context of the current request
+   * @return Result of the callout
+   * @throws Exception if the callout fails; the exception is stored in the flow variables
+   */
+  protected abstract ExecutionResult executeCallout(
+      MessageContext messageContext, ExecutionContext executionContext) throws Exception;
+}
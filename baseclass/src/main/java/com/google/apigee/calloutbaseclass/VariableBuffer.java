@@ -0,0 +1,117 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.apigee.calloutbaseclass;
+
+import com.apigee.flow.message.MessageContext;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Write-behind buffer of the flow variables of a request. Writes are collected, repeated writes to
+ * a variable are coalesced, and everything is committed to the Message Context at once. Reads see
+ * the buffered writes. Other variables are read from the Message Context on every read, since it
+ * may also change them, e.g. when headers are set on a message, except for prefetched variables,
+ * which are read once.
+ *
+ * <p>A write made directly to the Message Context bypasses the buffer: a buffered write to the same
+ * variable would hide it from reads and overwrite it on commit. The base class therefore routes its
+ * own writes and those of executeCallout through the buffer, and calls {@link #invalidate(String)}
+ * for the variables it still has to write directly.
+ */
+final class VariableBuffer {
+
+  // Buffered value of a removed variable, and prefetched value of a variable that is not set.
+  private static final Object ABSENT = new Object();
+
+  private final Map<String, Object> writes = new LinkedHashMap<>();
+  private final Map<String, Object> prefetched = new HashMap<>();
+
+  /**
+   * Reads a variable, from the buffered writes if it was written.
+   *
+   * @param name Name of the variable
+   * @param messageContext Message Context to read from if the variable was not written or
+   *     prefetched
+   * @return Value of the variable, or null if it is not set
+   */
+  Object get(String name, MessageContext messageContext) {
+    Object value = writes.get(name);
+    if (value == null) {
+      value = prefetched.get(name);
+      if (value == null) {
+        return messageContext.getVariable(name);
+      }
+    }
+    return value == ABSENT ? null : value;
+  }
+
+  /**
+   * Reads variables ahead of their use, so that later reads are served from the buffer.
+   *
+   * @param names Names of the variables
+   * @param messageContext Message Context to read from
+   */
+  void prefetch(String[] names, MessageContext messageContext) {
+    for (String name : names) {
+      Object value = messageContext.getVariable(name);
+      prefetched.put(name, value == null ? ABSENT : value);
+    }
+  }
+
+  /**
+   * Buffers a write, replacing any buffered write to the same variable.
+   *
+   * @param name Name of the variable
+   * @param value New value; null removes the variable
+   */
+  void set(String name, Object value) {
+    writes.put(name, value == null ? ABSENT : value);
+  }
+
+  /**
+   * Forgets a variable that was written directly to the Message Context, so that reads see the
+   * direct write and committing does not overwrite it.
+   *
+   * @param name Name of the variable
+   */
+  void invalidate(String name) {
+    writes.remove(name);
+    prefetched.remove(name);
+  }
+
+  /** @return true if writes are waiting to be committed */
+  boolean isDirty() {
+    return !writes.isEmpty();
+  }
+
+  /**
+   * Applies the buffered writes to the Message Context in the order the variables were first
+   * written. Written variables are read from the Message Context afterwards.
+   *
+   * @param messageContext Message Context to write to
+   */
+  void commit(MessageContext messageContext) {
+    for (Map.Entry<String, Object> write : writes.entrySet()) {
+      if (write.getValue() == ABSENT) {
+        messageContext.removeVariable(write.getKey());
+      } else {
+        messageContext.setVariable(write.getKey(), write.getValue());
+      }
+    }
+    prefetched.keySet().removeAll(writes.keySet());
+    writes.clear();
+  }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.apigee.calloutbaseclass;
+
+import com.apigee.flow.FlowInfo;
+import com.apigee.flow.message.Connection;
+import com.apigee.flow.message.FlowContext;
+import com.apigee.flow.message.Message;
+import com.apigee.flow.message.MessageContext;
+import com.apigee.flow.message.TransportMessage;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Message Context holding flow variables in a map, used to run synthetic warm-up requests while a
+ * callout is constructed. Only the flow variable methods are supported.
+ */
+final class WarmUpMessageContext implements MessageContext {
+
+  private final Map<String, Object> variables = new HashMap<>();
+
+  /** Removes all flow variables. */
+  void clear() {
+    variables.clear();
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public <T> T getVariable(String name) {
+    return (T) variables.get(name);
+  }
+
+  @Override
+  public boolean setVariable(String name, Object value) {
+    variables.put(name, value);
+    return true;
+  }
+
+  @Override
+  public boolean removeVariable(String name) {
+    return variables.remove(name) != null;
+  }
+
+  @Override
+  @SuppressWarnings({"rawtypes", "unchecked"})
+  public <T extends Comparable> T get(String name) {
+    return (T) variables.get(name);
+  }
+
+  @Override
+  public Message getMessage(FlowContext flowContext) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public void setMessage(FlowContext flowContext, Message message) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public Message getRequestMessage() {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public void setRequestMessage(Message message) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public Message getResponseMessage() {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public void setResponseMessage(Message message) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public Message getErrorMessage() {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public void setErrorMessage(Message message) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public Connection getClientConnection() {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public Connection getTargetConnection() {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public Message getMessage() {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public <T extends FlowInfo> T getFlowInfo(String name) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public boolean addFlowInfo(FlowInfo flowInfo) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public void removeFlowInfo(String name) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public Message createMessage(TransportMessage transportMessage) {
+    throw new UnsupportedOperationException();
+  }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.apigee.calloutbaseclass;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Named XML paths compiled once and evaluated with StAX over streamed XML, replacing DOM parsing
+ * and XPath evaluation for callouts that read a few values. Memory use does not depend on the size
+ * of the document, and reading stops as soon as every path has been found.
+ *
+ * <p>Parsers come from a pool of factories configured against XXE: DTDs and external entities are
+ * not supported.
+ */
+public final class XmlFields {
+
+  private static final int MAX_POOLED_FACTORIES = Runtime.getRuntime().availableProcessors() * 2;
+  private static final Queue<XMLInputFactory> factories = new ConcurrentLinkedQueue<>();
+  private static final AtomicInteger pooledFactories = new AtomicInteger();
+
+  private final String[] names;
+  private final XmlPath[] paths;
+
+  private XmlFields(String[] names, XmlPath[] paths) {
+    this.names = names;
+    this.paths = paths;
+  }
+
+  /**
+   * Compiles named paths of the form "/a/b[2]/c" or "/a/b/@id".
+   *
+   * @param pathsByName Path of each name
+   * @return Compiled paths
+   * @throws IllegalArgumentException if a path is invalid
+   */
+  public static XmlFields compile(Map<String, String> pathsByName) {
+    String[] names = new String[pathsByName.size()];
+    XmlPath[] paths = new XmlPath[names.length];
+    int i = 0;
+    for (Map.Entry<String, String> entry : pathsByName.entrySet()) {
+      names[i] = entry.getKey();
+      paths[i] = XmlPath.compile(entry.getKey(), entry.getValue());
+      i++;
+    }
+    return new XmlFields(names, paths);
+  }
+
+  /** @return true if no paths are declared */
+  public boolean isEmpty() {
+    return names.length == 0;
+  }
+
+  /**
+   * Extracts the value at each path: the value of the attribute, or the text of the element and
+   * its descendants. Reading stops once every path has been found.
+   *
+   * @param in XML document; its encoding is detected from the document
+   * @return Value of each path found, by name
+   * @throws IOException if the XML cannot be read or is malformed
+   */
+  public Map<String, String> extract(InputStream in) throws IOException {
+    if (names.length == 0) {
+      return Collections.emptyMap();
+    }
+    XMLInputFactory factory = borrowFactory();
+    XMLStreamReader reader = null;
+    try {
+      reader = factory.createXMLStreamReader(in);
+      return extract(reader);
+    } catch (XMLStreamException e) {
+      throw new IOException("Malformed XML: " + e.getMessage(), e);
+    } finally {
+      if (reader != null) {
+        try {
+          reader.close();
+        } catch (XMLStreamException e) {
+          // Nothing left to read.
+        }
+      }
+      returnFactory(factory);
+    }
+  }
+
+  private Map<String, String> extract(XMLStreamReader reader) throws XMLStreamException {
+    String[] values = new String[paths.length];
+    // Number of leading steps of each path matched by the open elements.
+    int[] matched = new int[paths.length];
+    // Same-named siblings seen under the matched parent, for each path and step.
+    int[][] seen = new int[paths.length][];
+    for (int i = 0; i < paths.length; i++) {
+      seen[i] = new int[paths[i].length()];
+    }
+    // Text collected for each path whose element is open, else null.
+    StringBuilder[] text = new StringBuilder[paths.length];
+    int remaining = paths.length;
+    int depth = 0;
+    while (remaining > 0 && reader.hasNext()) {
+      int event = reader.next();
+      if (event == XMLStreamConstants.START_ELEMENT) {
+        String name = reader.getLocalName();
+        for (int i = 0; i < paths.length; i++) {
+          XmlPath path = paths[i];
+          if (values[i] != null || matched[i] != depth || depth >= path.length()
+              || !path.getName(depth).equals(name)) {
+            continue;
+          }
+          int position = ++seen[i][depth];
+          if (path.getPosition(depth) != 0 && path.getPosition(depth) != position) {
+            continue;
+          }
+          matched[i] = depth + 1;
+          if (matched[i] < path.length()) {
+            seen[i][depth + 1] = 0;
+          } else if (path.getAttribute() == null) {
+            text[i] = new StringBuilder();
+          } else {
+            String value = getAttributeValue(reader, path.getAttribute());
+            if (value != null) {
+              values[i] = value;
+              remaining--;
+            }
+          }
+        }
+        depth++;
+      } else if (event == XMLStreamConstants.END_ELEMENT) {
+        for (int i = 0; i < paths.length; i++) {
+          if (matched[i] != depth) {
+            continue;
+          }
+          matched[i] = depth - 1;
+          if (text[i] != null) {
+            values[i] = text[i].toString();
+            text[i] = null;
+            remaining--;
+          }
+        }
+        depth--;
+      } else if (event == XMLStreamConstants.CHARACTERS
+          || event == XMLStreamConstants.CDATA
+          || event == XMLStreamConstants.SPACE) {
+        char[] characters = reader.getTextCharacters();
+        for (int i = 0; i < paths.length; i++) {
+          if (text[i] != null) {
+            text[i].append(characters, reader.getTextStart(), reader.getTextLength());
+          }
+        }
+      }
+    }
+    Map<String, String> result = new HashMap<>();
+    for (int i = 0; i < names.length; i++) {
+      if (values[i] != null) {
+        result.put(names[i], values[i]);
+      }
+    }
+    return result;
+  }
+
+  private static String getAttributeValue(XMLStreamReader reader, String localName) {
+    for (int i = 0; i < reader.getAttributeCount(); i++) {
+      if (reader.getAttributeLocalName(i).equals(localName)) {
+        return reader.getAttributeValue(i);
+      }
+    }
+    return null;
+  }
+
+  private static XMLInputFactory borrowFactory() {
+    XMLInputFactory factory = factories.poll();
+    if (factory == null) {
+      return newFactory();
+    }
+    pooledFactories.decrementAndGet();
+    return factory;
+  }
+
+  private static void returnFactory(XMLInputFactory factory) {
+    if (pooledFactories.incrementAndGet() <= MAX_POOLED_FACTORIES) {
+      factories.offer(factory);
+    } else {
+      pooledFactories.decrementAndGet();
+    }
+  }
+
+  private static XMLInputFactory newFactory() {
+    XMLInputFactory factory = XMLInputFactory.newFactory();
+    factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+    return factory;
+  }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.apigee.calloutbaseclass;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compiled XPath-like location of the form "/a/b[2]/c" or "/a/b/@id": a sequence of element local
+ * names from the root element, each optionally with a 1-based position among same-named siblings,
+ * optionally ending with an attribute. Namespace prefixes in the path are ignored, so elements are
+ * matched by local name.
+ */
+final class XmlPath {
+
+  private final String[] names;
+  // 1-based position of each element among same-named siblings, or 0 for the first match.
+  private final int[] positions;
+  // Local name of the selected attribute, or null to select the text of the last element.
+  private final String attribute;
+
+  private XmlPath(String[] names, int[] positions, String attribute) {
+    this.names = names;
+    this.positions = positions;
+    this.attribute = attribute;
+  }
+
+  /**
+   * Compiles a path.
+   *
+   * @param propertyName Name of the property declaring the path, for error messages
+   * @param spec Path to compile
+   * @return Compiled path
+   * @throws IllegalArgumentException if spec is not a valid path
+   */
+  static XmlPath compile(String propertyName, String spec) {
+    if (!spec.startsWith("/") || spec.startsWith("//") || spec.endsWith("/")) {
+      throw invalid(propertyName, spec);
+    }
+    String[] steps = spec.substring(1).split("/", -1);
+    List<String> names = new ArrayList<>();
+    int[] positions = new int[steps.length];
+    String attribute = null;
+    for (int i = 0; i < steps.length; i++) {
+      String step = steps[i];
+      if (step.startsWith("@")) {
+        if (i != steps.length - 1 || i == 0) {
+          throw invalid(propertyName, spec);
+        }
+        attribute = localName(propertyName, spec, step.substring(1));
+        continue;
+      }
+      int bracket = step.indexOf('[');
+      if (bracket >= 0) {
+        if (!step.endsWith("]")) {
+          throw invalid(propertyName, spec);
+        }
+        try {
+          positions[i] = Integer.parseInt(step.substring(bracket + 1, step.length() - 1));
+        } catch (NumberFormatException e) {
+          throw invalid(propertyName, spec);
+        }
+        if (positions[i] < 1) {
+          throw invalid(propertyName, spec);
+        }
+        step = step.substring(0, bracket);
+      }
+      names.add(localName(propertyName, spec, step));
+    }
+    int[] elementPositions = new int[names.size()];
+    System.arraycopy(positions, 0, elementPositions, 0, elementPositions.length);
+    return new XmlPath(names.toArray(new String[0]), elementPositions, attribute);
+  }
+
+  private static String localName(String propertyName, String spec, String name) {
+    String local = name.substring(name.indexOf(':') + 1);
+    if (local.isEmpty() || local.indexOf('[') >= 0 || local.indexOf(']') >= 0) {
+      throw invalid(propertyName, spec);
+    }
+    return local;
+  }
+
+  private static IllegalArgumentException invalid(String propertyName, String spec) {
+    return new IllegalArgumentException(
+        String.format("%s must be an XML path: %s", propertyName, spec));
+  }
+
+  /** @return Number of element steps */
+  int length() {
+    return names.length;
+  }
+
+  /** @return Local name of the element at a step */
+  String getName(int step) {
+    return names[step];
+  }
+
+  /** @return 1-based position of the element at a step, or 0 for the first match */
+  int getPosition(int step) {
+    return positions[step];
+  }
+
+  /** @return Local name of the selected attribute, or null if the path selects element text */
+  String getAttribute() {
+    return attribute;
+  }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.apigee.calloutbaseclass;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Creates the executor running the fan-out branches of all callouts. Java 21+ version of the
+ * class, starting a virtual thread per branch so that branches blocking on I/O do not tie up
+ * platform threads.
+ */
+final class FanOutThreads {
+
+  // Virtual threads are cheap; the bound only keeps a callout from flooding its dependencies.
+  private static final int MAX_CONCURRENCY = 256;
+
+  private FanOutThreads() {}
+
+  /** @return true if branches run on virtual threads */
+  static boolean isVirtual() {
+    return true;
+  }
+
+  /** @return Default number of branches a callout runs on the executor at the same time */
+  static int defaultMaxConcurrency() {
+    return MAX_CONCURRENCY;
+  }
+
+  /** @return New executor */
+  static ExecutorService newExecutor() {
+    return Executors.newThreadPerTaskExecutor(
+        Thread.ofVirtual().name("callout-fanout-", 1).factory());
+  }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.apigee.calloutbaseclass;
+
+/**
+ * Finds the frame that called into the base class. Java 9+ version of the class, walking the stack
+ * lazily so that only the frames up to the caller are materialized.
+ */
+final class CallerLocator {
+
+  private static final StackWalker WALKER = StackWalker.getInstance();
+
+  private CallerLocator() {}
+
+  /**
+   * Locates the caller of the base class.
+   *
+   * @return StackTraceElement of the first frame outside the base class, or null if there is none
+   */
+  static StackTraceElement locate() {
+    return WALKER.walk(
+        frames ->
+            frames
+                .filter(frame -> !isInternal(frame.getClassName()))
+                .findFirst()
+                .map(StackWalker.StackFrame::toStackTraceElement)
+                .orElse(null));
+  }
+
+  private static boolean isInternal(String className) {
+    return CalloutBase.class.getName().equals(className)
+        || CallerLocator.class.getName().equals(className)
+        || LogCaller.class.getName().equals(className);
+  }
+}
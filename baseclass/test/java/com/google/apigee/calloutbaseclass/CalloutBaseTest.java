@@ -14,18 +14,51 @@
 
 package com.google.apigee.calloutbaseclass;
 
+import com.apigee.flow.execution.ExecutionContext;
+import com.apigee.flow.execution.ExecutionResult;
+import com.apigee.flow.message.Message;
 import com.apigee.flow.message.MessageContext;
 import org.junit.Assert;
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
 import org.mockito.Spy;
 
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.io.SequenceInputStream;
 import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
 
 public final class CalloutBaseTest {
 
@@ -33,6 +66,8 @@ public final class CalloutBaseTest {
   private static final String EXCEPTION_FLOW_VARIABLE = "callout_exception";
   private static final String EXCEPTION_STACKTRACE_FLOW_VARIABLE = "callout_exception_stacktrace";
   private static final String LOG_FLOW_VARIABLE = "callout_log";
+  private static final String LOG_CALLER_LOCATION_KEY = "callout-log-caller-location";
+  private static final String LOG_LEVEL_KEY = "callout-log-level";
   private static final String NONEXISTENT_VARIABLE_REFERENCE = "{fake.variable}";
   private static final String OPTIONAL_VARIABLE_KEY = "optionalVar";
   private static final String OPTIONAL_VARIABLE_VALUE = "optionalValue";
@@ -58,6 +93,7 @@ public final class CalloutBaseTest {
     properties.put(OPTIONAL_VARIABLE_EMPTY_VALUE_KEY, "");
     properties.put(REQUIRED_VARIABLE_KEY, REQUIRED_VARIABLE_VALUE);
     properties.put(REQUIRED_VARIABLE_EMPTY_VALUE_KEY, "");
+    properties.put(LOG_CALLER_LOCATION_KEY, "true");
     calloutsBase = new CalloutBaseTestImpl(properties);
 
     messageContext.getVariables().clear();
@@ -76,7 +112,7 @@ public final class CalloutBaseTest {
   public void testGetOptionalPropertyThatDoesNotExist() {
     Optional<String> prop = calloutsBase.getOptionalProperty("", messageContext);
 
-    Assert.assertTrue(prop.isEmpty());
+    Assert.assertFalse(prop.isPresent());
   }
 
   @Test
@@ -84,7 +120,7 @@ public final class CalloutBaseTest {
     Optional<String> prop =
         calloutsBase.getOptionalProperty(OPTIONAL_VARIABLE_EMPTY_VALUE_KEY, messageContext);
 
-    Assert.assertTrue(prop.isEmpty());
+    Assert.assertFalse(prop.isPresent());
   }
 
   @Test
@@ -104,6 +140,75 @@ public final class CalloutBaseTest {
     calloutsBase.getRequiredProperty("", messageContext);
   }
 
+  @Test
+  public void testTypedPropertiesFromLiterals() {
+    Map<String, String> properties = new HashMap<>();
+    properties.put("int", " 42 ");
+    properties.put("long", "8000000000");
+    properties.put("boolean", "TRUE");
+    properties.put("duration", "1500ms");
+    properties.put("isoDuration", "PT2S");
+    properties.put("list", "a, b,,c ");
+    properties.put("enum", "warn");
+    CalloutBase callout = new CalloutBaseTestImpl(properties);
+
+    Assert.assertEquals(42, callout.getIntProperty("int", messageContext));
+    Assert.assertEquals(8000000000L, callout.getLongProperty("long", messageContext));
+    Assert.assertTrue(callout.getBooleanProperty("boolean", messageContext));
+    Assert.assertEquals(
+        Duration.ofMillis(1500), callout.getDurationProperty("duration", messageContext));
+    Assert.assertEquals(
+        Duration.ofSeconds(2), callout.getDurationProperty("isoDuration", messageContext));
+    Assert.assertEquals(
+        Arrays.asList("a", "b", "c"), callout.getListProperty("list", messageContext));
+    Assert.assertEquals(
+        LogLevel.WARN, callout.getEnumProperty("enum", LogLevel.class, messageContext));
+    Mockito.verify(messageContext, Mockito.never()).getVariable(Mockito.anyString());
+  }
+
+  @Test
+  public void testTypedPropertiesWithReferences() {
+    Map<String, String> properties = new HashMap<>();
+    properties.put("int", "{int.value}");
+    properties.put("list", "{fake.variable:x,y}");
+    CalloutBase callout = new CalloutBaseTestImpl(properties);
+    messageContext.setVariable("int.value", "7");
+
+    Assert.assertEquals(7, callout.getIntProperty("int", messageContext));
+    Assert.assertEquals(Arrays.asList("x", "y"), callout.getListProperty("list", messageContext));
+  }
+
+  @Test
+  public void testTypedPropertyDefaults() {
+    Map<String, String> properties = new HashMap<>();
+    properties.put("empty", "{fake.variable}");
+    CalloutBase callout = new CalloutBaseTestImpl(properties);
+
+    Assert.assertEquals(3, callout.getIntProperty("empty", 3, messageContext));
+    Assert.assertEquals(4L, callout.getLongProperty("missing", 4L, messageContext));
+    Assert.assertTrue(callout.getBooleanProperty("missing", true, messageContext));
+    Assert.assertEquals(
+        Duration.ZERO, callout.getDurationProperty("missing", Duration.ZERO, messageContext));
+    Assert.assertTrue(callout.getListProperty("missing", messageContext).isEmpty());
+    Assert.assertEquals(
+        LogLevel.INFO,
+        callout.getEnumProperty("missing", LogLevel.class, LogLevel.INFO, messageContext));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testTypedPropertyInvalid() {
+    Map<String, String> properties = new HashMap<>();
+    properties.put("int", "forty-two");
+    CalloutBase callout = new CalloutBaseTestImpl(properties);
+
+    callout.getIntProperty("int", 0, messageContext);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testTypedPropertyRequiredMissing() {
+    calloutsBase.getDurationProperty("missing", messageContext);
+  }
+
   @Test
   public void testResolveVariableReferences() {
     String expected = (String) messageContext.getVariable(TEST_FLOW_VARIABLE);
@@ -137,6 +242,191 @@ public final class CalloutBaseTest {
     Assert.assertEquals(TEST_FLOW_VARIABLE_DEFAULT_VALUE, actual);
   }
 
+  @Test
+  public void testResolveVariableReferencesMixedWithLiterals() {
+    String actual =
+        calloutsBase.resolveVariableReferences(
+            "a" + TEST_FLOW_VARIABLE_REFERENCE + "b" + TEST_FLOW_VARIABLE_WITH_DEFAULT_VALUE + "c",
+            messageContext);
+
+    Assert.assertEquals(
+        "a" + TEST_FLOW_VALUE + "b" + TEST_FLOW_VARIABLE_DEFAULT_VALUE + "c", actual);
+  }
+
+  @Test
+  public void testResolveVariableReferenceInvalidReferencesAreLiteral() {
+    String spec = "{} { x} {:x} {a b} {{" + TEST_FLOW_VARIABLE + "}";
+    String actual = calloutsBase.resolveVariableReferences(spec, messageContext);
+
+    Assert.assertEquals("{} { x} {:x} {a b} {" + TEST_FLOW_VALUE, actual);
+  }
+
+  @Test
+  public void testResolveExpressionFunctions() {
+    messageContext.setVariable("name", " Hello World ");
+
+    Assert.assertEquals(
+        "hello world|HELLO WORLD",
+        calloutsBase.resolveVariableReferences(
+            "{lower(trim(name))}|{upper(trim(name))}", messageContext));
+    Assert.assertEquals(
+        "a%20b%2Fc",
+        calloutsBase.resolveVariableReferences("{urlencode('a b/c')}", messageContext));
+    Assert.assertEquals(
+        "dGVzdDEyMw==",
+        calloutsBase.resolveVariableReferences(
+            "{base64(" + TEST_FLOW_VARIABLE + ")}", messageContext));
+    Assert.assertEquals(
+        "test-23",
+        calloutsBase.resolveVariableReferences(
+            "{concat(substring(" + TEST_FLOW_VARIABLE + ", 0, 4), '-', substring("
+                + TEST_FLOW_VARIABLE + ", -2))}",
+            messageContext));
+  }
+
+  @Test
+  public void testResolveExpressionConditional() {
+    String spec = "{if(eq(" + TEST_FLOW_VARIABLE + ", 'test123'), 'yes', 'no')}";
+
+    Assert.assertEquals("yes", calloutsBase.resolveVariableReferences(spec, messageContext));
+    messageContext.setVariable(TEST_FLOW_VARIABLE, "other");
+    Assert.assertEquals("no", calloutsBase.resolveVariableReferences(spec, messageContext));
+  }
+
+  @Test
+  public void testResolveExpressionFallbackChain() {
+    Assert.assertEquals(
+        TEST_FLOW_VALUE,
+        calloutsBase.resolveVariableReferences(
+            "{fake.a ?? " + TEST_FLOW_VARIABLE + " ?? 'none'}", messageContext));
+    Assert.assertEquals(
+        "none",
+        calloutsBase.resolveVariableReferences("{fake.a ?? fake.b ?? 'none'}", messageContext));
+    Assert.assertEquals(
+        "x", calloutsBase.resolveVariableReferences("x{fake.a ?? fake.b}", messageContext));
+  }
+
+  @Test
+  public void testResolveExpressionVar() {
+    messageContext.setVariable("header.name", "accept");
+    messageContext.setVariable("request.header.accept", "text/plain");
+
+    Assert.assertEquals(
+        "text/plain",
+        calloutsBase.resolveVariableReferences(
+            "{var(concat('request.header.', header.name))}", messageContext));
+    Assert.assertEquals(
+        "[none]",
+        calloutsBase.resolveVariableReferences(
+            "[{var(concat('request.header.', fake.a)) ?? 'none'}]", messageContext));
+  }
+
+  @Test
+  public void testResolveNestedBracesKeepsLiteralBraces() {
+    messageContext.setVariable("a", "b");
+    messageContext.setVariable("b", "wrong");
+    messageContext.setVariable("header.name", "accept");
+
+    Assert.assertEquals("{b}", calloutsBase.resolveVariableReferences("{{a}}", messageContext));
+    Assert.assertEquals(
+        "{request.header.accept}",
+        calloutsBase.resolveVariableReferences("{request.header.{header.name}}", messageContext));
+  }
+
+  @Test
+  public void testResolveExpressionKeepsPlainSyntax() {
+    Assert.assertEquals(
+        "http://x",
+        calloutsBase.resolveVariableReferences("{fake.value:http://x}", messageContext));
+    Assert.assertEquals(
+        "{\"a\": " + TEST_FLOW_VALUE + "}",
+        calloutsBase.resolveVariableReferences(
+            "{\"a\": " + TEST_FLOW_VARIABLE_REFERENCE + "}", messageContext));
+    // Not a known function, so still read as a plain variable name.
+    messageContext.setVariable("unknown(x)", "plain");
+    Assert.assertEquals(
+        "plain", calloutsBase.resolveVariableReferences("{unknown(x)}", messageContext));
+  }
+
+  @Test
+  public void testClosingOutermostScopeKeepsScratchBuffers() {
+    StringBuilder sb;
+    RequestScope scope = calloutsBase.openScope(messageContext);
+    try {
+      sb = ScratchBuffers.acquireStringBuilder();
+      ScratchBuffers.release(sb);
+    } finally {
+      scope.close();
+    }
+
+    StringBuilder next = ScratchBuffers.acquireStringBuilder();
+    Assert.assertSame(sb, next);
+    ScratchBuffers.release(next);
+  }
+
+  @Test
+  public void testDynamicReferenceSeesBufferedWrites() {
+    Map<String, String> properties = new HashMap<>();
+    properties.put(
+        OPTIONAL_VARIABLE_KEY, "{var(concat('request.header.', " + TEST_FLOW_VARIABLE + "))}");
+    CalloutBase callout = new CalloutBaseTestImpl(properties);
+    messageContext.setVariable("request.header." + TEST_FLOW_VALUE, "first");
+
+    try (RequestScope scope = callout.openScope(messageContext)) {
+      Assert.assertEquals("first", scope.getRequiredProperty(OPTIONAL_VARIABLE_KEY));
+      callout.setVariable("request.header." + TEST_FLOW_VALUE, "second", messageContext);
+
+      Assert.assertEquals("second", scope.getRequiredProperty(OPTIONAL_VARIABLE_KEY));
+    }
+  }
+
+  @Test
+  public void testGetOptionalPropertyWithReference() {
+    Map<String, String> properties = new HashMap<>();
+    properties.put(OPTIONAL_VARIABLE_KEY, " Hi " + TEST_FLOW_VARIABLE_REFERENCE + "! ");
+    CalloutBase callout = new CalloutBaseTestImpl(properties);
+
+    Optional<String> prop = callout.getOptionalProperty(OPTIONAL_VARIABLE_KEY, messageContext);
+
+    Assert.assertEquals(Optional.of("Hi " + TEST_FLOW_VALUE + "!"), prop);
+  }
+
+  @Test
+  public void testRequestScopeResolvesPropertyOnce() {
+    Map<String, String> properties = new HashMap<>();
+    properties.put(OPTIONAL_VARIABLE_KEY, TEST_FLOW_VARIABLE_REFERENCE);
+    CalloutBase callout = new CalloutBaseTestImpl(properties);
+
+    try (RequestScope scope = callout.openScope(messageContext)) {
+      Assert.assertEquals(
+          TEST_FLOW_VALUE, callout.getRequiredProperty(OPTIONAL_VARIABLE_KEY, messageContext));
+      Assert.assertEquals(TEST_FLOW_VALUE, scope.getRequiredProperty(OPTIONAL_VARIABLE_KEY));
+    }
+    Mockito.verify(messageContext, Mockito.times(1)).getVariable(TEST_FLOW_VARIABLE);
+
+    callout.getRequiredProperty(OPTIONAL_VARIABLE_KEY, messageContext);
+    Mockito.verify(messageContext, Mockito.times(2)).getVariable(TEST_FLOW_VARIABLE);
+  }
+
+  @Test
+  public void testRequestScopeIgnoresOtherMessageContexts() {
+    Map<String, String> properties = new HashMap<>();
+    properties.put(OPTIONAL_VARIABLE_KEY, TEST_FLOW_VARIABLE_REFERENCE);
+    CalloutBase callout = new CalloutBaseTestImpl(properties);
+    FakeMessageContext other = Mockito.spy(FakeMessageContext.class);
+    other.setVariable(TEST_FLOW_VARIABLE, TEST_FLOW_VARIABLE_DEFAULT_VALUE);
+
+    RequestScope scope = callout.openScope(messageContext);
+    try {
+      callout.getRequiredProperty(OPTIONAL_VARIABLE_KEY, messageContext);
+      Assert.assertEquals(
+          TEST_FLOW_VARIABLE_DEFAULT_VALUE,
+          callout.getRequiredProperty(OPTIONAL_VARIABLE_KEY, other));
+    } finally {
+      scope.close();
+    }
+  }
+
   @Test
   public void testSetExceptionVariables() {
     String expected_exception;
@@ -165,6 +455,137 @@ public final class CalloutBaseTest {
     Assert.assertEquals(expected_stacktrace, actual_stacktrace);
   }
 
+  @Test
+  public void testSetExceptionVariablesUncommonError() {
+    calloutsBase.setExceptionVariables(new Exception("a\rb: c"), messageContext);
+
+    Assert.assertEquals(
+        "java.lang.Exception: a\rb: c", messageContext.getVariable(ERROR_FLOW_VARIABLE));
+  }
+
+  @Test
+  public void testSetExceptionVariablesWithoutStackTrace() {
+    Map<String, String> properties = new HashMap<>();
+    properties.put("callout-exception-stacktrace", "false");
+    CalloutBase callout = new CalloutBaseTestImpl(properties);
+
+    callout.setExceptionVariables(new Exception("test"), messageContext);
+
+    Assert.assertEquals("test", messageContext.getVariable(ERROR_FLOW_VARIABLE));
+    Assert.assertNull(messageContext.getVariable(EXCEPTION_STACKTRACE_FLOW_VARIABLE));
+  }
+
+  @Test
+  public void testSetExceptionVariablesBoundedStackTrace() {
+    Map<String, String> properties = new HashMap<>();
+    properties.put("callout-exception-stacktrace-max-frames", "2");
+    properties.put("callout-exception-stacktrace-exclude", "org.junit., java.");
+    CalloutBase callout = new CalloutBaseTestImpl(properties);
+    Exception exception = new Exception("outer", new IllegalStateException("inner"));
+
+    callout.setExceptionVariables(exception, messageContext);
+
+    String[] lines =
+        ((String) messageContext.getVariable(EXCEPTION_STACKTRACE_FLOW_VARIABLE))
+            .split(System.lineSeparator());
+    Assert.assertEquals("java.lang.Exception: outer", lines[0]);
+    Assert.assertTrue(lines[1].startsWith("\tat " + CalloutBaseTest.class.getName()));
+    Assert.assertTrue(lines[2].startsWith("\tat "));
+    Assert.assertFalse(lines[2].contains("org.junit."));
+    Assert.assertTrue(lines[3].matches("\t\\.\\.\\. \\d+ more"));
+    Assert.assertEquals("Caused by: java.lang.IllegalStateException: inner", lines[4]);
+  }
+
+  @Test
+  public void testSetExceptionVariablesCachedStackTrace() {
+    Map<String, String> properties = new HashMap<>();
+    properties.put("callout-exception-stacktrace-cache-size", "8");
+    CalloutBase callout = new CalloutBaseTestImpl(properties);
+    String[] traces = new String[2];
+
+    for (int i = 0; i < 2; i++) {
+      callout.setExceptionVariables(new Exception("attempt " + i), messageContext);
+      traces[i] = (String) messageContext.getVariable(EXCEPTION_STACKTRACE_FLOW_VARIABLE);
+    }
+
+    Assert.assertTrue(traces[0].startsWith("java.lang.Exception: attempt 0"));
+    Assert.assertTrue(traces[1].startsWith("java.lang.Exception: attempt 1"));
+    Assert.assertEquals(
+        traces[0].substring(traces[0].indexOf('\t')),
+        traces[1].substring(traces[1].indexOf('\t')));
+  }
+
+  @Test
+  public void testCachedStackTraceRendersCallPathAndCauseOfEachThrow() {
+    Map<String, String> properties = new HashMap<>();
+    properties.put("callout-exception-stacktrace-cache-size", "8");
+    CalloutBase callout = new CalloutBaseTestImpl(properties);
+
+    callout.setExceptionVariables(
+        throwFromFirstPath(new IllegalStateException("first cause")), messageContext);
+    String first = (String) messageContext.getVariable(EXCEPTION_STACKTRACE_FLOW_VARIABLE);
+    callout.setExceptionVariables(
+        throwFromSecondPath(new IllegalArgumentException("second cause")), messageContext);
+    String second = (String) messageContext.getVariable(EXCEPTION_STACKTRACE_FLOW_VARIABLE);
+
+    Assert.assertTrue(first.contains("throwFromFirstPath"));
+    Assert.assertTrue(first.contains("Caused by: java.lang.IllegalStateException: first cause"));
+    Assert.assertTrue(second.contains("throwFromSecondPath"));
+    Assert.assertFalse(second.contains("throwFromFirstPath"));
+    Assert.assertTrue(
+        second.contains("Caused by: java.lang.IllegalArgumentException: second cause"));
+    Assert.assertFalse(second.contains("first cause"));
+  }
+
+  @Test
+  public void testCachedStackTraceMatchesPrintStackTrace() {
+    Map<String, String> properties = new HashMap<>();
+    properties.put("callout-exception-stacktrace-cache-size", "8");
+    CalloutBase callout = new CalloutBaseTestImpl(properties);
+    Exception exception = throwFromFirstPath(throwFromSecondPath(new IllegalStateException("x")));
+    StringWriter expected = new StringWriter();
+    exception.printStackTrace(new PrintWriter(expected, true));
+
+    callout.setExceptionVariables(exception, messageContext);
+
+    Assert.assertEquals(
+        expected.toString(), messageContext.getVariable(EXCEPTION_STACKTRACE_FLOW_VARIABLE));
+    Assert.assertTrue(expected.toString().contains("\t... "));
+  }
+
+  @Test
+  public void testCachedStackTraceIsReusedForSameException() {
+    Map<String, String> properties = new HashMap<>();
+    properties.put("callout-exception-stacktrace-cache-size", "8");
+    CalloutBase callout = new CalloutBaseTestImpl(properties);
+    Exception exception = new Exception("reused");
+
+    callout.setExceptionVariables(exception, messageContext);
+    String first = (String) messageContext.getVariable(EXCEPTION_STACKTRACE_FLOW_VARIABLE);
+    // A cache hit does not read the stack trace again.
+    exception.setStackTrace(new StackTraceElement[0]);
+    callout.setExceptionVariables(exception, messageContext);
+
+    Assert.assertEquals(first, messageContext.getVariable(EXCEPTION_STACKTRACE_FLOW_VARIABLE));
+    Assert.assertTrue(first.contains("\tat "));
+  }
+
+  private static Exception throwFromFirstPath(Exception cause) {
+    return throwFromSameSite(cause);
+  }
+
+  private static Exception throwFromSecondPath(Exception cause) {
+    return throwFromSameSite(cause);
+  }
+
+  private static Exception throwFromSameSite(Exception cause) {
+    try {
+      throw new Exception("same site", cause);
+    } catch (Exception e) {
+      return e;
+    }
+  }
+
   @Test
   public void testLog() {
     calloutsBase.log(TEST_LOG_STATEMENT, messageContext);
@@ -198,9 +619,1217 @@ public final class CalloutBaseTest {
     Assert.assertEquals(expected, messageContext.getVariable(LOG_FLOW_VARIABLE));
   }
 
-  private static class CalloutBaseTestImpl extends CalloutBase {
-    public CalloutBaseTestImpl(Map properties) {
-      super(properties);
+  @Test
+  public void testLogWithoutCallerLocation() {
+    CalloutBase callout = new CalloutBaseTestImpl(new HashMap<>());
+
+    callout.log(TEST_LOG_STATEMENT, messageContext);
+
+    Assert.assertEquals(TEST_LOG_STATEMENT, messageContext.getVariable(LOG_FLOW_VARIABLE));
+  }
+
+  @Test
+  public void testLogLevelDisabled() {
+    Map<String, String> properties = new HashMap<>();
+    properties.put(LOG_LEVEL_KEY, "warn");
+    CalloutBase callout = new CalloutBaseTestImpl(properties);
+
+    callout.log(TEST_LOG_STATEMENT, messageContext);
+    callout.log(
+        LogLevel.DEBUG,
+        () -> {
+          throw new AssertionError("supplier of disabled statement called");
+        },
+        messageContext);
+    callout.log(LogLevel.ERROR, TEST_LOG_STATEMENT2, messageContext);
+
+    Assert.assertFalse(callout.isLogEnabled(LogLevel.INFO));
+    Assert.assertEquals(TEST_LOG_STATEMENT2, messageContext.getVariable(LOG_FLOW_VARIABLE));
+  }
+
+  @Test
+  public void testLogTemplate() {
+    CalloutBase callout = new CalloutBaseTestImpl(new HashMap<>());
+
+    callout.log(LogLevel.INFO, messageContext, "{} took {}ms{}", "lookup", 12);
+
+    Assert.assertEquals("lookup took 12ms{}", messageContext.getVariable(LOG_FLOW_VARIABLE));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidLogLevel() {
+    Map<String, String> properties = new HashMap<>();
+    properties.put(LOG_LEVEL_KEY, "verbose");
+    new CalloutBaseTestImpl(properties);
+  }
+
+  @Test
+  public void testLogInRequestScopeWritesOnce() {
+    messageContext.setVariable(LOG_FLOW_VARIABLE, TEST_LOG_STATEMENT);
+
+    RequestScope scope = calloutsBase.openScope(messageContext);
+    try {
+      calloutsBase.log(TEST_LOG_STATEMENT2, messageContext);
+      calloutsBase.log(TEST_LOG_STATEMENT2, messageContext);
+      Assert.assertEquals(TEST_LOG_STATEMENT, messageContext.getVariable(LOG_FLOW_VARIABLE));
+    } finally {
+      scope.close();
+    }
+
+    String actual = (String) messageContext.getVariable(LOG_FLOW_VARIABLE);
+    Mockito.verify(messageContext, Mockito.times(2))
+        .setVariable(Mockito.eq(LOG_FLOW_VARIABLE), Mockito.any());
+    Assert.assertEquals(3, actual.split("\n").length);
+    Assert.assertTrue(actual.startsWith(TEST_LOG_STATEMENT + "\n" + TEST_LOG_STATEMENT2));
+  }
+
+  @Test
+  public void testLogWithoutScopeContinuesWrittenLog() {
+    Map<String, String> properties = new HashMap<>();
+    properties.put("callout-log-max-lines", "3");
+    CalloutBase callout = new CalloutBaseTestImpl(properties);
+
+    callout.log("a", messageContext);
+    callout.log("b", messageContext);
+    Assert.assertEquals("a\nb", messageContext.getVariable(LOG_FLOW_VARIABLE));
+    messageContext.setVariable(LOG_FLOW_VARIABLE, "replaced");
+    for (int i = 0; i < 4; i++) {
+      callout.log(i, messageContext);
+    }
+
+    Assert.assertEquals("1\n2\n3", messageContext.getVariable(LOG_FLOW_VARIABLE));
+  }
+
+  @Test
+  public void testTemplateCalloutWritesLogOnce() {
+    TemplateCalloutBase callout =
+        new TemplateCallout(
+            new HashMap<>(),
+            (self, mc) -> {
+              self.log(TEST_LOG_STATEMENT, mc);
+              self.log(TEST_LOG_STATEMENT2, mc);
+              return ExecutionResult.SUCCESS;
+            });
+
+    callout.execute(messageContext, null);
+
+    Mockito.verify(messageContext, Mockito.times(1))
+        .setVariable(Mockito.eq(LOG_FLOW_VARIABLE), Mockito.any());
+    Assert.assertEquals(
+        TEST_LOG_STATEMENT + "\n" + TEST_LOG_STATEMENT2,
+        messageContext.getVariable(LOG_FLOW_VARIABLE));
+  }
+
+  @Test
+  public void testFlushLog() {
+    RequestScope scope = calloutsBase.openScope(messageContext);
+    try {
+      calloutsBase.log(TEST_LOG_STATEMENT, messageContext);
+      calloutsBase.flushLog(messageContext);
+      Assert.assertTrue(
+          ((String) messageContext.getVariable(LOG_FLOW_VARIABLE)).startsWith(TEST_LOG_STATEMENT));
+    } finally {
+      scope.close();
+    }
+  }
+
+  @Test
+  public void testLogDropsOldestLinesBeyondCap() {
+    Map<String, String> properties = new HashMap<>();
+    properties.put("callout-log-max-lines", "2");
+    properties.put(LOG_CALLER_LOCATION_KEY, "true");
+    CalloutBase callout = new CalloutBaseTestImpl(properties);
+
+    RequestScope scope = callout.openScope(messageContext);
+    try {
+      for (int i = 0; i < 5; i++) {
+        callout.log(i, messageContext);
+      }
+    } finally {
+      scope.close();
+    }
+
+    String[] lines = ((String) messageContext.getVariable(LOG_FLOW_VARIABLE)).split("\n");
+    Assert.assertEquals(3, lines.length);
+    Assert.assertEquals("[3 earlier log lines dropped]", lines[0]);
+    Assert.assertTrue(lines[1].startsWith("3\t\t"));
+    Assert.assertTrue(lines[2].startsWith("4\t\t"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidLogCap() {
+    Map<String, String> properties = new HashMap<>();
+    properties.put("callout-log-max-chars", "lots");
+    new CalloutBaseTestImpl(properties);
+  }
+
+  @Test
+  public void testLogFieldsInTextFormat() {
+    CalloutBase callout = new CalloutBaseTestImpl(new HashMap<>());
+
+    callout.logFields(LogLevel.INFO, messageContext, "done", "status", 200, "cached");
+
+    Assert.assertEquals(
+        "done status=200 cached=null", messageContext.getVariable(LOG_FLOW_VARIABLE));
+  }
+
+  @Test
+  public void testStructuredLogJsonLines() {
+    Map<String, String> properties = new HashMap<>();
+    properties.put("callout-log-format", "jsonl");
+    properties.put(LOG_CALLER_LOCATION_KEY, "true");
+    CalloutBase callout = new CalloutBaseTestImpl(properties);
+
+    RequestScope scope = callout.openScope(messageContext);
+    try {
+      for (int i = 0; i < 2; i++) {
+        callout.logFields(LogLevel.WARN, messageContext, "say \"hi\"", "n", i, "ok", true);
+      }
+    } finally {
+      scope.close();
+    }
+    callout.log(TEST_LOG_STATEMENT, messageContext);
+
+    Object log = messageContext.getVariable(LOG_FLOW_VARIABLE);
+    Assert.assertTrue(log instanceof String);
+    String[] lines = ((String) log).split("\n");
+    Assert.assertEquals(4, lines.length);
+    Assert.assertTrue(lines[0], lines[0].matches("\\{\"start\":\\d+,\"callers\":\\{.*\\}\\}"));
+    Assert.assertTrue(lines[0], lines[0].contains("CalloutBaseTest.testStructuredLogJsonLines["));
+    String caller = lines[1].replaceAll(".*\"caller\":(\\d+).*", "$1");
+    Assert.assertEquals(caller, lines[2].replaceAll(".*\"caller\":(\\d+).*", "$1"));
+    Assert.assertTrue(lines[0], lines[0].contains("\"" + caller + "\":"));
+    Assert.assertTrue(
+        lines[2],
+        lines[2].matches(
+            "\\{\"t\":\\d+,\"level\":\"WARN\",\"caller\":\\d+,"
+                + "\"msg\":\"say \\\\\"hi\\\\\"\",\"fields\":\\{\"n\":1,\"ok\":true\\}\\}"));
+    Assert.assertTrue(lines[3], lines[3].contains("\"level\":\"INFO\""));
+    Assert.assertTrue(lines[3], lines[3].contains("\"msg\":\"" + TEST_LOG_STATEMENT + "\""));
+  }
+
+  @Test
+  public void testStructuredLogReplacedByAnotherWriterIsCopied() {
+    Map<String, String> properties = new HashMap<>();
+    properties.put("callout-log-format", "jsonl");
+    CalloutBase callout = new CalloutBaseTestImpl(properties);
+
+    callout.log(TEST_LOG_STATEMENT, messageContext);
+    messageContext.setVariable(LOG_FLOW_VARIABLE, "replaced");
+    callout.log(TEST_LOG_STATEMENT2, messageContext);
+
+    String[] lines = ((String) messageContext.getVariable(LOG_FLOW_VARIABLE)).split("\n");
+    Assert.assertEquals(3, lines.length);
+    Assert.assertTrue(lines[1], lines[1].contains("\"msg\":\"replaced\""));
+    Assert.assertTrue(lines[2], lines[2].contains("\"msg\":\"" + TEST_LOG_STATEMENT2 + "\""));
+  }
+
+  @Test
+  public void testStructuredLogLengthPrefixed() {
+    Map<String, String> properties = new HashMap<>();
+    properties.put("callout-log-format", "length_prefixed");
+    properties.put("callout-log-max-lines", "2");
+    CalloutBase callout = new CalloutBaseTestImpl(properties);
+
+    for (int i = 0; i < 3; i++) {
+      callout.logFields(LogLevel.INFO, messageContext, "caf\u00e9", "i", i);
+    }
+
+    String log = messageContext.getVariable(LOG_FLOW_VARIABLE).toString();
+    List<String> entries = new ArrayList<>();
+    int start = 0;
+    while (start < log.length()) {
+      int colon = log.indexOf(':', start);
+      int length = Integer.parseInt(log.substring(start, colon));
+      entries.add(log.substring(colon + 1, colon + 1 + length));
+      Assert.assertEquals(',', log.charAt(colon + 1 + length));
+      start = colon + 2 + length;
+    }
+    Assert.assertEquals(3, entries.size());
+    Assert.assertTrue(entries.get(0), entries.get(0).contains("\"dropped\":1"));
+    Assert.assertTrue(
+        entries.get(1), entries.get(1).endsWith("\"msg\":\"caf\\u00e9\",\"fields\":{\"i\":1}}"));
+    Assert.assertTrue(entries.get(2), entries.get(2).contains("\"fields\":{\"i\":2}"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidLogFormat() {
+    Map<String, String> properties = new HashMap<>();
+    properties.put("callout-log-format", "xml");
+    new CalloutBaseTestImpl(properties);
+  }
+
+  @Test
+  public void testExecuteInstrumentedRecordsMetrics() {
+    Map<String, String> properties = new HashMap<>();
+    properties.put("callout-metrics", "true");
+    properties.put("callout-metrics-flow-variable", "true");
+    CalloutBase callout = new CalloutBaseTestImpl(properties);
+    CalloutMetrics metrics = callout.getMetrics();
+    metrics.reset();
+
+    ExecutionResult result =
+        callout.executeInstrumented(messageContext, null, (mc, ec) -> ExecutionResult.SUCCESS);
+    callout.executeInstrumented(messageContext, null, (mc, ec) -> ExecutionResult.ABORT);
+    try {
+      callout.executeInstrumented(
+          messageContext,
+          null,
+          (mc, ec) -> {
+            throw new IllegalStateException();
+          });
+      Assert.fail();
+    } catch (IllegalStateException e) {
+      // Expected.
+    }
+
+    Assert.assertSame(ExecutionResult.SUCCESS, result);
+    Assert.assertSame(metrics, CalloutMetrics.forClass(CalloutBaseTestImpl.class));
+    Assert.assertEquals(1, metrics.getSuccessCount());
+    Assert.assertEquals(1, metrics.getAbortCount());
+    Assert.assertEquals(1, metrics.getExceptionCount());
+    Assert.assertTrue(metrics.getLatencyP999Nanos() >= metrics.getLatencyP50Nanos());
+    Assert.assertNotNull(messageContext.getVariable("callout_elapsed_ns"));
+  }
+
+  @Test
+  public void testMetricsReplaceMBeanOfEarlierDeployment() throws JMException {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    ObjectName name =
+        new ObjectName(
+            "com.google.apigee.calloutbaseclass:type=CalloutMetrics,name="
+                + ObjectName.quote(RedeployedCallout.class.getName()));
+    CalloutMetricsMBean stale = Mockito.mock(CalloutMetricsMBean.class);
+    Mockito.when(stale.getStartupNanos()).thenReturn(-1L);
+    server.registerMBean(new StandardMBean(stale, CalloutMetricsMBean.class), name);
+
+    CalloutMetrics metrics = CalloutMetrics.forClass(RedeployedCallout.class);
+    metrics.recordStartup(42);
+
+    Assert.assertEquals(42L, server.getAttribute(name, "StartupNanos"));
+    server.unregisterMBean(name);
+  }
+
+  private static final class RedeployedCallout {}
+
+  @Test
+  public void testExecuteInstrumentedWithoutMetrics() {
+    ExecutionResult result =
+        calloutsBase.executeInstrumented(messageContext, null, (mc, ec) -> ExecutionResult.ABORT);
+
+    Assert.assertSame(ExecutionResult.ABORT, result);
+    Assert.assertNull(calloutsBase.getMetrics());
+    Assert.assertNull(messageContext.getVariable("callout_elapsed_ns"));
+  }
+
+  @Test
+  public void testLatencyHistogramPercentiles() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (long i = 1; i <= 1000; i++) {
+      histogram.record(i * 1000);
+    }
+
+    Assert.assertEquals(1000, histogram.getCount());
+    long p50 = histogram.getPercentile(50);
+    long p99 = histogram.getPercentile(99);
+    Assert.assertTrue(p50 >= 500_000 && p50 < 500_000 * 1.0625);
+    Assert.assertTrue(p99 >= 990_000 && p99 < 990_000 * 1.0625);
+    Assert.assertEquals(0, new LatencyHistogram().getPercentile(50));
+  }
+
+  @Test
+  public void testExecuteRunsExecuteCalloutInScope() {
+    Map<String, String> properties = new HashMap<>();
+    properties.put(TEST_FLOW_VARIABLE, TEST_FLOW_VARIABLE_REFERENCE);
+    properties.put("callout-request-scope", "true");
+    TemplateCalloutBase callout =
+        new TemplateCallout(
+            properties,
+            (self, mc) -> {
+              self.getRequiredProperty(TEST_FLOW_VARIABLE, mc);
+              self.getRequiredProperty(TEST_FLOW_VARIABLE, mc);
+              return ExecutionResult.SUCCESS;
+            });
+
+    Assert.assertSame(ExecutionResult.SUCCESS, callout.execute(messageContext, null));
+    Mockito.verify(messageContext, Mockito.times(1)).getVariable(TEST_FLOW_VARIABLE);
+  }
+
+  @Test
+  public void testExecuteWithoutRequestScopeSeesWrites() {
+    Map<String, String> properties = new HashMap<>();
+    properties.put(TEST_FLOW_VARIABLE, TEST_FLOW_VARIABLE_REFERENCE);
+    TemplateCalloutBase callout =
+        new TemplateCallout(
+            properties,
+            (self, mc) -> {
+              Assert.assertSame(messageContext, mc);
+              self.getRequiredProperty(TEST_FLOW_VARIABLE, mc);
+              self.setVariable(TEST_FLOW_VARIABLE, "changed", mc);
+              Assert.assertEquals("changed", mc.getVariable(TEST_FLOW_VARIABLE));
+              Assert.assertEquals("changed", self.getRequiredProperty(TEST_FLOW_VARIABLE, mc));
+              return ExecutionResult.SUCCESS;
+            });
+
+    Assert.assertSame(ExecutionResult.SUCCESS, callout.execute(messageContext, null));
+  }
+
+  @Test
+  public void testScopeOpenedInExecuteKeepsDeadline() {
+    Map<String, String> properties = new HashMap<>();
+    properties.put("callout-timeout", "1h");
+    TemplateCalloutBase callout =
+        new TemplateCallout(
+            properties,
+            (self, mc) -> {
+              try (RequestScope scope = self.openScope(mc)) {
+                Assert.assertTrue(scope.getRemainingNanos() <= TimeUnit.HOURS.toNanos(1));
+              }
+              return ExecutionResult.SUCCESS;
+            });
+
+    Assert.assertSame(ExecutionResult.SUCCESS, callout.execute(messageContext, null));
+  }
+
+  @Test
+  public void testExecuteSetsExceptionVariables() {
+    TemplateCalloutBase callout =
+        new TemplateCallout(
+            new HashMap<>(),
+            (self, mc) -> {
+              throw new IllegalStateException("broken");
+            });
+
+    Assert.assertSame(ExecutionResult.ABORT, callout.execute(messageContext, null));
+    Assert.assertEquals("broken", messageContext.getVariable(ERROR_FLOW_VARIABLE));
+  }
+
+  @Test
+  public void testExecuteFailsFastAfterDeadline() {
+    Map<String, String> properties = new HashMap<>();
+    properties.put("callout-timeout", "1ms");
+    TemplateCalloutBase callout =
+        new TemplateCallout(
+            properties,
+            (self, mc) -> {
+              Assert.assertTrue(self.getRemainingNanos(mc) <= 1_000_000);
+              Thread.sleep(5);
+              self.checkDeadline(mc);
+              return ExecutionResult.SUCCESS;
+            });
+
+    Assert.assertSame(ExecutionResult.ABORT, callout.execute(messageContext, null));
+    Assert.assertTrue(
+        ((String) messageContext.getVariable(EXCEPTION_FLOW_VARIABLE))
+            .startsWith(TimeoutException.class.getName()));
+    Assert.assertEquals(Long.MAX_VALUE, callout.getRemainingNanos(messageContext));
+  }
+
+  @Test
+  public void testCircuitBreakerShortCircuitsExecute() {
+    Map<String, String> properties = new HashMap<>();
+    properties.put("callout-circuit-breaker-failure-rate", "50");
+    properties.put("callout-circuit-breaker-minimum-calls", "2");
+    properties.put("callout-circuit-breaker-open-duration", "1h");
+    int[] calls = new int[1];
+    TemplateCalloutBase callout =
+        new TemplateCallout(
+            properties,
+            (self, mc) -> {
+              calls[0]++;
+              return ExecutionResult.ABORT;
+            });
+
+    for (int i = 0; i < 3; i++) {
+      Assert.assertSame(ExecutionResult.ABORT, callout.execute(messageContext, null));
+    }
+
+    Assert.assertEquals(2, calls[0]);
+    Assert.assertEquals("Circuit breaker open", messageContext.getVariable(ERROR_FLOW_VARIABLE));
+  }
+
+  @Test
+  public void testRateLimitShortCircuitsExecute() {
+    Map<String, String> properties = new HashMap<>();
+    properties.put("callout-rate-limit-permits", "2");
+    properties.put("callout-rate-limit-period", "1h");
+    properties.put("callout-rate-limit-key", "{client_id}");
+    int[] calls = new int[1];
+    TemplateCalloutBase callout =
+        new TemplateCallout(
+            properties,
+            (self, mc) -> {
+              calls[0]++;
+              return ExecutionResult.SUCCESS;
+            });
+    messageContext.setVariable("client_id", "a");
+
+    Assert.assertSame(ExecutionResult.SUCCESS, callout.execute(messageContext, null));
+    Assert.assertEquals("1", messageContext.getVariable("callout_rate_limit_remaining"));
+    Assert.assertSame(ExecutionResult.SUCCESS, callout.execute(messageContext, null));
+    Assert.assertSame(ExecutionResult.ABORT, callout.execute(messageContext, null));
+
+    Assert.assertEquals(2, calls[0]);
+    Assert.assertEquals("Rate limit exceeded", messageContext.getVariable(ERROR_FLOW_VARIABLE));
+    Assert.assertEquals("0", messageContext.getVariable("callout_rate_limit_remaining"));
+    Assert.assertEquals("1800", messageContext.getVariable("callout_rate_limit_retry_after"));
+
+    messageContext.setVariable("client_id", "b");
+    Assert.assertSame(ExecutionResult.SUCCESS, callout.execute(messageContext, null));
+    Assert.assertEquals("0", messageContext.getVariable("callout_rate_limit_retry_after"));
+  }
+
+  @Test
+  public void testRateLimitAllowsAndCountsKeysBeyondBound() {
+    Map<String, String> properties = new HashMap<>();
+    properties.put("callout-rate-limit-permits", "1");
+    properties.put("callout-rate-limit-period", "1h");
+    properties.put("callout-rate-limit-key", "{client_id}");
+    properties.put("callout-rate-limit-max-keys", "1");
+    properties.put("callout-metrics", "true");
+    CalloutBase callout = new CalloutBaseTestImpl(properties);
+    long untracked = callout.getMetrics().getRateLimitUntrackedCount();
+
+    messageContext.setVariable("client_id", "a");
+    Assert.assertTrue(callout.tryAcquireRateLimit(messageContext));
+    messageContext.setVariable("client_id", "b");
+    Assert.assertTrue(callout.tryAcquireRateLimit(messageContext));
+    Assert.assertTrue(callout.tryAcquireRateLimit(messageContext));
+
+    Assert.assertEquals(untracked + 2, callout.getMetrics().getRateLimitUntrackedCount());
+  }
+
+  @Test
+  public void testCircuitBreakerProbesAfterOpenDuration() {
+    long[] now = new long[1];
+    CircuitBreaker breaker = new CircuitBreaker(50, 2, 1000, 100, () -> now[0]);
+
+    Assert.assertTrue(breaker.tryAcquire());
+    breaker.record(true);
+    Assert.assertTrue(breaker.tryAcquire());
+    breaker.record(false);
+    Assert.assertTrue(breaker.isOpen());
+    Assert.assertFalse(breaker.tryAcquire());
+
+    now[0] = 100;
+    Assert.assertTrue(breaker.tryAcquire());
+    Assert.assertFalse(breaker.tryAcquire());
+    breaker.record(false);
+    Assert.assertFalse(breaker.tryAcquire());
+
+    now[0] = 200;
+    Assert.assertTrue(breaker.tryAcquire());
+    breaker.record(true);
+    Assert.assertFalse(breaker.isOpen());
+    Assert.assertTrue(breaker.tryAcquire());
+  }
+
+  // Extends the base class as callouts implementing execute themselves do.
+  private static class CalloutBaseTestImpl extends CalloutBase {
+    public CalloutBaseTestImpl(Map<String, String> properties) {
+      super(properties);
+    }
+  }
+
+  @Test
+  public void testReadContentChunks() throws IOException {
+    byte[] content = new byte[20000];
+    Arrays.fill(content, (byte) 'a');
+    Message message = Mockito.mock(Message.class);
+    Mockito.when(message.getContentAsStream()).thenReturn(new ByteArrayInputStream(content));
+    int[] total = new int[1];
+
+    calloutsBase.readContentChunks(
+        message,
+        chunk -> {
+          Assert.assertTrue(chunk.remaining() <= 8192);
+          total[0] += chunk.remaining();
+        });
+
+    Assert.assertEquals(content.length, total[0]);
+  }
+
+  @Test
+  public void testOpenContentReaderUsesContentTypeCharset() throws IOException {
+    Message message = Mockito.mock(Message.class);
+    Mockito.when(message.getHeader("Content-Type"))
+        .thenReturn("text/plain; charset=\"ISO-8859-1\"");
+    Mockito.when(message.getContentAsStream())
+        .thenReturn(new ByteArrayInputStream(new byte[] {'c', 'a', 'f', (byte) 0xe9}));
+
+    try (BufferedReader reader = new BufferedReader(calloutsBase.openContentReader(message))) {
+      Assert.assertEquals("caf\u00e9", reader.readLine());
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void testOpenContentStreamEnforcesMaxBytes() throws IOException {
+    Map<String, String> properties = new HashMap<>();
+    properties.put("callout-content-max-bytes", "4");
+    CalloutBase callout = new CalloutBaseTestImpl(properties);
+    Message message = Mockito.mock(Message.class);
+    Mockito.when(message.getContentAsStream()).thenReturn(new ByteArrayInputStream(new byte[5]));
+
+    try (InputStream in = callout.openContentStream(message)) {
+      while (in.read(new byte[2]) >= 0) {
+        // Consume the content.
+      }
+    }
+  }
+
+  @Test
+  public void testOpenContentWriter() throws IOException {
+    Message message = Mockito.mock(Message.class);
+    StringBuilder expected = new StringBuilder();
+    for (int i = 0; i < 20000; i++) {
+      expected.append("h\u00e9llo ");
+    }
+
+    try (Writer writer = calloutsBase.openContentWriter(message)) {
+      writer.write(expected.toString());
+      Mockito.verify(message, Mockito.never()).setContent(Mockito.any(InputStream.class));
+    }
+
+    ArgumentCaptor<InputStream> content = ArgumentCaptor.forClass(InputStream.class);
+    Mockito.verify(message).setContent(content.capture());
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    byte[] buffer = new byte[1000];
+    int n;
+    while ((n = content.getValue().read(buffer)) >= 0) {
+      bytes.write(buffer, 0, n);
+    }
+    Assert.assertEquals(expected.toString(), new String(bytes.toByteArray(), "UTF-8"));
+  }
+
+  @Test
+  public void testContentOutputStreamReleasesChunksOnceRead() throws IOException {
+    byte[] pooled = ScratchBuffers.acquireBytes(8 * 1024);
+    ScratchBuffers.release(pooled);
+    Message message = Mockito.mock(Message.class);
+
+    try (OutputStream out = calloutsBase.openContentOutputStream(message)) {
+      out.write("hello".getBytes("UTF-8"));
+    }
+    Assert.assertNotSame(pooled, ScratchBuffers.acquireBytes(1));
+
+    ArgumentCaptor<InputStream> content = ArgumentCaptor.forClass(InputStream.class);
+    Mockito.verify(message).setContent(content.capture());
+    Assert.assertEquals("hello", new String(readAll(content.getValue()), "UTF-8"));
+    Assert.assertSame(pooled, ScratchBuffers.acquireBytes(1));
+    Assert.assertEquals(-1, content.getValue().read());
+  }
+
+  @Test(expected = IOException.class)
+  public void testOpenContentOutputStreamEnforcesMaxBytes() throws IOException {
+    Map<String, String> properties = new HashMap<>();
+    properties.put("callout-content-max-bytes", "4");
+    CalloutBase callout = new CalloutBaseTestImpl(properties);
+
+    try (OutputStream out = callout.openContentOutputStream(Mockito.mock(Message.class))) {
+      out.write(new byte[5]);
+    }
+  }
+
+  @Test
+  public void testCompressContent() throws IOException {
+    Map<String, String> properties = new HashMap<>();
+    properties.put("callout-compression-level", "9");
+    properties.put("callout-compression-min-bytes", "100");
+    CalloutBase callout = new CalloutBaseTestImpl(properties);
+    byte[] content = new byte[50000];
+    for (int i = 0; i < content.length; i++) {
+      content[i] = (byte) ('a' + i % 7);
+    }
+    Message message = Mockito.mock(Message.class);
+    Mockito.when(message.getContentAsStream()).thenReturn(new ByteArrayInputStream(content));
+
+    callout.compressContent(message, ContentEncoding.GZIP);
+
+    ArgumentCaptor<InputStream> compressed = ArgumentCaptor.forClass(InputStream.class);
+    Mockito.verify(message).setContent(compressed.capture());
+    Mockito.verify(message).setHeader("Content-Encoding", "gzip");
+    Assert.assertArrayEquals(content, readAll(new GZIPInputStream(compressed.getValue())));
+  }
+
+  @Test
+  public void testCompressContentReleasesDeflaterWhenReadingFails() {
+    CompressionPool.release(CompressionPool.acquireDeflater(6, true), true);
+    int idle = CompressionPool.idleDeflaters(true);
+    Message message = Mockito.mock(Message.class);
+    Mockito.when(message.getContentAsStream())
+        .thenReturn(
+            new SequenceInputStream(
+                new ByteArrayInputStream(new byte[1000]),
+                new InputStream() {
+                  @Override
+                  public int read() throws IOException {
+                    throw new IOException("connection reset");
+                  }
+                }));
+
+    try {
+      calloutsBase.compressContent(message, ContentEncoding.GZIP);
+      Assert.fail("expected IOException");
+    } catch (IOException e) {
+      Assert.assertEquals("connection reset", e.getMessage());
+    }
+    Assert.assertEquals(idle, CompressionPool.idleDeflaters(true));
+    Mockito.verify(message, Mockito.never()).setContent(Mockito.any(InputStream.class));
+    Mockito.verify(message, Mockito.never()).setHeader(Mockito.anyString(), Mockito.any());
+  }
+
+  @Test
+  public void testCompressContentBelowThresholdPassesThrough() throws IOException {
+    Map<String, String> properties = new HashMap<>();
+    properties.put("callout-compression-min-bytes", "100");
+    CalloutBase callout = new CalloutBaseTestImpl(properties);
+    Message message = Mockito.mock(Message.class);
+
+    try (OutputStream out =
+        callout.openCompressedContentOutputStream(message, ContentEncoding.DEFLATE)) {
+      out.write("short".getBytes("UTF-8"));
+    }
+
+    ArgumentCaptor<InputStream> content = ArgumentCaptor.forClass(InputStream.class);
+    Mockito.verify(message).setContent(content.capture());
+    Mockito.verify(message, Mockito.never()).setHeader(Mockito.anyString(), Mockito.any());
+    Assert.assertEquals("short", new String(readAll(content.getValue()), "UTF-8"));
+  }
+
+  @Test
+  public void testDecompressContent() throws IOException {
+    // Two concatenated gzip members, read as one content.
+    ByteArrayOutputStream gzip = new ByteArrayOutputStream();
+    for (String member : new String[] {"hello ", "world"}) {
+      try (OutputStream out = new GZIPOutputStream(gzip)) {
+        out.write(member.getBytes("UTF-8"));
+      }
+    }
+    ByteArrayOutputStream deflate = new ByteArrayOutputStream();
+    try (OutputStream out = new DeflaterOutputStream(deflate)) {
+      out.write("hello world".getBytes("UTF-8"));
+    }
+    for (ContentEncoding encoding : ContentEncoding.values()) {
+      byte[] compressed =
+          encoding == ContentEncoding.GZIP ? gzip.toByteArray() : deflate.toByteArray();
+      Message message = Mockito.mock(Message.class);
+      Mockito.when(message.getContentAsStream()).thenReturn(new ByteArrayInputStream(compressed));
+
+      calloutsBase.decompressContent(message, encoding);
+
+      ArgumentCaptor<InputStream> content = ArgumentCaptor.forClass(InputStream.class);
+      Mockito.verify(message).setContent(content.capture());
+      Mockito.verify(message).removeHeader("Content-Encoding");
+      Assert.assertEquals("hello world", new String(readAll(content.getValue()), "UTF-8"));
+    }
+    Assert.assertEquals(ContentEncoding.GZIP, ContentEncoding.forHeader(" x-gzip"));
+    Assert.assertNull(ContentEncoding.forHeader("br"));
+  }
+
+  @Test
+  public void testDecompressContentEnforcesMaxBytes() throws IOException {
+    Map<String, String> properties = new HashMap<>();
+    properties.put("callout-content-max-bytes", "1000");
+    CalloutBase callout = new CalloutBaseTestImpl(properties);
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    try (OutputStream out = new GZIPOutputStream(compressed)) {
+      out.write(new byte[100000]);
+    }
+    Message message = Mockito.mock(Message.class);
+    Mockito.when(message.getContentAsStream())
+        .thenReturn(new ByteArrayInputStream(compressed.toByteArray()));
+
+    try {
+      callout.decompressContent(message, ContentEncoding.GZIP);
+      Assert.fail("expected IOException");
+    } catch (IOException e) {
+      Assert.assertEquals("Message content exceeds 1000 bytes", e.getMessage());
+    }
+    Mockito.verify(message, Mockito.never()).setContent(Mockito.any(InputStream.class));
+  }
+
+  @Test(expected = IOException.class)
+  public void testDecompressCorruptContent() throws IOException {
+    Message message = Mockito.mock(Message.class);
+    Mockito.when(message.getContentAsStream())
+        .thenReturn(new ByteArrayInputStream(new byte[] {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0}));
+
+    calloutsBase.decompressContent(message, ContentEncoding.GZIP);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidCompressionLevel() {
+    Map<String, String> properties = new HashMap<>();
+    properties.put("callout-compression-level", "10");
+    new CalloutBaseTestImpl(properties);
+  }
+
+  @Test
+  public void testJsonFields() throws IOException {
+    Map<String, String> properties = new HashMap<>();
+    properties.put("callout-json-path.id", "$.user.id");
+    CalloutBase callout = new CalloutBaseTestImpl(properties);
+    Message message = Mockito.mock(Message.class);
+    Mockito.when(message.getContentAsStream())
+        .thenAnswer(
+            invocation -> new ByteArrayInputStream("{\"user\": {\"id\": 7}}".getBytes("UTF-8")));
+
+    Assert.assertEquals(Collections.singletonMap("id", "7"), callout.extractJsonFields(message));
+    callout.patchJsonFields(message, Collections.singletonMap("id", "8"));
+
+    ArgumentCaptor<InputStream> content = ArgumentCaptor.forClass(InputStream.class);
+    Mockito.verify(message).setContent(content.capture());
+    byte[] patched = new byte[64];
+    int n = content.getValue().read(patched);
+    Assert.assertEquals("{\"user\": {\"id\": 8}}", new String(patched, 0, n, "UTF-8"));
+  }
+
+  @Test
+  public void testXmlFields() throws IOException {
+    Map<String, String> properties = new HashMap<>();
+    properties.put("callout-xml-path.id", "/user/@id");
+    CalloutBase callout = new CalloutBaseTestImpl(properties);
+    Message message = Mockito.mock(Message.class);
+    Mockito.when(message.getContentAsStream())
+        .thenReturn(new ByteArrayInputStream("<user id=\"7\"/>".getBytes("UTF-8")));
+
+    Assert.assertEquals(Collections.singletonMap("id", "7"), callout.extractXmlFields(message));
+  }
+
+  @Test
+  public void testVariableWritesAreBufferedInScope() {
+    RequestScope scope = calloutsBase.openScope(messageContext);
+    try {
+      calloutsBase.setVariable("out.a", "1", messageContext);
+      calloutsBase.setVariable("out.a", "2", messageContext);
+      calloutsBase.setVariable("out.b", "3", messageContext);
+      calloutsBase.removeVariable(TEST_FLOW_VARIABLE, messageContext);
+
+      Assert.assertEquals("2", calloutsBase.getVariable("out.a", messageContext));
+      Assert.assertNull(calloutsBase.getVariable(TEST_FLOW_VARIABLE, messageContext));
+      Assert.assertNull(messageContext.getVariable("out.a"));
+    } finally {
+      scope.close();
+    }
+
+    Mockito.verify(messageContext).setVariable("out.a", "2");
+    Mockito.verify(messageContext, Mockito.never()).setVariable("out.a", "1");
+    Mockito.verify(messageContext).setVariable("out.b", "3");
+    Mockito.verify(messageContext).removeVariable(TEST_FLOW_VARIABLE);
+    Assert.assertEquals("2", messageContext.getVariable("out.a"));
+  }
+
+  @Test
+  public void testCommitVariables() {
+    RequestScope scope = calloutsBase.openScope(messageContext);
+    try {
+      calloutsBase.setVariable("out.a", "1", messageContext);
+      calloutsBase.commitVariables(messageContext);
+
+      Assert.assertEquals("1", messageContext.getVariable("out.a"));
+    } finally {
+      scope.close();
+    }
+
+    Mockito.verify(messageContext, Mockito.times(1)).setVariable("out.a", "1");
+  }
+
+  @Test
+  public void testPrefetchVariables() {
+    Map<String, String> properties = new HashMap<>();
+    properties.put("callout-prefetch-variables", TEST_FLOW_VARIABLE + ", other.variable");
+    CalloutBase callout = new CalloutBaseTestImpl(properties);
+
+    RequestScope scope = callout.openScope(messageContext);
+    try {
+      Mockito.verify(messageContext).getVariable("other.variable");
+      Assert.assertEquals(TEST_FLOW_VALUE, callout.getVariable(TEST_FLOW_VARIABLE, messageContext));
+      Assert.assertNull(callout.getVariable("other.variable", messageContext));
+    } finally {
+      scope.close();
+    }
+
+    Mockito.verify(messageContext, Mockito.times(1)).getVariable(TEST_FLOW_VARIABLE);
+    Mockito.verify(messageContext, Mockito.times(1)).getVariable("other.variable");
+  }
+
+  @Test
+  public void testScopeReadsSeeDirectWrites() {
+    RequestScope scope = calloutsBase.openScope(messageContext);
+    try {
+      Assert.assertEquals(
+          TEST_FLOW_VALUE, calloutsBase.getVariable(TEST_FLOW_VARIABLE, messageContext));
+      messageContext.setVariable(TEST_FLOW_VARIABLE, "changed");
+
+      Assert.assertEquals("changed", calloutsBase.getVariable(TEST_FLOW_VARIABLE, messageContext));
+    } finally {
+      scope.close();
+    }
+  }
+
+  @Test
+  public void testExecuteRoutesDirectWritesThroughBuffer() {
+    Map<String, String> properties = new HashMap<>();
+    properties.put("callout-request-scope", "true");
+    TemplateCalloutBase callout =
+        new TemplateCallout(
+            properties,
+            (self, mc) -> {
+              self.setVariable("out.a", "buffered", mc);
+              mc.setVariable("out.a", "direct");
+              Assert.assertEquals("direct", self.getVariable("out.a", mc));
+              Assert.assertEquals("direct", mc.getVariable("out.a"));
+              return ExecutionResult.SUCCESS;
+            });
+
+    callout.execute(messageContext, null);
+
+    Mockito.verify(messageContext, Mockito.never()).setVariable("out.a", "buffered");
+    Assert.assertEquals("direct", messageContext.getVariable("out.a"));
+  }
+
+  @Test
+  public void testPropertiesSeeBufferedWrites() {
+    Map<String, String> properties = new HashMap<>();
+    properties.put(TEST_FLOW_VARIABLE, TEST_FLOW_VARIABLE_REFERENCE);
+    CalloutBase callout = new CalloutBaseTestImpl(properties);
+
+    RequestScope scope = callout.openScope(messageContext);
+    try {
+      Assert.assertEquals(
+          TEST_FLOW_VALUE, callout.getRequiredProperty(TEST_FLOW_VARIABLE, messageContext));
+      callout.setVariable(TEST_FLOW_VARIABLE, "changed", messageContext);
+
+      Assert.assertEquals(
+          "changed", callout.getRequiredProperty(TEST_FLOW_VARIABLE, messageContext));
+    } finally {
+      scope.close();
+    }
+  }
+
+  @Test
+  public void testExecuteCommitsExceptionVariablesOnce() {
+    Map<String, String> properties = new HashMap<>();
+    properties.put("callout-request-scope", "true");
+    TemplateCalloutBase callout =
+        new TemplateCallout(
+            properties,
+            (self, mc) -> {
+              self.setVariable(ERROR_FLOW_VARIABLE, "overwritten", mc);
+              throw new IllegalStateException("broken");
+            });
+
+    callout.execute(messageContext, null);
+
+    Mockito.verify(messageContext, Mockito.times(1))
+        .setVariable(Mockito.eq(ERROR_FLOW_VARIABLE), Mockito.any());
+    Assert.assertEquals("broken", messageContext.getVariable(ERROR_FLOW_VARIABLE));
+  }
+
+  @Test
+  public void testFanOutRunsBranchesInParallel() throws Exception {
+    CalloutBase callout = new CalloutBaseTestImpl(new HashMap<>());
+    CountDownLatch started = new CountDownLatch(3);
+    long start = System.nanoTime();
+    try (FanOut fanOut = callout.openFanOut(messageContext)) {
+      List<Future<Integer>> results = new ArrayList<>();
+      for (int i = 0; i < 3; i++) {
+        int n = i;
+        results.add(
+            fanOut.submit(
+                () -> {
+                  started.countDown();
+                  // Only returns once all branches run at the same time.
+                  Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+                  return n;
+                }));
+      }
+      fanOut.join();
+
+      Assert.assertEquals(Integer.valueOf(2), results.get(2).get());
+    }
+    Assert.assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+  }
+
+  @Test
+  public void testFanOutRunsBranchOnCallerWhenSaturated() throws Exception {
+    Map<String, String> properties = new HashMap<>();
+    properties.put("callout-fanout-max-concurrency", "1");
+    CalloutBase callout = new CalloutBaseTestImpl(properties);
+    CountDownLatch release = new CountDownLatch(1);
+    try (FanOut fanOut = callout.openFanOut(messageContext)) {
+      Future<Thread> first =
+          fanOut.submit(
+              () -> {
+                release.await();
+                return Thread.currentThread();
+              });
+      Future<Thread> second = fanOut.submit(Thread::currentThread);
+
+      Assert.assertTrue(second.isDone());
+      Assert.assertSame(Thread.currentThread(), second.get());
+      release.countDown();
+      fanOut.join();
+      Assert.assertNotSame(Thread.currentThread(), first.get());
+    }
+  }
+
+  @Test
+  public void testFanOutExecutorRejectsBranchesWhenQueueIsFull() throws Exception {
+    Assume.assumeFalse(FanOutThreads.isVirtual());
+    ExecutorService executor = FanOutThreads.newExecutor();
+    CountDownLatch release = new CountDownLatch(1);
+    try {
+      // Occupies every thread, then every queue slot.
+      int accepted = 0;
+      try {
+        while (accepted <= 2 * FanOutThreads.defaultMaxConcurrency()) {
+          executor.execute(
+              () -> {
+                try {
+                  release.await();
+                } catch (InterruptedException e) {
+                  Thread.currentThread().interrupt();
+                }
+              });
+          accepted++;
+        }
+        Assert.fail("queue is unbounded");
+      } catch (RejectedExecutionException e) {
+        Assert.assertEquals(2 * FanOutThreads.defaultMaxConcurrency(), accepted);
+      }
+    } finally {
+      release.countDown();
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testFanOutFailureSetsExceptionVariables() {
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch cancelled = new CountDownLatch(1);
+    TemplateCalloutBase callout =
+        new TemplateCallout(
+            new HashMap<>(),
+            (self, mc) -> {
+              try (FanOut fanOut = self.openFanOut(mc)) {
+                fanOut.submit(
+                    () -> {
+                      started.countDown();
+                      try {
+                        Thread.sleep(10_000);
+                      } catch (InterruptedException e) {
+                        cancelled.countDown();
+                      }
+                      return null;
+                    });
+                // Fails once the first branch runs, so that cancelling it interrupts it.
+                fanOut.submit(
+                    () -> {
+                      started.await();
+                      throw new IllegalStateException("branch failed");
+                    });
+                fanOut.join();
+              }
+              return ExecutionResult.SUCCESS;
+            });
+
+    Assert.assertSame(ExecutionResult.ABORT, callout.execute(messageContext, null));
+    Assert.assertEquals("branch failed", messageContext.getVariable(ERROR_FLOW_VARIABLE));
+    try {
+      Assert.assertTrue(cancelled.await(5, TimeUnit.SECONDS));
+    } catch (InterruptedException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  @Test
+  public void testFanOutJoinStopsAtDeadline() {
+    Map<String, String> properties = new HashMap<>();
+    properties.put("callout-timeout", "50ms");
+    TemplateCalloutBase callout =
+        new TemplateCallout(
+            properties,
+            (self, mc) -> {
+              try (FanOut fanOut = self.openFanOut(mc)) {
+                fanOut.submit(
+                    () -> {
+                      Thread.sleep(10_000);
+                      return null;
+                    });
+                fanOut.join();
+              }
+              return ExecutionResult.SUCCESS;
+            });
+
+    long start = System.nanoTime();
+    Assert.assertSame(ExecutionResult.ABORT, callout.execute(messageContext, null));
+    Assert.assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+    Assert.assertTrue(
+        ((String) messageContext.getVariable(EXCEPTION_FLOW_VARIABLE))
+            .startsWith(TimeoutException.class.getName()));
+  }
+
+  @Test
+  public void testSchemaListsEveryViolation() {
+    PropertySchema schema =
+        PropertySchema.newBuilder()
+            .required("message")
+            .required("name")
+            .optional("max-items", PropertySchema.Type.INT)
+            .build();
+    Map<String, String> properties = new HashMap<>();
+    properties.put("name", " ");
+    properties.put("max-items", "many");
+
+    try {
+      new TemplateCallout(properties, schema, (self, mc) -> ExecutionResult.SUCCESS);
+      Assert.fail();
+    } catch (IllegalArgumentException e) {
+      Assert.assertTrue(e.getMessage().contains("Missing required property: message"));
+      Assert.assertTrue(e.getMessage().contains("Missing required property: name"));
+      Assert.assertTrue(e.getMessage().contains("max-items"));
+    }
+  }
+
+  @Test
+  public void testSchemaValidatesEnumLiterals() {
+    PropertySchema schema =
+        PropertySchema.newBuilder().optional("level", LogLevel.class).build();
+    Map<String, String> properties = new HashMap<>();
+    properties.put("level", "warn");
+
+    CalloutBase callout =
+        new TemplateCallout(properties, schema, (self, mc) -> ExecutionResult.SUCCESS);
+    Assert.assertSame(LogLevel.class, schema.getEnumType("level"));
+    Assert.assertSame(
+        LogLevel.WARN, callout.getEnumProperty("level", LogLevel.class, messageContext));
+
+    properties.put("level", "loud");
+    try {
+      new TemplateCallout(properties, schema, (self, mc) -> ExecutionResult.SUCCESS);
+      Assert.fail();
+    } catch (IllegalArgumentException e) {
+      Assert.assertTrue(e.getMessage().startsWith("level must be one of"));
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testSchemaRejectsEnumWithoutClass() {
+    PropertySchema.newBuilder().optional("level", PropertySchema.Type.ENUM).build();
+  }
+
+  @Test
+  public void testMalformedLiteralIsParsedOnce() {
+    Map<String, String> properties = new HashMap<>();
+    properties.put("max-items", "many");
+    CalloutBase callout = new CalloutBaseTestImpl(properties);
+
+    IllegalArgumentException first = null;
+    for (int i = 0; i < 2; i++) {
+      try {
+        callout.getIntProperty("max-items", 1, messageContext);
+        Assert.fail();
+      } catch (IllegalArgumentException e) {
+        if (first == null) {
+          first = e;
+        }
+        Assert.assertSame(first, e);
+      }
+    }
+  }
+
+  @Test
+  public void testSchemaAcceptsReferencesAndBaseSettings() {
+    PropertySchema schema =
+        PropertySchema.newBuilder()
+            .required("max-items", PropertySchema.Type.INT)
+            .rejectUnknownProperties()
+            .build();
+    Map<String, String> properties = new HashMap<>();
+    properties.put("max-items", "{request.queryparam.max}");
+    properties.put("callout-log-level", "DEBUG");
+
+    new TemplateCallout(properties, schema, (self, mc) -> ExecutionResult.SUCCESS);
+
+    properties.put("max-itmes", "3");
+    try {
+      new TemplateCallout(properties, schema, (self, mc) -> ExecutionResult.SUCCESS);
+      Assert.fail();
+    } catch (IllegalArgumentException e) {
+      Assert.assertEquals("Unknown property: max-itmes", e.getMessage());
+    }
+  }
+
+  @Test
+  public void testWarmUpRunsInBackgroundOutsideMetrics() throws InterruptedException {
+    Map<String, String> properties = new HashMap<>();
+    properties.put("greeting", "Hi {request.queryparam.name:Stranger}");
+    properties.put("callout-metrics", "true");
+    properties.put("callout-log-level", "INFO");
+    properties.put("callout-warmup-iterations", "100");
+    CalloutMetrics metrics = CalloutMetrics.forClass(WarmUpCallout.class);
+    long resolutions = metrics.getPropertyResolutionCount();
+
+    WarmUpCallout callout = new WarmUpCallout(properties);
+    Assert.assertTrue(callout.awaitWarmUp(10000));
+    Assert.assertTrue(callout.logged.isEmpty());
+    Assert.assertEquals(resolutions, metrics.getPropertyResolutionCount());
+    Assert.assertTrue(callout.getWarmUpTime().toNanos() > 0);
+    Assert.assertEquals(callout.getWarmUpTime().toNanos(), metrics.getWarmUpNanos());
+    Assert.assertTrue(callout.getStartupTime().toNanos() > 0);
+    Assert.assertEquals(callout.getStartupTime().toNanos(), metrics.getStartupNanos());
+
+    Assert.assertSame(ExecutionResult.SUCCESS, callout.execute(messageContext, null));
+    Assert.assertEquals("Hi Stranger", callout.getRequiredProperty("greeting", messageContext));
+  }
+
+  private static byte[] readAll(InputStream in) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    byte[] buffer = new byte[1000];
+    int n;
+    while ((n = in.read(buffer)) >= 0) {
+      bytes.write(buffer, 0, n);
+    }
+    return bytes.toByteArray();
+  }
+
+  private interface CalloutBody {
+    ExecutionResult execute(CalloutBase callout, MessageContext messageContext) throws Exception;
+  }
+
+  // Overrides a public method the warm-up must not call, since it runs during construction.
+  private static class WarmUpCallout extends TemplateCallout {
+    final List<String> logged = new ArrayList<>();
+
+    WarmUpCallout(Map<String, String> properties) {
+      super(properties, null, (self, mc) -> ExecutionResult.SUCCESS);
+    }
+
+    @Override
+    public void log(
+        LogLevel level, MessageContext messageContext, String template, Object... args) {
+      logged.add(template);
+    }
+  }
+
+  private static class TemplateCallout extends TemplateCalloutBase {
+    private final CalloutBody body;
+
+    TemplateCallout(Map<String, String> properties, CalloutBody body) {
+      super(properties);
+      this.body = body;
+    }
+
+    TemplateCallout(Map<String, String> properties, PropertySchema schema, CalloutBody body) {
+      super(properties, schema);
+      this.body = body;
+    }
+
+    @Override
+    protected ExecutionResult executeCallout(
+        MessageContext messageContext, ExecutionContext executionContext) throws Exception {
+      return body.execute(this, messageContext);
     }
   }
 
@@ -215,8 +1844,9 @@ public final class CalloutBaseTest {
     }
 
     @Override
-    public Object getVariable(final String name) {
-      return getVariables().get(name);
+    @SuppressWarnings("unchecked")
+    public <T> T getVariable(final String name) {
+      return (T) getVariables().get(name);
     }
 
     @Override
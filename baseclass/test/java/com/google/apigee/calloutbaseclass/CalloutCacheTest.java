@@ -0,0 +1,198 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apigee.calloutbaseclass;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public final class CalloutCacheTest {
+
+  @Test
+  public void testGetAndPut() {
+    CalloutCache<String, String> cache = CalloutCache.<String, String>newBuilder().build();
+
+    Assert.assertNull(cache.get("key"));
+    cache.put("key", "value");
+
+    Assert.assertEquals("value", cache.get("key"));
+    Assert.assertEquals(1, cache.getHitCount());
+    Assert.assertEquals(1, cache.getMissCount());
+  }
+
+  @Test
+  public void testEvictsLeastRecentlyUsed() {
+    CalloutCache<Integer, String> cache =
+        CalloutCache.<Integer, String>newBuilder().maximumSize(2).concurrencyLevel(1).build();
+
+    cache.put(1, "one");
+    cache.put(2, "two");
+    cache.get(1);
+    cache.put(3, "three");
+
+    Assert.assertEquals("one", cache.get(1));
+    Assert.assertNull(cache.get(2));
+    Assert.assertEquals("three", cache.get(3));
+    Assert.assertEquals(1, cache.getEvictionCount());
+  }
+
+  @Test
+  public void testSmallMaximumSizeIsNeverExceeded() {
+    for (int maximumSize = 1; maximumSize <= 40; maximumSize++) {
+      CalloutCache<Integer, String> cache =
+          CalloutCache.<Integer, String>newBuilder().maximumSize(maximumSize).build();
+
+      for (int key = 0; key < 500; key++) {
+        cache.put(key, "value");
+        Assert.assertTrue(cache.size() <= maximumSize);
+      }
+    }
+  }
+
+  @Test
+  public void testEvictsBeyondMaximumWeight() {
+    CalloutCache<String, String> cache =
+        CalloutCache.<String, String>newBuilder()
+            .maximumWeight(10, (key, value) -> value.length())
+            .concurrencyLevel(1)
+            .build();
+
+    cache.put("a", "123456");
+    cache.put("b", "123456");
+
+    Assert.assertNull(cache.get("a"));
+    Assert.assertEquals("123456", cache.get("b"));
+  }
+
+  @Test
+  public void testExpiresAfterWrite() {
+    AtomicLong now = new AtomicLong();
+    CalloutCache<String, String> cache =
+        CalloutCache.<String, String>newBuilder()
+            .expireAfterWrite(Duration.ofSeconds(1))
+            .ticker(now::get)
+            .build();
+
+    cache.put("key", "value");
+    now.addAndGet(TimeUnit.MILLISECONDS.toNanos(999));
+    Assert.assertEquals("value", cache.get("key"));
+    now.addAndGet(TimeUnit.MILLISECONDS.toNanos(1));
+
+    Assert.assertNull(cache.get("key"));
+    Assert.assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void testEntryHeavierThanSegmentIsNotCached() {
+    CalloutCache<String, String> cache =
+        CalloutCache.<String, String>newBuilder()
+            .maximumWeight(10, (key, value) -> value.length())
+            .concurrencyLevel(1)
+            .build();
+
+    cache.put("a", "123");
+    cache.put("b", "12345678901");
+
+    Assert.assertEquals("123", cache.get("a"));
+    Assert.assertNull(cache.get("b"));
+    Assert.assertEquals("12345678901", cache.get("b", key -> "12345678901"));
+    Assert.assertEquals(1, cache.size());
+  }
+
+  @Test
+  public void testLongExpiryWithNegativeTicker() {
+    AtomicLong now = new AtomicLong(Long.MIN_VALUE + 10);
+    CalloutCache<String, String> cache =
+        CalloutCache.<String, String>newBuilder()
+            .expireAfterWrite(Duration.ofDays(365 * 1000))
+            .ticker(now::get)
+            .build();
+    CalloutCache<String, String> unbounded =
+        CalloutCache.<String, String>newBuilder().ticker(now::get).build();
+
+    cache.put("key", "value");
+    unbounded.put("key", "value");
+    now.addAndGet(TimeUnit.DAYS.toNanos(365));
+
+    Assert.assertEquals("value", cache.get("key"));
+    Assert.assertEquals("value", unbounded.get("key"));
+  }
+
+  @Test
+  public void testLoaderRunsOnceForConcurrentMisses() throws Exception {
+    CalloutCache<String, String> cache = CalloutCache.<String, String>newBuilder().build();
+    AtomicInteger loads = new AtomicInteger();
+    CountDownLatch loading = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      Future<String> first =
+          executor.submit(
+              () ->
+                  cache.get(
+                      "key",
+                      key -> {
+                        loads.incrementAndGet();
+                        loading.countDown();
+                        await(release);
+                        return "value";
+                      }));
+      loading.await();
+      Future<String> second =
+          executor.submit(() -> cache.get("key", key -> "value" + loads.incrementAndGet()));
+      release.countDown();
+
+      Assert.assertEquals("value", first.get());
+      Assert.assertEquals("value", second.get());
+      Assert.assertEquals(1, loads.get());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testLoaderExceptionIsNotCached() {
+    CalloutCache<String, String> cache = CalloutCache.<String, String>newBuilder().build();
+
+    try {
+      cache.get(
+          "key",
+          key -> {
+            throw new IllegalStateException("backend down");
+          });
+      Assert.fail();
+    } catch (IllegalStateException e) {
+      Assert.assertEquals("backend down", e.getMessage());
+    }
+
+    Assert.assertEquals("value", cache.get("key", key -> "value"));
+  }
+
+  private static void await(CountDownLatch latch) {
+    try {
+      latch.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
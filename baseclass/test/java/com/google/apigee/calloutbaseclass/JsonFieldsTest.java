@@ -0,0 +1,126 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apigee.calloutbaseclass;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+public final class JsonFieldsTest {
+
+  private static final String DOCUMENT =
+      "{\"user\": {\"id\": 42, \"name\": \"A \\\"b\\\" \\u00e9\"},"
+          + " \"items\": [{\"sku\": \"x\"}, {\"sku\": \"y\", \"tags\": [1, {\"k\": null}]}],"
+          + " \"odd key\": true, \"empty\": {}}";
+
+  private static JsonFields compile(String... namesAndPaths) {
+    Map<String, String> paths = new HashMap<>();
+    for (int i = 0; i < namesAndPaths.length; i += 2) {
+      paths.put(namesAndPaths[i], namesAndPaths[i + 1]);
+    }
+    return JsonFields.compile(paths);
+  }
+
+  @Test
+  public void testExtract() throws IOException {
+    JsonFields fields =
+        compile(
+            "id", "$.user.id",
+            "name", "user.name",
+            "sku", "$.items[1].sku",
+            "tags", "$.items[1].tags",
+            "odd", "$['odd key']",
+            "missing", "$.items[2].sku");
+
+    Map<String, String> values = fields.extract(new StringReader(DOCUMENT));
+
+    Assert.assertEquals("42", values.get("id"));
+    Assert.assertEquals("A \"b\" \u00e9", values.get("name"));
+    Assert.assertEquals("y", values.get("sku"));
+    Assert.assertEquals("[1, {\"k\": null}]", values.get("tags"));
+    Assert.assertEquals("true", values.get("odd"));
+    Assert.assertFalse(values.containsKey("missing"));
+  }
+
+  @Test
+  public void testExtractStopsOnceAllPathsFound() throws IOException {
+    JsonFields fields = compile("id", "$.id");
+
+    Map<String, String> values = fields.extract(new StringReader("{\"id\": \"1\", \"rest\": ]]]"));
+
+    Assert.assertEquals(Collections.singletonMap("id", "1"), values);
+  }
+
+  @Test
+  public void testExtractAcrossBufferBoundaries() throws IOException {
+    StringBuilder json = new StringBuilder("{\"pad\": [");
+    for (int i = 0; i < 5000; i++) {
+      json.append("{\"v\": \"").append(i).append("\"},");
+    }
+    json.append("0], \"long\": \"");
+    for (int i = 0; i < 20000; i++) {
+      json.append((char) ('a' + i % 26));
+    }
+    json.append("\", \"last\": {\"a\": [1, 2]}}");
+
+    Map<String, String> values =
+        compile("long", "$.long", "last", "$.last", "v", "$.pad[4999].v")
+            .extract(new StringReader(json.toString()));
+
+    Assert.assertEquals(20000, values.get("long").length());
+    Assert.assertEquals("{\"a\": [1, 2]}", values.get("last"));
+    Assert.assertEquals("4999", values.get("v"));
+  }
+
+  @Test
+  public void testPatch() throws IOException {
+    JsonFields fields = compile("name", "$.user.name", "k", "$.items[1].tags[1].k", "id", "$.id");
+    Map<String, String> replacements = new HashMap<>();
+    replacements.put("name", JsonFields.quote("new\n\"name\""));
+    replacements.put("k", "{\"nested\": [1]}");
+    StringWriter out = new StringWriter();
+
+    fields.patch(new StringReader(DOCUMENT), out, replacements);
+
+    Assert.assertEquals(
+        DOCUMENT
+            .replace("\"A \\\"b\\\" \\u00e9\"", "\"new\\n\\\"name\\\"\"")
+            .replace("null", "{\"nested\": [1]}"),
+        out.toString());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testPatchUndeclaredPath() throws IOException {
+    compile("id", "$.id")
+        .patch(
+            new StringReader("{}"), new StringWriter(), Collections.singletonMap("other", "1"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidPath() {
+    compile("bad", "$.a[x]");
+  }
+
+  @Test(expected = IOException.class)
+  public void testMalformedJson() throws IOException {
+    compile("id", "$.a.id").extract(new StringReader("{\"a\": {\"id\" 1}}"));
+  }
+}
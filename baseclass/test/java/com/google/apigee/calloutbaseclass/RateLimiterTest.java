@@ -0,0 +1,117 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.apigee.calloutbaseclass;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public final class RateLimiterTest {
+
+  @Test
+  public void testBurstThenRefill() {
+    long[] now = new long[1];
+    RateLimiter limiter =
+        RateLimiter.newBuilder()
+            .permits(3)
+            .period(Duration.ofNanos(300))
+            .ticker(() -> now[0])
+            .build();
+
+    for (int remaining = 2; remaining >= 0; remaining--) {
+      RateLimiter.Result result = limiter.tryAcquire("client");
+      Assert.assertTrue(result.isAllowed());
+      Assert.assertEquals(remaining, result.getRemaining());
+    }
+    RateLimiter.Result rejected = limiter.tryAcquire("client");
+    Assert.assertFalse(rejected.isAllowed());
+    Assert.assertEquals(100, rejected.getRetryAfterNanos());
+    Assert.assertTrue(limiter.tryAcquire("other").isAllowed());
+
+    now[0] += 100;
+    Assert.assertTrue(limiter.tryAcquire("client").isAllowed());
+    Assert.assertFalse(limiter.tryAcquire("client").isAllowed());
+  }
+
+  @Test
+  public void testEvictsIdleKeys() {
+    long[] now = new long[1];
+    RateLimiter limiter =
+        RateLimiter.newBuilder()
+            .permits(1)
+            .period(Duration.ofNanos(100))
+            .maximumKeys(2)
+            .ticker(() -> now[0])
+            .build();
+
+    limiter.tryAcquire("a");
+    limiter.tryAcquire("b");
+    // Both keys are active, so further keys are not limited.
+    for (int i = 0; i < 3; i++) {
+      RateLimiter.Result result = limiter.tryAcquire("c");
+      Assert.assertTrue(result.isAllowed());
+      Assert.assertFalse(result.isTracked());
+    }
+    Assert.assertTrue(limiter.tryAcquire("d").isAllowed());
+    Assert.assertFalse(limiter.tryAcquire("a").isAllowed());
+    Assert.assertEquals(2, limiter.size());
+    Assert.assertEquals(4, limiter.getUntrackedCount());
+
+    now[0] += 100;
+    Assert.assertTrue(limiter.tryAcquire("d").isTracked());
+    Assert.assertFalse(limiter.tryAcquire("d").isAllowed());
+    Assert.assertEquals(1, limiter.size());
+  }
+
+  @Test
+  public void testConcurrentAcquiresNeverExceedPermits() throws Exception {
+    RateLimiter limiter =
+        RateLimiter.newBuilder().permits(1000).period(Duration.ofHours(1)).build();
+    AtomicInteger allowed = new AtomicInteger();
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (int t = 0; t < 8; t++) {
+        futures.add(
+            executor.submit(
+                () -> {
+                  for (int i = 0; i < 500; i++) {
+                    if (limiter.tryAcquire("client").isAllowed()) {
+                      allowed.incrementAndGet();
+                    }
+                  }
+                }));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } finally {
+      executor.shutdown();
+    }
+
+    Assert.assertEquals(1000, allowed.get());
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testPermitsRequired() {
+    RateLimiter.newBuilder().build();
+  }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apigee.calloutbaseclass;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+public final class ScratchBuffersTest {
+
+  @Test
+  public void testStringBuilderIsReusedAfterRelease() {
+    StringBuilder first = ScratchBuffers.acquireStringBuilder().append("abc");
+    StringBuilder nested = ScratchBuffers.acquireStringBuilder();
+
+    Assert.assertNotSame(first, nested);
+    Assert.assertEquals("abc", ScratchBuffers.toStringAndRelease(first));
+    StringBuilder reused = ScratchBuffers.acquireStringBuilder();
+    Assert.assertSame(first, reused);
+    Assert.assertEquals(0, reused.length());
+    ScratchBuffers.release(reused);
+  }
+
+  @Test
+  public void testOversizedStringBuilderIsDropped() {
+    StringBuilder large = ScratchBuffers.acquireStringBuilder();
+    large.ensureCapacity(1024 * 1024);
+    ScratchBuffers.release(large);
+
+    StringBuilder next = ScratchBuffers.acquireStringBuilder();
+    Assert.assertNotSame(large, next);
+    ScratchBuffers.release(next);
+  }
+
+  @Test
+  public void testClearDropsBuffersOfThread() throws Exception {
+    StringBuilder sb = ScratchBuffers.acquireStringBuilder();
+    ScratchBuffers.release(sb);
+    MessageDigest digest = ScratchBuffers.getMessageDigest("SHA-256");
+
+    ScratchBuffers.clear();
+
+    StringBuilder next = ScratchBuffers.acquireStringBuilder();
+    Assert.assertNotSame(sb, next);
+    Assert.assertNotSame(digest, ScratchBuffers.getMessageDigest("SHA-256"));
+    ScratchBuffers.release(next);
+  }
+
+  @Test
+  public void testThreadHoldsOnlyJdkObjects() throws Exception {
+    ScratchBuffers.release(ScratchBuffers.acquireStringBuilder());
+    ScratchBuffers.release(ScratchBuffers.acquireBytes(10));
+    ScratchBuffers.getMessageDigest("SHA-256");
+    ScratchBuffers.getEncoder(StandardCharsets.UTF_8);
+
+    for (Object value : ScratchBuffers.buffers.get()) {
+      Assert.assertNull(value.getClass().getClassLoader());
+    }
+  }
+
+  @Test
+  public void testBytesAreReusedAfterRelease() {
+    byte[] first = ScratchBuffers.acquireBytes(100);
+    ScratchBuffers.release(first);
+
+    Assert.assertSame(first, ScratchBuffers.acquireBytes(50));
+    Assert.assertTrue(ScratchBuffers.acquireBytes(100).length >= 100);
+    ScratchBuffers.release(first);
+    Assert.assertEquals(100_000, ScratchBuffers.acquireBytes(100_000).length);
+  }
+
+  @Test
+  public void testSeveralBytesAreKept() {
+    byte[] first = ScratchBuffers.acquireBytes(10);
+    byte[] second = ScratchBuffers.acquireBytes(10);
+    ScratchBuffers.release(first);
+    ScratchBuffers.release(second);
+
+    Assert.assertSame(second, ScratchBuffers.acquireBytes(10));
+    Assert.assertSame(first, ScratchBuffers.acquireBytes(10));
+  }
+
+  @Test
+  public void testMessageDigestIsReusedAndReset() throws Exception {
+    MessageDigest digest = ScratchBuffers.getMessageDigest("SHA-256");
+    digest.update((byte) 1);
+
+    MessageDigest reused = ScratchBuffers.getMessageDigest("SHA-256");
+    Assert.assertSame(digest, reused);
+    Assert.assertArrayEquals(
+        MessageDigest.getInstance("SHA-256").digest(new byte[] {2}),
+        reused.digest(new byte[] {2}));
+  }
+
+  @Test
+  public void testMacIsInitializedWithKey() throws Exception {
+    SecretKeySpec key = new SecretKeySpec("secret".getBytes(StandardCharsets.UTF_8), "HmacSHA256");
+    Mac expected = Mac.getInstance("HmacSHA256");
+    expected.init(key);
+
+    Mac mac = ScratchBuffers.getMac("HmacSHA256", key);
+    mac.update((byte) 1);
+
+    Assert.assertArrayEquals(
+        expected.doFinal(new byte[] {2}),
+        ScratchBuffers.getMac("HmacSHA256", key).doFinal(new byte[] {2}));
+  }
+
+  @Test
+  public void testEncoderIsReused() {
+    Assert.assertSame(
+        ScratchBuffers.getEncoder(StandardCharsets.UTF_8),
+        ScratchBuffers.getEncoder(StandardCharsets.UTF_8));
+  }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2020 Google LLC
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.apigee.calloutbaseclass;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+public final class XmlFieldsTest {
+
+  private static final String DOCUMENT =
+      "<?xml version=\"1.0\"?>"
+          + "<soap:Envelope xmlns:soap=\"http://schemas.xmlsoap.org/soap/envelope/\">"
+          + "<soap:Body><order id=\"o-1\">"
+          + "<item sku=\"a\"><qty>1</qty></item>"
+          + "<item sku=\"b\"><qty>2</qty></item>"
+          + "<note>Hello <b>big</b> <![CDATA[<world>]]></note>"
+          + "</order></soap:Body></soap:Envelope>";
+
+  private static XmlFields compile(String... namesAndPaths) {
+    Map<String, String> paths = new HashMap<>();
+    for (int i = 0; i < namesAndPaths.length; i += 2) {
+      paths.put(namesAndPaths[i], namesAndPaths[i + 1]);
+    }
+    return XmlFields.compile(paths);
+  }
+
+  private static InputStream stream(String xml) {
+    return new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void testExtract() throws IOException {
+    XmlFields fields =
+        compile(
+            "id", "/Envelope/Body/order/@id",
+            "firstQty", "/soap:Envelope/soap:Body/order/item/qty",
+            "secondSku", "/Envelope/Body/order/item[2]/@sku",
+            "secondQty", "/Envelope/Body/order/item[2]/qty",
+            "note", "/Envelope/Body/order/note",
+            "missing", "/Envelope/Body/order/item[3]/qty");
+
+    Map<String, String> values = fields.extract(stream(DOCUMENT));
+
+    Assert.assertEquals("o-1", values.get("id"));
+    Assert.assertEquals("1", values.get("firstQty"));
+    Assert.assertEquals("b", values.get("secondSku"));
+    Assert.assertEquals("2", values.get("secondQty"));
+    Assert.assertEquals("Hello big <world>", values.get("note"));
+    Assert.assertFalse(values.containsKey("missing"));
+  }
+
+  @Test
+  public void testExtractStopsOnceAllPathsFound() throws IOException {
+    Map<String, String> values =
+        compile("id", "/a/@id").extract(stream("<a id=\"1\"><b></c></a>"));
+
+    Assert.assertEquals(Collections.singletonMap("id", "1"), values);
+  }
+
+  @Test
+  public void testExternalEntitiesAreNotResolved() {
+    String xml =
+        "<?xml version=\"1.0\"?><!DOCTYPE a [<!ENTITY xxe SYSTEM \"file:///etc/hostname\">]>"
+            + "<a>&xxe;</a>";
+
+    try {
+      Map<String, String> values = compile("a", "/a").extract(stream(xml));
+      Assert.assertEquals("", values.getOrDefault("a", ""));
+    } catch (IOException e) {
+      // Rejecting the document is just as safe.
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidPath() {
+    compile("bad", "/a/@b/c");
+  }
+
+  @Test(expected = IOException.class)
+  public void testMalformedXml() throws IOException {
+    compile("b", "/a/b").extract(stream("<a><c></a>"));
+  }
+}